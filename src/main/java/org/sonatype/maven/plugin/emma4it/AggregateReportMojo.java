@@ -0,0 +1,181 @@
+package org.sonatype.maven.plugin.emma4it;
+
+/*
+ * PUT YOUR LICENSE HEADER HERE.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.maven.plugin.AbstractMojo;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.project.MavenProject;
+
+/**
+ * Generates one report from the coverage data of all modules in the reactor. The <code>*.ec</code>,
+ * <code>*.ecz</code>, <code>*.em</code> and <code>*.es</code> files below the <code>emma</code> directory of each
+ * module's build directory are loaded in parallel and merged once in memory. The reports are generated directly from
+ * the merged data, using the source directories of all modules for the HTML report.
+ *
+ * @goal aggregate-report
+ * @aggregator
+ * @since 1.4
+ */
+public class AggregateReportMojo
+    extends AbstractMojo
+{
+
+    /**
+     * The projects in the reactor.
+     *
+     * @parameter expression="${reactorProjects}"
+     * @required
+     * @readonly
+     */
+    private List<MavenProject> reactorProjects;
+
+    /**
+     * The location of the generated report files.
+     *
+     * @parameter default-value="${project.reporting.outputDirectory}/emma"
+     */
+    private File reportDirectory;
+
+    /**
+     * The (case-sensitive) names of the reports to be generated. Supported reports are <code>txt</code>,
+     * <code>xml</code> and <code>html</code>. Defaults to <code>txt</code>, <code>xml</code> and <code>html</code>.
+     *
+     * @parameter
+     */
+    private String[] formats;
+
+    /**
+     * The maximum number of modules whose coverage data is loaded concurrently. Defaults to the number of available
+     * processors.
+     *
+     * @parameter expression="${emma4it.threads}"
+     */
+    private int threads;
+
+    public void execute()
+        throws MojoExecutionException
+    {
+        CoverageModel model = loadModules();
+
+        if ( model.getMetaData() == null )
+        {
+            getLog().warn( "No coverage data found in any module, skipping aggregate report" );
+            return;
+        }
+
+        try
+        {
+            EmmaReport.create( getFormats(), reportDirectory ).write( model, collectSourcePath() );
+        }
+        catch ( IllegalArgumentException e )
+        {
+            throw new MojoExecutionException( "Unsupported report format", e );
+        }
+    }
+
+    private String[] getFormats()
+    {
+        if ( formats == null || formats.length <= 0 )
+        {
+            return new String[] { "txt", "xml", "html" };
+        }
+        return formats;
+    }
+
+    private CoverageModel loadModules()
+        throws MojoExecutionException
+    {
+        int poolSize = ( threads > 0 ) ? threads : Runtime.getRuntime().availableProcessors();
+        ExecutorService executor = Executors.newFixedThreadPool( Math.max( 1, poolSize ) );
+        try
+        {
+            List<FileSet> dataSets = new ArrayList<FileSet>();
+            for ( MavenProject project : reactorProjects )
+            {
+                File emmaDir = new File( project.getBuild().getDirectory(), "emma" );
+                if ( !emmaDir.isDirectory() )
+                {
+                    getLog().debug( "No coverage data for " + project.getId() );
+                    continue;
+                }
+                dataSets.add( new FileSet( emmaDir, DataSets.INCLUDES, null ) );
+            }
+
+            List<Future<CoverageModel>> results = new ArrayList<Future<CoverageModel>>();
+            for ( Collection<String> paths : FileSet.scan( dataSets, true, false ) )
+            {
+                final List<File> dataFiles = new ArrayList<File>();
+                for ( String path : paths )
+                {
+                    getLog().debug( "  " + path );
+                    dataFiles.add( new File( path ) );
+                }
+
+                results.add( executor.submit( new Callable<CoverageModel>()
+                {
+                    public CoverageModel call()
+                        throws IOException
+                    {
+                        return CoverageModel.load( dataFiles );
+                    }
+                } ) );
+            }
+
+            getLog().info( "Aggregating coverage data of " + results.size() + " modules" );
+
+            CoverageModel model = new CoverageModel( null, null );
+            for ( Future<CoverageModel> result : results )
+            {
+                model = model.merge( result.get() );
+            }
+            return model;
+        }
+        catch ( ExecutionException e )
+        {
+            throw new MojoExecutionException( "Unable to load coverage data", e.getCause() );
+        }
+        catch ( InterruptedException e )
+        {
+            throw new MojoExecutionException( "Interrupted while loading coverage data", e );
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    private String[] collectSourcePath()
+    {
+        getLog().debug( "Collecting source directories" );
+
+        Collection<String> sourcePath = new LinkedHashSet<String>();
+        for ( MavenProject project : reactorProjects )
+        {
+            for ( Object root : project.getCompileSourceRoots() )
+            {
+                File sourceDir = new File( root.toString() );
+                if ( sourceDir.isDirectory() )
+                {
+                    getLog().debug( "  " + sourceDir );
+                    sourcePath.add( sourceDir.getAbsolutePath() );
+                }
+            }
+        }
+        return sourcePath.toArray( new String[sourcePath.size()] );
+    }
+
+}
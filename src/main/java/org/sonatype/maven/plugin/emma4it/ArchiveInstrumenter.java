@@ -0,0 +1,866 @@
+package org.sonatype.maven.plugin.emma4it;
+
+/*
+ * PUT YOUR LICENSE HEADER HERE.
+ */
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.maven.plugin.logging.Log;
+import org.codehaus.plexus.util.IOUtil;
+import org.codehaus.plexus.util.SelectorUtils;
+
+import com.vladium.emma.IAppConstants;
+import com.vladium.emma.data.ClassDescriptor;
+import com.vladium.emma.data.CoverageOptions;
+import com.vladium.emma.data.DataFactory;
+import com.vladium.emma.data.IMetaData;
+import com.vladium.emma.instr.InstrProcessor;
+import com.vladium.util.XProperties;
+
+/**
+ * Instruments the classes of an archive incrementally. The CRC of each class entry and the instrumented bytes and
+ * metadata from the previous run are kept in a state directory, so that only entries whose CRC changed are passed to
+ * emma again. The instrumented archive is then reassembled from the cached and the freshly instrumented classes and
+ * the metadata of the changed classes is patched into the shared metadata file. Class entries that are excluded by the
+ * coverage filters are decided by their name alone and copied through without ever being handed to emma. Large sets
+ * of changed classes can be split into chunks that are instrumented concurrently; since emma instruments every class
+ * on its own, the reassembled archive and metadata are the same as for a sequential run. Nested archives like the
+ * libraries of a WAR or EAR can be selected by their entry names, they are instrumented concurrently and streamed back
+ * into the outer archive when it is written. The metadata kept in the state directory uses the extension
+ * <code>.dat</code> so that it is not mistaken for project metadata by the default data sets of the reporting goals.
+ */
+class ArchiveInstrumenter
+{
+
+    private static final String KEY_OPTIONS = "options";
+
+    private static final String KEY_METADATA_STAMP = "metadata.stamp";
+
+    private static final String PREFIX_CRC = "crc.";
+
+    private static final String METADATA_EXT = ".dat";
+
+    private static final String WEB_CLASSES = "WEB-INF/classes/";
+
+    private final File stateDirectory;
+
+    private final Log log;
+
+    private String[] filters;
+
+    private ClassFilter classFilter = new ClassFilter( null );
+
+    private boolean incremental = true;
+
+    private int threads = 1;
+
+    private int chunkSize = 1000;
+
+    private String[] nestedArchives;
+
+    private Properties properties = new XProperties();
+
+    /**
+     * Creates a new instrumenter.
+     *
+     * @param stateDirectory The directory to keep the state of the incremental instrumentation in, must not be
+     *            {@code null}. Each archive needs its own state directory.
+     * @param log The logger to use, must not be {@code null}.
+     */
+    ArchiveInstrumenter( File stateDirectory, Log log )
+    {
+        this.stateDirectory = stateDirectory;
+        this.log = log;
+    }
+
+    /**
+     * Sets the emma inclusion/exclusion filters for the classes to instrument.
+     *
+     * @param filters The filters, may be {@code null} to instrument all classes.
+     */
+    void setFilters( String[] filters )
+    {
+        this.filters = filters;
+        this.classFilter = new ClassFilter( filters );
+    }
+
+    /**
+     * Controls whether the state of this run is kept for the next run. If disabled, all included classes are
+     * instrumented and the state directory is cleaned up afterwards.
+     *
+     * @param incremental {@code true} to reuse the state of the previous run, {@code false} to instrument all classes.
+     */
+    void setIncremental( boolean incremental )
+    {
+        this.incremental = incremental;
+    }
+
+    /**
+     * Sets the maximum number of chunks to instrument concurrently.
+     *
+     * @param threads The number of threads, values less than 2 instrument all classes at once.
+     */
+    void setThreads( int threads )
+    {
+        this.threads = threads;
+    }
+
+    /**
+     * Sets the number of classes per chunk when instrumenting concurrently.
+     *
+     * @param chunkSize The number of classes per chunk, must be positive.
+     */
+    void setChunkSize( int chunkSize )
+    {
+        this.chunkSize = Math.max( 1, chunkSize );
+    }
+
+    /**
+     * Sets the patterns for the nested archives to instrument as well.
+     *
+     * @param nestedArchives The Ant-like patterns for the entry names of the nested archives, e.g.
+     *            <code>WEB-INF/lib/*.jar</code>, may be {@code null} to not instrument nested archives.
+     */
+    void setNestedArchives( String[] nestedArchives )
+    {
+        this.nestedArchives = nestedArchives;
+    }
+
+    /**
+     * Sets the emma property overrides for the instrumentation.
+     *
+     * @param properties The property overrides, must not be {@code null}.
+     */
+    void setProperties( Properties properties )
+    {
+        this.properties = properties;
+    }
+
+    /**
+     * Instruments the specified archive.
+     *
+     * @param source The archive to instrument, must not be {@code null}.
+     * @param target The file to write the instrumented archive to, must not be {@code null}. May denote the same file
+     *            as the source archive in order to instrument it in place.
+     * @param metaOutFile The metadata file to merge the metadata of the instrumented classes into, must not be
+     *            {@code null}.
+     * @throws IOException If the archive could not be instrumented.
+     */
+    void instrument( File source, File target, File metaOutFile )
+        throws IOException
+    {
+        stateDirectory.mkdirs();
+        deleteLegacyMetaData( stateDirectory );
+
+        File indexFile = new File( stateDirectory, "index.properties" );
+        File classesFile = new File( stateDirectory, "classes.jar" );
+        File metadataFile = new File( stateDirectory, "metadata" + METADATA_EXT );
+
+        String options = getOptions();
+
+        Properties index = load( indexFile );
+        boolean reuse =
+            incremental && options.equals( index.getProperty( KEY_OPTIONS ) ) && classesFile.isFile()
+                && metadataFile.isFile();
+        if ( !reuse )
+        {
+            index.clear();
+        }
+
+        Properties newIndex = new Properties();
+        newIndex.setProperty( KEY_OPTIONS, options );
+
+        List<String> classes = new ArrayList<String>();
+        Set<String> changed = new LinkedHashSet<String>();
+        Set<String> unchangedNames = new HashSet<String>();
+        List<String> nested = new ArrayList<String>();
+        int excluded = 0;
+
+        File instrumentedFile = new File( stateDirectory, "instrumented.tmp" );
+
+        JarFile sourceJar = new JarFile( source );
+        try
+        {
+            for ( Enumeration<JarEntry> en = sourceJar.entries(); en.hasMoreElements(); )
+            {
+                JarEntry entry = en.nextElement();
+                if ( !isClass( entry ) )
+                {
+                    if ( isNestedArchive( entry ) )
+                    {
+                        nested.add( entry.getName() );
+                    }
+                    continue;
+                }
+
+                String name = entry.getName();
+                if ( !classFilter.isIncludedEntry( name ) )
+                {
+                    excluded++;
+                    continue;
+                }
+
+                String crc = Long.toHexString( entry.getCrc() );
+                classes.add( name );
+                newIndex.setProperty( PREFIX_CRC + name, crc );
+
+                if ( crc.equals( index.getProperty( PREFIX_CRC + name ) ) )
+                {
+                    unchangedNames.add( getClassVMName( name ) );
+                }
+                else
+                {
+                    changed.add( name );
+                }
+            }
+
+            log.info( "Instrumenting " + changed.size() + " of " + classes.size() + " classes in " + source.getName()
+                + ( ( excluded > 0 ) ? ", " + excluded + " classes excluded by filters" : "" ) );
+
+            List<File> deltaFiles = new ArrayList<File>();
+            IMetaData delta = null;
+            if ( !changed.isEmpty() )
+            {
+                delta = instrumentChunks( sourceJar, split( changed ), deltaFiles );
+            }
+
+            updateClasses( sourceJar, classes, deltaFiles, classesFile, reuse );
+
+            Map<String, File> nestedFiles = new HashMap<String, File>();
+            IMetaData nestedMetadata = null;
+            if ( !nested.isEmpty() )
+            {
+                nestedMetadata = instrumentNested( sourceJar, nested, nestedFiles );
+            }
+
+            assemble( sourceJar, classesFile, nestedFiles, instrumentedFile );
+
+            IMetaData fragment = updateMetaData( delta, reuse ? loadMetaData( metadataFile ) : null, unchangedNames );
+            metadataFile.delete();
+            if ( fragment != null )
+            {
+                DataFactory.persist( fragment, metadataFile, false );
+            }
+
+            boolean patch =
+                reuse && metaOutFile.isFile()
+                    && String.valueOf( metaOutFile.lastModified() ).equals( index.getProperty( KEY_METADATA_STAMP ) );
+            IMetaData metaOut = patch ? delta : fragment;
+            if ( nestedMetadata != null )
+            {
+                metaOut = ( metaOut == null ) ? nestedMetadata : (IMetaData) metaOut.merge( nestedMetadata );
+            }
+            MetadataStore.merge( metaOut, metaOutFile );
+            newIndex.setProperty( KEY_METADATA_STAMP, String.valueOf( metaOutFile.lastModified() ) );
+        }
+        finally
+        {
+            sourceJar.close();
+        }
+
+        replace( instrumentedFile, target );
+
+        if ( incremental )
+        {
+            store( newIndex, indexFile );
+        }
+        else
+        {
+            FileUtils.deleteDirectory( stateDirectory );
+        }
+    }
+
+    /**
+     * Deletes the <code>*.em</code> state files written by earlier versions, which the reporting goals would pick up
+     * as project metadata.
+     */
+    private static void deleteLegacyMetaData( File directory )
+    {
+        File[] files = directory.listFiles();
+        if ( files != null )
+        {
+            for ( File file : files )
+            {
+                if ( file.isDirectory() )
+                {
+                    deleteLegacyMetaData( file );
+                }
+                else if ( file.getName().endsWith( ".em" ) )
+                {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    private static void replace( File source, File target )
+        throws IOException
+    {
+        target.delete();
+        if ( !source.renameTo( target ) )
+        {
+            FileUtils.copyFile( source, target );
+            source.delete();
+        }
+    }
+
+    private String getOptions()
+    {
+        return ( ( filters != null ) ? Arrays.asList( filters ).toString() : "[]" ) + properties;
+    }
+
+    private boolean isNestedArchive( JarEntry entry )
+    {
+        if ( nestedArchives != null && !entry.isDirectory() )
+        {
+            for ( String pattern : nestedArchives )
+            {
+                if ( SelectorUtils.matchPath( pattern, entry.getName(), true ) )
+                {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Instruments the specified nested archives concurrently. Each nested archive is extracted as a whole and
+     * instrumented by its own instrumenter whose state is kept in a subdirectory of the state directory.
+     *
+     * @return The merged metadata of all nested archives or {@code null} if none.
+     */
+    private IMetaData instrumentNested( final JarFile sourceJar, List<String> names, Map<String, File> nestedFiles )
+        throws IOException
+    {
+        log.info( "Instrumenting " + names.size() + " nested archives" );
+
+        Map<String, File> metaFiles = new HashMap<String, File>();
+
+        ExecutorService executor = Executors.newFixedThreadPool( Math.max( 1, Math.min( threads, names.size() ) ) );
+        try
+        {
+            List<Future<?>> futures = new ArrayList<Future<?>>();
+            for ( final String name : names )
+            {
+                final File nestedDirectory =
+                    new File( stateDirectory, "nested/" + name.replaceAll( "[^\\w.-]", "_" ) );
+                final File instrumentedFile = new File( nestedDirectory, "instrumented.jar" );
+                final File metaFile = new File( nestedDirectory, "metadata" + METADATA_EXT );
+                nestedFiles.put( name, instrumentedFile );
+                metaFiles.put( name, metaFile );
+
+                final ArchiveInstrumenter instrumenter =
+                    new ArchiveInstrumenter( new File( nestedDirectory, "state" ), log );
+                instrumenter.setFilters( filters );
+                instrumenter.setIncremental( incremental );
+                instrumenter.setChunkSize( chunkSize );
+                instrumenter.setProperties( properties );
+
+                futures.add( executor.submit( new Callable<Object>()
+                {
+                    public Object call()
+                        throws IOException
+                    {
+                        nestedDirectory.mkdirs();
+                        if ( !incremental )
+                        {
+                            metaFile.delete();
+                        }
+                        File sourceFile = new File( nestedDirectory, "source.jar" );
+                        extract( sourceJar, sourceJar.getJarEntry( name ), sourceFile );
+                        instrumenter.instrument( sourceFile, instrumentedFile, metaFile );
+                        sourceFile.delete();
+                        return null;
+                    }
+                } ) );
+            }
+            for ( Future<?> future : futures )
+            {
+                future.get();
+            }
+        }
+        catch ( ExecutionException e )
+        {
+            if ( e.getCause() instanceof RuntimeException )
+            {
+                throw (RuntimeException) e.getCause();
+            }
+            throw (IOException) new IOException( "Instrumentation of nested archive failed" ).initCause( e.getCause() );
+        }
+        catch ( InterruptedException e )
+        {
+            throw (IOException) new IOException( "Interrupted during instrumentation" ).initCause( e );
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+
+        IMetaData metadata = null;
+        for ( String name : names )
+        {
+            IMetaData nestedMetadata = loadMetaData( metaFiles.get( name ) );
+            if ( nestedMetadata != null && !nestedMetadata.isEmpty() )
+            {
+                metadata = ( metadata == null ) ? nestedMetadata : (IMetaData) metadata.merge( nestedMetadata );
+            }
+        }
+        return metadata;
+    }
+
+    private static void extract( JarFile jar, JarEntry entry, File target )
+        throws IOException
+    {
+        InputStream input = jar.getInputStream( entry );
+        try
+        {
+            OutputStream output = new FileOutputStream( target );
+            try
+            {
+                IOUtil.copy( input, output );
+            }
+            finally
+            {
+                IOUtil.close( output );
+            }
+        }
+        finally
+        {
+            IOUtil.close( input );
+        }
+    }
+
+    private List<List<String>> split( Collection<String> names )
+    {
+        List<List<String>> chunks = new ArrayList<List<String>>();
+        if ( threads <= 1 || names.size() <= chunkSize )
+        {
+            chunks.add( new ArrayList<String>( names ) );
+        }
+        else
+        {
+            List<String> chunk = null;
+            for ( String name : names )
+            {
+                if ( chunk == null || chunk.size() >= chunkSize )
+                {
+                    chunk = new ArrayList<String>( chunkSize );
+                    chunks.add( chunk );
+                }
+                chunk.add( name );
+            }
+        }
+        return chunks;
+    }
+
+    /**
+     * Instruments the specified chunks of class entries, concurrently if there is more than one chunk.
+     *
+     * @return The merged metadata of all chunks or {@code null} if none.
+     */
+    private IMetaData instrumentChunks( JarFile sourceJar, List<List<String>> chunks, List<File> deltaFiles )
+        throws IOException
+    {
+        final File[] metaFiles = new File[chunks.size()];
+        for ( int i = 0; i < chunks.size(); i++ )
+        {
+            File deltaFile = new File( stateDirectory, "delta-" + i + ".jar" );
+            metaFiles[i] = new File( stateDirectory, "delta-" + i + METADATA_EXT );
+            copy( sourceJar, chunks.get( i ), deltaFile );
+            metaFiles[i].delete();
+            deltaFiles.add( deltaFile );
+        }
+
+        if ( chunks.size() == 1 )
+        {
+            runEmma( deltaFiles.get( 0 ), metaFiles[0] );
+        }
+        else
+        {
+            log.info( "Instrumenting " + chunks.size() + " chunks using " + Math.min( threads, chunks.size() )
+                + " threads" );
+
+            ExecutorService executor = Executors.newFixedThreadPool( Math.min( threads, chunks.size() ) );
+            try
+            {
+                List<Future<?>> futures = new ArrayList<Future<?>>();
+                for ( int i = 0; i < chunks.size(); i++ )
+                {
+                    final File deltaFile = deltaFiles.get( i );
+                    final File metaFile = metaFiles[i];
+                    futures.add( executor.submit( new Runnable()
+                    {
+                        public void run()
+                        {
+                            runEmma( deltaFile, metaFile );
+                        }
+                    } ) );
+                }
+                for ( Future<?> future : futures )
+                {
+                    future.get();
+                }
+            }
+            catch ( ExecutionException e )
+            {
+                if ( e.getCause() instanceof RuntimeException )
+                {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw (IOException) new IOException( "Instrumentation failed" ).initCause( e.getCause() );
+            }
+            catch ( InterruptedException e )
+            {
+                throw (IOException) new IOException( "Interrupted during instrumentation" ).initCause( e );
+            }
+            finally
+            {
+                executor.shutdownNow();
+            }
+        }
+
+        IMetaData metadata = null;
+        for ( File metaFile : metaFiles )
+        {
+            IMetaData chunkMetadata = loadMetaData( metaFile );
+            metaFile.delete();
+            if ( chunkMetadata != null && !chunkMetadata.isEmpty() )
+            {
+                metadata = ( metadata == null ) ? chunkMetadata : (IMetaData) metadata.merge( chunkMetadata );
+            }
+        }
+        return metadata;
+    }
+
+    private void runEmma( File archive, File metaOutFile )
+    {
+        InstrProcessor processor = InstrProcessor.create();
+        processor.setAppName( IAppConstants.APP_NAME );
+
+        processor.setInstrPath( new String[] { archive.getAbsolutePath() }, true );
+        processor.setInclExclFilter( filters );
+        processor.setOutMode( InstrProcessor.OutMode.OUT_MODE_OVERWRITE );
+        processor.setInstrOutDir( null );
+        processor.setMetaOutFile( metaOutFile.getAbsolutePath() );
+        processor.setMetaOutMerge( Boolean.FALSE );
+        processor.setPropertyOverrides( properties );
+
+        processor.run();
+    }
+
+    /**
+     * Updates the cache of instrumented classes with the freshly instrumented classes.
+     */
+    private void updateClasses( JarFile sourceJar, List<String> classes, List<File> deltaFiles, File classesFile,
+                                boolean reuse )
+        throws IOException
+    {
+        File newClassesFile = new File( stateDirectory, "classes.jar.tmp" );
+
+        List<JarFile> deltaJars = new ArrayList<JarFile>();
+        Map<String, JarFile> deltaEntries = new HashMap<String, JarFile>();
+        JarFile classesJar = null;
+        try
+        {
+            for ( File deltaFile : deltaFiles )
+            {
+                JarFile deltaJar = new JarFile( deltaFile );
+                deltaJars.add( deltaJar );
+                for ( Enumeration<JarEntry> en = deltaJar.entries(); en.hasMoreElements(); )
+                {
+                    deltaEntries.put( en.nextElement().getName(), deltaJar );
+                }
+            }
+
+            classesJar = reuse ? new JarFile( classesFile ) : null;
+
+            JarOutputStream output = new JarOutputStream( new FileOutputStream( newClassesFile ) );
+            try
+            {
+                for ( String name : classes )
+                {
+                    JarFile jar = deltaEntries.get( name );
+                    if ( jar == null )
+                    {
+                        jar = classesJar;
+                    }
+                    if ( jar == null || jar.getJarEntry( name ) == null )
+                    {
+                        jar = sourceJar;
+                    }
+                    copy( jar, jar.getJarEntry( name ), output );
+                }
+            }
+            finally
+            {
+                IOUtil.close( output );
+            }
+        }
+        finally
+        {
+            for ( JarFile deltaJar : deltaJars )
+            {
+                close( deltaJar );
+            }
+            close( classesJar );
+        }
+
+        for ( File deltaFile : deltaFiles )
+        {
+            deltaFile.delete();
+        }
+
+        classesFile.delete();
+        if ( !newClassesFile.renameTo( classesFile ) )
+        {
+            throw new IOException( "Unable to rename " + newClassesFile + " to " + classesFile );
+        }
+    }
+
+    /**
+     * Writes the instrumented archive, taking the classes from the cache, the nested archives from their instrumented
+     * files and all other entries from the original.
+     */
+    private void assemble( JarFile sourceJar, File classesFile, Map<String, File> nestedFiles, File target )
+        throws IOException
+    {
+        JarFile classesJar = new JarFile( classesFile );
+        try
+        {
+            JarOutputStream output = new JarOutputStream( new FileOutputStream( target ) );
+            try
+            {
+                for ( Enumeration<JarEntry> en = sourceJar.entries(); en.hasMoreElements(); )
+                {
+                    JarEntry entry = en.nextElement();
+                    JarEntry instrumented = isClass( entry ) ? classesJar.getJarEntry( entry.getName() ) : null;
+                    File nestedFile = nestedFiles.get( entry.getName() );
+                    if ( instrumented != null )
+                    {
+                        copy( classesJar, instrumented, output );
+                    }
+                    else if ( nestedFile != null )
+                    {
+                        copy( nestedFile, entry, output );
+                    }
+                    else
+                    {
+                        copy( sourceJar, entry, output );
+                    }
+                }
+            }
+            finally
+            {
+                IOUtil.close( output );
+            }
+        }
+        finally
+        {
+            classesJar.close();
+        }
+    }
+
+    /**
+     * Combines the metadata of the unchanged classes from the previous run with the metadata of the changed classes.
+     */
+    @SuppressWarnings( "unchecked" )
+    private static IMetaData updateMetaData( IMetaData delta, IMetaData previous, Set<String> unchangedNames )
+    {
+        CoverageOptions options;
+        if ( delta != null )
+        {
+            options = delta.getOptions();
+        }
+        else if ( previous != null )
+        {
+            options = previous.getOptions();
+        }
+        else
+        {
+            return null;
+        }
+
+        IMetaData metadata = DataFactory.newMetaData( options );
+        if ( previous != null )
+        {
+            for ( Iterator<ClassDescriptor> it = previous.iterator(); it.hasNext(); )
+            {
+                ClassDescriptor cls = it.next();
+                if ( unchangedNames.contains( cls.getClassVMName() ) )
+                {
+                    metadata.add( cls, false );
+                }
+            }
+        }
+        if ( delta != null )
+        {
+            for ( Iterator<ClassDescriptor> it = delta.iterator(); it.hasNext(); )
+            {
+                metadata.add( it.next(), true );
+            }
+        }
+        return metadata;
+    }
+
+    private static IMetaData loadMetaData( File file )
+        throws IOException
+    {
+        if ( !file.isFile() )
+        {
+            return null;
+        }
+        return (IMetaData) DataFactory.load( file )[DataFactory.TYPE_METADATA];
+    }
+
+    static boolean isClass( JarEntry entry )
+    {
+        return !entry.isDirectory() && entry.getName().endsWith( ".class" );
+    }
+
+    static String getClassVMName( String entryName )
+    {
+        String name = entryName.substring( 0, entryName.length() - ".class".length() );
+        if ( name.startsWith( WEB_CLASSES ) )
+        {
+            name = name.substring( WEB_CLASSES.length() );
+        }
+        return name;
+    }
+
+    private static void copy( JarFile jar, Collection<String> names, File target )
+        throws IOException
+    {
+        JarOutputStream output = new JarOutputStream( new FileOutputStream( target ) );
+        try
+        {
+            for ( String name : names )
+            {
+                copy( jar, jar.getJarEntry( name ), output );
+            }
+        }
+        finally
+        {
+            IOUtil.close( output );
+        }
+    }
+
+    static void copy( JarFile jar, JarEntry entry, JarOutputStream output )
+        throws IOException
+    {
+        JarEntry copy = new JarEntry( entry.getName() );
+        copy.setTime( entry.getTime() );
+        output.putNextEntry( copy );
+
+        if ( !entry.isDirectory() )
+        {
+            InputStream input = jar.getInputStream( entry );
+            try
+            {
+                IOUtil.copy( input, output );
+            }
+            finally
+            {
+                IOUtil.close( input );
+            }
+        }
+
+        output.closeEntry();
+    }
+
+    private static void copy( File file, JarEntry entry, JarOutputStream output )
+        throws IOException
+    {
+        JarEntry copy = new JarEntry( entry.getName() );
+        copy.setTime( entry.getTime() );
+        output.putNextEntry( copy );
+
+        InputStream input = new FileInputStream( file );
+        try
+        {
+            IOUtil.copy( input, output );
+        }
+        finally
+        {
+            IOUtil.close( input );
+        }
+
+        output.closeEntry();
+    }
+
+    private static void close( JarFile jar )
+    {
+        if ( jar != null )
+        {
+            try
+            {
+                jar.close();
+            }
+            catch ( IOException e )
+            {
+                // ignore
+            }
+        }
+    }
+
+    private static Properties load( File file )
+        throws IOException
+    {
+        Properties props = new Properties();
+        if ( file.isFile() )
+        {
+            InputStream is = new FileInputStream( file );
+            try
+            {
+                props.load( is );
+            }
+            finally
+            {
+                IOUtil.close( is );
+            }
+        }
+        return props;
+    }
+
+    private static void store( Properties props, File file )
+        throws IOException
+    {
+        OutputStream os = new FileOutputStream( file );
+        try
+        {
+            props.store( os, "emma4it incremental instrumentation state" );
+        }
+        finally
+        {
+            IOUtil.close( os );
+        }
+    }
+
+}
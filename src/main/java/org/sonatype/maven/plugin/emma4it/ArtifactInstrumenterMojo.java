@@ -17,6 +17,7 @@ package org.sonatype.maven.plugin.emma4it;
  */
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -80,7 +81,11 @@ public class ArtifactInstrumenterMojo
     private FileSet[] jarSets;
 
     /**
-     * The include filter for the classes to instrument/measure.
+     * The include filter for the classes to instrument/measure. If {@link #includes} or {@link #excludes} are given and
+     * the {@link #outputMode} is <code>overwrite</code>, the class entries of archives are matched by their names
+     * before emma sees them, so excluded classes are never inflated and parsed by emma. The archive is rewritten in
+     * the process, compressing its remaining entries again, and its work files are kept in
+     * <code>${project.build.directory}/emma/work</code> while it is instrumented.
      * 
      * @parameter
      * @since 1.2
@@ -100,9 +105,62 @@ public class ArtifactInstrumenterMojo
      */
     private String outputMode;
 
+    /**
+     * The maximum number of threads used to instrument a large archive. If greater than one, the classes of an archive
+     * are split into chunks of {@link #chunkSize} classes which are instrumented concurrently. The produced archive and
+     * metadata are the same as for a sequential run.
+     *
+     * @parameter expression="${emma4it.threads}" default-value="1"
+     * @since 1.4
+     */
+    private int threads;
+
+    /**
+     * The number of classes per chunk when instrumenting with multiple {@link #threads}.
+     *
+     * @parameter expression="${emma4it.chunkSize}" default-value="1000"
+     * @since 1.4
+     */
+    private int chunkSize;
+
+    /**
+     * The Ant-like patterns for the entry names of nested archives to instrument as well, e.g.
+     * <code>WEB-INF/lib/foo-*.jar</code> for libraries of a WAR or <code>lib/*.jar</code> for an EAR. The nested
+     * archives are instrumented concurrently using up to {@link #threads} threads and written back into the outer
+     * archive.
+     *
+     * @parameter
+     * @since 1.4
+     */
+    private String[] nestedArchives;
+
+    /**
+     * Whether to store the metadata file gzip-compressed. Compressed files keep their names and are read transparently
+     * by the goals of this plugin.
+     *
+     * @parameter expression="${emma4it.compress}" default-value="false"
+     * @since 1.4
+     */
+    private boolean compress;
+
+    /**
+     * Whether to skip the instrumentation. The <code>emma4it</code> lifecycle sets this when the coverage data is up to
+     * date, see the <code>up-to-date</code> goal.
+     *
+     * @parameter default-value="false"
+     * @since 1.4
+     */
+    private boolean skip;
+
     public void execute()
         throws MojoExecutionException
     {
+        if ( skip )
+        {
+            getLog().info( "Skipping instrumentation" );
+            return;
+        }
+
         String[] instrPath = collectInstrumentationPath();
 
         if ( instrPath.length <= 0 )
@@ -117,25 +175,98 @@ public class ArtifactInstrumenterMojo
             throw new MojoExecutionException( "invalid outputMode value: " + outputMode );
         }
 
+        XProperties properties = new XProperties();
+
         File emmaFolder = new File( project.getBuild().getDirectory(), "emma" );
         if ( !emmaFolder.exists() )
         {
             emmaFolder.mkdirs();
         }
 
-        InstrProcessor processor = InstrProcessor.create();
-        processor.setAppName( IAppConstants.APP_NAME );
+        boolean archiveInstrumenter =
+            getCoverageFilters() != null || threads > 1 || ( nestedArchives != null && nestedArchives.length > 0 );
+        if ( outMode == InstrProcessor.OutMode.OUT_MODE_OVERWRITE && archiveInstrumenter )
+        {
+            instrPath = instrumentArchives( instrPath, emmaFolder, properties );
+        }
 
-        processor.setInstrPath( instrPath, true );
-        processor.setInclExclFilter( getCoverageFilters() );
-        processor.setOutMode( outMode );
-        processor.setInstrOutDir( null );
-        processor.setMetaOutFile( new File( emmaFolder, "coverage.em" ).getAbsolutePath() );
-        processor.setMetaOutMerge( Boolean.TRUE );
-        XProperties properties = new XProperties();
-        processor.setPropertyOverrides( properties );
+        File metaOutFile = new File( emmaFolder, "coverage.em" );
+
+        if ( instrPath.length > 0 )
+        {
+            InstrProcessor processor = InstrProcessor.create();
+            processor.setAppName( IAppConstants.APP_NAME );
+
+            processor.setInstrPath( instrPath, true );
+            processor.setInclExclFilter( getCoverageFilters() );
+            processor.setOutMode( outMode );
+            processor.setInstrOutDir( null );
+            processor.setPropertyOverrides( properties );
+
+            try
+            {
+                MetadataStore.instrument( processor, metaOutFile );
+            }
+            catch ( IOException e )
+            {
+                throw new MojoExecutionException( "Unable to write metadata to " + metaOutFile, e );
+            }
+        }
 
-        processor.run();
+        if ( compress )
+        {
+            try
+            {
+                MetadataStore.compress( metaOutFile );
+            }
+            catch ( IOException e )
+            {
+                throw new MojoExecutionException( "Unable to compress " + metaOutFile, e );
+            }
+        }
+    }
+
+    /**
+     * Instruments the archives among the specified paths in place, pre-filtering their entries by name so that
+     * excluded classes are never handed to emma.
+     *
+     * @param instrPath The paths to instrument, must not be {@code null}.
+     * @param emmaFolder The output directory for the metadata, must not be {@code null}.
+     * @param properties The emma property overrides, must not be {@code null}.
+     * @return The remaining paths that are no archives, never {@code null}.
+     * @throws MojoExecutionException If an archive could not be instrumented.
+     */
+    private String[] instrumentArchives( String[] instrPath, File emmaFolder, XProperties properties )
+        throws MojoExecutionException
+    {
+        List<String> remaining = new ArrayList<String>();
+        for ( int i = 0; i < instrPath.length; i++ )
+        {
+            File archive = new File( instrPath[i] );
+            if ( !archive.isFile() )
+            {
+                remaining.add( instrPath[i] );
+                continue;
+            }
+
+            ArchiveInstrumenter instrumenter =
+                new ArchiveInstrumenter( new File( emmaFolder, "work/" + i + "-" + archive.getName() ), getLog() );
+            instrumenter.setFilters( getCoverageFilters() );
+            instrumenter.setProperties( properties );
+            instrumenter.setIncremental( false );
+            instrumenter.setThreads( threads );
+            instrumenter.setChunkSize( chunkSize );
+            instrumenter.setNestedArchives( nestedArchives );
+            try
+            {
+                instrumenter.instrument( archive, archive, new File( emmaFolder, "coverage.em" ) );
+            }
+            catch ( IOException e )
+            {
+                throw new MojoExecutionException( "Unable to instrument " + archive, e );
+            }
+        }
+        return remaining.toArray( new String[remaining.size()] );
     }
 
     private String[] collectInstrumentationPath()
@@ -169,6 +300,8 @@ public class ArtifactInstrumenterMojo
 
         if ( jarSets != null && jarSets.length > 0 )
         {
+            List<FileSet> existingSets = new ArrayList<FileSet>();
+
             for ( FileSet fileSet : jarSets )
             {
                 if ( fileSet.getDirectory() == null )
@@ -181,9 +314,14 @@ public class ArtifactInstrumenterMojo
                 }
                 else
                 {
-                    instrPath.addAll( fileSet.scan( true, false ) );
+                    existingSets.add( fileSet );
                 }
             }
+
+            for ( Collection<String> paths : FileSet.scan( existingSets, true, false ) )
+            {
+                instrPath.addAll( paths );
+            }
         }
 
         if ( getLog().isDebugEnabled() )
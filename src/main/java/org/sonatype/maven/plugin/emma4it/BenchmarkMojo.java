@@ -0,0 +1,432 @@
+package org.sonatype.maven.plugin.emma4it;
+
+/*
+ * PUT YOUR LICENSE HEADER HERE.
+ */
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.jar.JarFile;
+
+import org.apache.maven.artifact.Artifact;
+import org.apache.maven.artifact.DependencyResolutionRequiredException;
+import org.apache.maven.artifact.factory.ArtifactFactory;
+import org.apache.maven.artifact.repository.ArtifactRepository;
+import org.apache.maven.artifact.resolver.AbstractArtifactResolutionException;
+import org.apache.maven.artifact.resolver.ArtifactResolver;
+import org.apache.maven.plugin.AbstractMojo;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.project.MavenProject;
+import org.codehaus.plexus.util.IOUtil;
+import org.sonatype.maven.plugin.emma4it.benchmark.BenchmarkRunner;
+
+/**
+ * Measures the runtime overhead of instrumented artifacts. A fixed workload is run in a fresh JVM against each of the
+ * compared artifacts, by default the original project artifact and its instrumented copy produced by
+ * <code>instrument-project-artifact</code>. The workload is a class on the test class path that either implements
+ * {@link Runnable} or has a static <code>main</code> method. Throughput, latency percentiles, the cold start time
+ * including class loading, the number of loaded classes and the retained heap are reported for each artifact along with
+ * the overhead relative to the first one.
+ *
+ * @goal benchmark
+ * @requiresDependencyResolution test
+ * @since 1.4
+ */
+public class BenchmarkMojo
+    extends AbstractMojo
+{
+
+    private static final String[] METRICS =
+        { "throughput", "p50", "p90", "p99", "max", "coldMillis", "loadedClasses", "heapBytes" };
+
+    private static final String[] COLUMNS =
+        { "ops/s", "p50 us", "p90 us", "p99 us", "max us", "cold ms", "classes", "heap KB" };
+
+    /**
+     * @component
+     */
+    private ArtifactFactory artifactFactory;
+
+    /**
+     * @component
+     */
+    private ArtifactResolver resolver;
+
+    /**
+     * @parameter expression="${localRepository}"
+     */
+    private ArtifactRepository localRepository;
+
+    /**
+     * @parameter expression="${project.remoteArtifactRepositories}"
+     */
+    private List<? extends ArtifactRepository> remoteRepositories;
+
+    /**
+     * @parameter expression="${project}"
+     * @required
+     */
+    private MavenProject project;
+
+    /**
+     * The fully qualified name of the workload class.
+     *
+     * @parameter expression="${emma4it.benchmark.workload}"
+     * @required
+     */
+    private String workload;
+
+    /**
+     * The arguments passed to the <code>main</code> method of the workload.
+     *
+     * @parameter
+     */
+    private String[] workloadArguments;
+
+    /**
+     * The artifacts to compare. Defaults to the project artifact and the instrumented project artifact in
+     * <code>${project.build.directory}/emma</code>. To compare instrumentation with and without <code>appendEmma</code>
+     * or with different filters, list a copy of each instrumented artifact here. Artifacts that contain
+     * instrumented classes but not the emma runtime get the emma jar added to their class path.
+     *
+     * @parameter
+     */
+    private File[] artifacts;
+
+    /**
+     * The number of workload invocations before measuring.
+     *
+     * @parameter expression="${emma4it.benchmark.warmup}" default-value="1000"
+     */
+    private int warmupIterations;
+
+    /**
+     * The number of measured workload invocations.
+     *
+     * @parameter expression="${emma4it.benchmark.iterations}" default-value="10000"
+     */
+    private int iterations;
+
+    /**
+     * The number of forked JVMs per artifact, the reported measurements are the medians across the forks.
+     *
+     * @parameter expression="${emma4it.benchmark.forks}" default-value="3"
+     */
+    private int forks;
+
+    /**
+     * The arguments for the forked JVMs, e.g. to fix the heap size for reproducible results.
+     *
+     * @parameter expression="${emma4it.benchmark.jvmArgs}" default-value="-Xms256m -Xmx256m"
+     */
+    private String jvmArgs;
+
+    /**
+     * The file to write the results to.
+     *
+     * @parameter default-value="${project.build.directory}/emma/benchmark.txt"
+     */
+    private File outputFile;
+
+    public void execute()
+        throws MojoExecutionException
+    {
+        File[] artifacts = this.artifacts;
+        if ( artifacts == null || artifacts.length <= 0 )
+        {
+            File projectFile = project.getArtifact().getFile();
+            if ( projectFile == null || !projectFile.isFile() )
+            {
+                throw new MojoExecutionException( "Unable to find project artifact file!" );
+            }
+            artifacts =
+                new File[] { projectFile, new File( new File( project.getBuild().getDirectory(), "emma" ),
+                                                    projectFile.getName() ) };
+        }
+
+        List<String> classPath = getClassPath();
+        File workDirectory = new File( outputFile.getParentFile(), "benchmark" );
+        workDirectory.mkdirs();
+
+        Map<File, Map<String, Double>> results = new LinkedHashMap<File, Map<String, Double>>();
+        for ( File artifact : artifacts )
+        {
+            if ( !artifact.isFile() )
+            {
+                throw new MojoExecutionException( "Missing artifact to benchmark " + artifact );
+            }
+
+            List<Map<String, Double>> runs = new ArrayList<Map<String, Double>>();
+            for ( int i = 0; i < Math.max( 1, forks ); i++ )
+            {
+                getLog().info( "Benchmarking " + artifact.getName() + " (fork " + ( i + 1 ) + ")" );
+                runs.add( run( artifact, classPath, workDirectory ) );
+            }
+            results.put( artifact, median( runs ) );
+        }
+
+        writeResults( results );
+    }
+
+    private List<String> getClassPath()
+        throws MojoExecutionException
+    {
+        List<String> classPath = new ArrayList<String>();
+        try
+        {
+            File outputDirectory = new File( project.getBuild().getOutputDirectory() );
+            for ( Object element : project.getTestClasspathElements() )
+            {
+                if ( !outputDirectory.equals( new File( element.toString() ) ) )
+                {
+                    classPath.add( element.toString() );
+                }
+            }
+        }
+        catch ( DependencyResolutionRequiredException e )
+        {
+            throw new MojoExecutionException( "Unable to resolve test class path", e );
+        }
+
+        try
+        {
+            File runnerFile =
+                new File( BenchmarkRunner.class.getProtectionDomain().getCodeSource().getLocation().toURI() );
+            classPath.add( runnerFile.getAbsolutePath() );
+        }
+        catch ( URISyntaxException e )
+        {
+            throw new MojoExecutionException( "Unable to locate benchmark runner", e );
+        }
+
+        return classPath;
+    }
+
+    private Map<String, Double> run( File artifact, List<String> classPath, File workDirectory )
+        throws MojoExecutionException
+    {
+        StringBuilder cp = new StringBuilder( artifact.getAbsolutePath() );
+        File emmaFile = needsEmma( artifact ) ? resolveEmma() : null;
+        if ( emmaFile != null )
+        {
+            cp.append( File.pathSeparatorChar ).append( emmaFile.getAbsolutePath() );
+        }
+        for ( String element : classPath )
+        {
+            cp.append( File.pathSeparatorChar ).append( element );
+        }
+
+        List<String> command = new ArrayList<String>();
+        command.add( new File( new File( System.getProperty( "java.home" ), "bin" ), "java" ).getAbsolutePath() );
+        if ( jvmArgs != null && jvmArgs.trim().length() > 0 )
+        {
+            command.addAll( Arrays.asList( jvmArgs.trim().split( "\\s+" ) ) );
+        }
+        command.add( "-Demma.coverage.out.file=" + new File( workDirectory, "coverage.ec" ).getAbsolutePath() );
+        command.add( "-cp" );
+        command.add( cp.toString() );
+        command.add( BenchmarkRunner.class.getName() );
+        command.add( workload );
+        command.add( String.valueOf( warmupIterations ) );
+        command.add( String.valueOf( iterations ) );
+        if ( workloadArguments != null )
+        {
+            command.addAll( Arrays.asList( workloadArguments ) );
+        }
+
+        getLog().debug( "Running " + command );
+
+        String result = null;
+        try
+        {
+            ProcessBuilder builder = new ProcessBuilder( command );
+            builder.directory( workDirectory );
+            builder.redirectErrorStream( true );
+            Process process = builder.start();
+
+            BufferedReader reader = new BufferedReader( new InputStreamReader( process.getInputStream() ) );
+            try
+            {
+                for ( String line = reader.readLine(); line != null; line = reader.readLine() )
+                {
+                    if ( line.startsWith( BenchmarkRunner.RESULT_PREFIX ) )
+                    {
+                        result = line.substring( BenchmarkRunner.RESULT_PREFIX.length() );
+                    }
+                    else
+                    {
+                        getLog().debug( line );
+                    }
+                }
+            }
+            finally
+            {
+                IOUtil.close( reader );
+            }
+
+            int exitCode = process.waitFor();
+            if ( exitCode != 0 || result == null )
+            {
+                throw new MojoExecutionException( "Benchmark of " + artifact + " failed with exit code " + exitCode
+                    + ", run with -X for the output of the workload" );
+            }
+        }
+        catch ( IOException e )
+        {
+            throw new MojoExecutionException( "Unable to run benchmark of " + artifact, e );
+        }
+        catch ( InterruptedException e )
+        {
+            throw new MojoExecutionException( "Interrupted while running benchmark of " + artifact, e );
+        }
+
+        Map<String, Double> values = new LinkedHashMap<String, Double>();
+        for ( String pair : result.trim().split( "\\s+" ) )
+        {
+            int eq = pair.indexOf( '=' );
+            values.put( pair.substring( 0, eq ), Double.valueOf( pair.substring( eq + 1 ) ) );
+        }
+        return values;
+    }
+
+    /**
+     * Determines whether the specified artifact holds instrumented classes but not the emma runtime they call.
+     */
+    private boolean needsEmma( File artifact )
+        throws MojoExecutionException
+    {
+        if ( artifact.equals( project.getArtifact().getFile() ) )
+        {
+            return false;
+        }
+        try
+        {
+            JarFile jar = new JarFile( artifact );
+            try
+            {
+                return jar.getJarEntry( RuntimeClosure.RUNTIME_CLASS + ".class" ) == null;
+            }
+            finally
+            {
+                jar.close();
+            }
+        }
+        catch ( IOException e )
+        {
+            throw new MojoExecutionException( "Unable to read " + artifact, e );
+        }
+    }
+
+    private File resolveEmma()
+        throws MojoExecutionException
+    {
+        Artifact emma = artifactFactory.createArtifact( "emma", "emma", "2.0.5312", "compile", "jar" );
+        try
+        {
+            resolver.resolve( emma, remoteRepositories, localRepository );
+        }
+        catch ( AbstractArtifactResolutionException e )
+        {
+            throw new MojoExecutionException( e.getMessage(), e );
+        }
+        return emma.getFile();
+    }
+
+    private static Map<String, Double> median( List<Map<String, Double>> runs )
+    {
+        Map<String, Double> median = new LinkedHashMap<String, Double>();
+        for ( String metric : METRICS )
+        {
+            double[] values = new double[runs.size()];
+            for ( int i = 0; i < values.length; i++ )
+            {
+                Double value = runs.get( i ).get( metric );
+                values[i] = ( value != null ) ? value.doubleValue() : 0;
+            }
+            Arrays.sort( values );
+            median.put( metric, Double.valueOf( values[values.length / 2] ) );
+        }
+        return median;
+    }
+
+    private void writeResults( Map<File, Map<String, Double>> results )
+        throws MojoExecutionException
+    {
+        StringBuilder header = new StringBuilder( String.format( "%-40s", "artifact" ) );
+        for ( String column : COLUMNS )
+        {
+            header.append( String.format( " %12s", column ) );
+        }
+
+        List<String> lines = new ArrayList<String>();
+        lines.add( header.toString() );
+
+        Map<String, Double> baseline = null;
+        for ( Map.Entry<File, Map<String, Double>> entry : results.entrySet() )
+        {
+            Map<String, Double> values = entry.getValue();
+
+            StringBuilder line = new StringBuilder( String.format( "%-40s", entry.getKey().getName() ) );
+            for ( String metric : METRICS )
+            {
+                double value = values.get( metric ).doubleValue();
+                line.append( String.format( " %12.1f", "heapBytes".equals( metric ) ? value / 1024 : value ) );
+            }
+            lines.add( line.toString() );
+
+            if ( baseline == null )
+            {
+                baseline = values;
+            }
+            else
+            {
+                line = new StringBuilder( String.format( "%-40s", "  overhead" ) );
+                for ( String metric : METRICS )
+                {
+                    line.append( String.format( " %+11.1f%%", overhead( baseline, values, metric ) ) );
+                }
+                lines.add( line.toString() );
+            }
+        }
+
+        for ( String line : lines )
+        {
+            getLog().info( line );
+        }
+
+        outputFile.getParentFile().mkdirs();
+        PrintWriter writer = null;
+        try
+        {
+            writer = new PrintWriter( outputFile, "UTF-8" );
+            for ( String line : lines )
+            {
+                writer.println( line );
+            }
+        }
+        catch ( IOException e )
+        {
+            throw new MojoExecutionException( "Unable to write benchmark results to " + outputFile, e );
+        }
+        finally
+        {
+            IOUtil.close( writer );
+        }
+    }
+
+    private static double overhead( Map<String, Double> baseline, Map<String, Double> values, String metric )
+    {
+        double base = baseline.get( metric ).doubleValue();
+        return ( base != 0 ) ? ( values.get( metric ).doubleValue() - base ) * 100 / base : 0;
+    }
+
+}
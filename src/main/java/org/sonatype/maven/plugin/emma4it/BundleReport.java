@@ -0,0 +1,288 @@
+package org.sonatype.maven.plugin.emma4it;
+
+/*
+ * PUT YOUR LICENSE HEADER HERE.
+ */
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.codehaus.plexus.util.IOUtil;
+
+import com.vladium.emma.data.ClassDescriptor;
+import com.vladium.emma.data.MethodDescriptor;
+
+/**
+ * Writes an HTML report that consists of a single-page viewer and a coverage bundle with one data chunk per package,
+ * i.e. the number of written files grows with the number of packages rather than the number of classes. The viewer
+ * initially loads only the index of the packages and fetches the chunk of a package when the package is opened. The
+ * index and the chunks are JSON documents wrapped into a call of a viewer function so that the viewer works from the
+ * local file system as well, where browsers refuse to fetch plain JSON files:
+ *
+ * <pre>
+ * data/index.js:
+ *   emma4it.index({"counters":[...],"packages":[{"name":...,"chunk":...,"counts":...},...],"totals":...})
+ * data/p/&lt;package&gt;.js:
+ *   emma4it.chunk("&lt;package&gt;",{"classes":[{"name":...,"source":...,"counts":...,"methods":[...]},...]})
+ * </pre>
+ *
+ * The chunks live in a directory of their own so that no package name can clash with the index. Counts are pairs of
+ * covered and total values in the order of {@link CoverageCounts#NAMES}.
+ */
+final class BundleReport
+{
+
+    /**
+     * The name of this report format.
+     */
+    static final String FORMAT = "bundle";
+
+    private static final String VIEWER = "bundle-viewer.html";
+
+    /**
+     * The name of the directory below the data directory that holds the package chunks.
+     */
+    private static final String CHUNKS = "p";
+
+    /**
+     * The version of the chunk layout, to be increased whenever the written chunks change.
+     */
+    private static final String LAYOUT = "bundle-3";
+
+    private final File outputDirectory;
+
+    /**
+     * Creates a new report writer.
+     *
+     * @param outputDirectory The directory to write the viewer and data bundle to, must not be {@code null}.
+     */
+    BundleReport( File outputDirectory )
+    {
+        this.outputDirectory = outputDirectory;
+    }
+
+    /**
+     * Writes the report for the specified model. Chunks of packages that no longer exist are deleted, chunks of
+     * packages whose {@link PackageDigests digest} did not change since the last run are kept as they are.
+     *
+     * @param model The coverage model to report, must not be {@code null}.
+     * @return The number of reported packages.
+     * @throws IOException If the report could not be written.
+     */
+    int write( CoverageModel model )
+        throws IOException
+    {
+        File dataDirectory = new File( outputDirectory, "data" );
+        File chunkDirectory = new File( dataDirectory, CHUNKS );
+        chunkDirectory.mkdirs();
+
+        Map<String, List<ClassDescriptor>> packages = model.packages();
+        PackageDigests digests = new PackageDigests( new File( dataDirectory, "digests.properties" ), LAYOUT );
+
+        CoverageCounts totals = new CoverageCounts();
+        StringBuilder index = new StringBuilder( 256 + packages.size() * 128 );
+        index.append( "{\"counters\":[" );
+        for ( int i = 0; i < CoverageCounts.NAMES.length; i++ )
+        {
+            index.append( ( i > 0 ) ? "," : "" ).append( '"' ).append( CoverageCounts.NAMES[i] ).append( '"' );
+        }
+        index.append( "],\"packages\":[" );
+
+        Set<String> chunks = new HashSet<String>();
+        for ( Map.Entry<String, List<ClassDescriptor>> entry : packages.entrySet() )
+        {
+            String name = entry.getKey();
+            String chunk = getChunkName( name );
+            chunks.add( chunk );
+
+            CoverageCounts counts;
+            File chunkFile = new File( chunkDirectory, chunk );
+            if ( digests.update( name, entry.getValue(), model, null ) && chunkFile.isFile() )
+            {
+                counts = new CoverageCounts();
+                for ( ClassDescriptor cls : entry.getValue() )
+                {
+                    counts.add( model.getCounts( cls ) );
+                }
+            }
+            else
+            {
+                StringBuilder data = new StringBuilder( 4096 );
+                counts = appendPackage( data, model, entry.getValue() );
+                writeScript( chunkFile, "emma4it.chunk(\"" + Escaping.json( name ) + "\",", data );
+            }
+            totals.add( counts );
+
+            index.append( ( chunks.size() > 1 ) ? "," : "" );
+            index.append( "{\"name\":\"" ).append( Escaping.json( name ) );
+            index.append( "\",\"chunk\":\"data/" + CHUNKS + "/" ).append( Escaping.json( chunk ) );
+            index.append( "\",\"counts\":" );
+            appendCounts( index, counts );
+            index.append( '}' );
+        }
+
+        index.append( "],\"totals\":" );
+        appendCounts( index, totals );
+        index.append( '}' );
+        writeScript( new File( dataDirectory, "index.js" ), "emma4it.index(", index );
+
+        deleteStaleChunks( chunkDirectory, chunks );
+        // chunks of earlier versions were written next to the index
+        deleteStaleChunks( dataDirectory, Collections.singleton( "index.js" ) );
+        digests.save();
+        copyViewer( new File( outputDirectory, "index.html" ) );
+
+        return packages.size();
+    }
+
+    /**
+     * Gets the file name of the chunk for the specified package. Package names are valid file names already, the
+     * default package is mapped to a Java keyword which cannot clash with another package.
+     */
+    static String getChunkName( String packageName )
+    {
+        return ( ( packageName.length() > 0 ) ? packageName : "default" ) + ".js";
+    }
+
+    private static CoverageCounts appendPackage( StringBuilder buffer, CoverageModel model,
+                                                 List<ClassDescriptor> classes )
+    {
+        CoverageCounts packageCounts = new CoverageCounts();
+        buffer.append( "{\"classes\":[" );
+        for ( int c = 0; c < classes.size(); c++ )
+        {
+            ClassDescriptor cls = classes.get( c );
+            CoverageCounts counts = model.getCounts( cls );
+            packageCounts.add( counts );
+
+            buffer.append( ( c > 0 ) ? "," : "" );
+            buffer.append( "{\"name\":\"" ).append( Escaping.json( cls.getName() ) ).append( '"' );
+            if ( cls.getSrcFileName() != null )
+            {
+                buffer.append( ",\"source\":\"" ).append( Escaping.json( cls.getSrcFileName() ) ).append( '"' );
+            }
+            buffer.append( ",\"counts\":" );
+            appendCounts( buffer, counts );
+            buffer.append( ",\"methods\":[" );
+            appendMethods( buffer, cls, model.getCoverage( cls ) );
+            buffer.append( "]}" );
+        }
+        buffer.append( "]}" );
+        return packageCounts;
+    }
+
+    /**
+     * Appends the methods of a class as <code>[name, descriptor, first line, covered blocks, total blocks]</code>.
+     */
+    private static void appendMethods( StringBuilder buffer, ClassDescriptor cls, boolean[][] coverage )
+    {
+        MethodDescriptor[] methods = cls.getMethods();
+        boolean first = true;
+        for ( int m = 0; m < methods.length; m++ )
+        {
+            int[] blockSizes = methods[m].getBlockSizes();
+            if ( blockSizes == null )
+            {
+                continue;
+            }
+            boolean[] blocks = ( coverage != null && m < coverage.length ) ? coverage[m] : null;
+            int covered = 0;
+            int total = 0;
+            for ( int b = 0; b < blockSizes.length; b++ )
+            {
+                total += blockSizes[b];
+                if ( blocks != null && b < blocks.length && blocks[b] )
+                {
+                    covered += blockSizes[b];
+                }
+            }
+
+            buffer.append( first ? "" : "," );
+            first = false;
+            buffer.append( "[\"" ).append( Escaping.json( methods[m].getName() ) );
+            buffer.append( "\",\"" ).append( Escaping.json( methods[m].getDescriptor() ) );
+            buffer.append( "\"," ).append( methods[m].hasLineNumberInfo() ? methods[m].getFirstLine() : -1 );
+            buffer.append( ',' ).append( covered ).append( ',' ).append( total ).append( ']' );
+        }
+    }
+
+    private static void appendCounts( StringBuilder buffer, CoverageCounts counts )
+    {
+        buffer.append( '[' );
+        for ( int i = 0; i < CoverageCounts.NAMES.length; i++ )
+        {
+            buffer.append( ( i > 0 ) ? ",[" : "[" );
+            buffer.append( counts.getCovered( i ) ).append( ',' ).append( counts.getTotal( i ) ).append( ']' );
+        }
+        buffer.append( ']' );
+    }
+
+    private static void writeScript( File file, String prefix, CharSequence json )
+        throws IOException
+    {
+        Writer writer = new BufferedWriter( new OutputStreamWriter( new FileOutputStream( file ), "UTF-8" ) );
+        try
+        {
+            writer.write( prefix );
+            writer.append( json );
+            writer.write( ");\n" );
+        }
+        finally
+        {
+            writer.close();
+        }
+    }
+
+    private static void deleteStaleChunks( File directory, Set<String> chunks )
+    {
+        File[] files = directory.listFiles();
+        if ( files != null )
+        {
+            for ( File file : files )
+            {
+                if ( file.getName().endsWith( ".js" ) && !chunks.contains( file.getName() ) )
+                {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    private static void copyViewer( File target )
+        throws IOException
+    {
+        InputStream is = BundleReport.class.getResourceAsStream( VIEWER );
+        if ( is == null )
+        {
+            throw new IOException( "Missing resource " + VIEWER );
+        }
+        try
+        {
+            OutputStream os = new FileOutputStream( target );
+            try
+            {
+                IOUtil.copy( is, os );
+            }
+            finally
+            {
+                os.close();
+            }
+        }
+        finally
+        {
+            is.close();
+        }
+    }
+
+}
@@ -0,0 +1,200 @@
+package org.sonatype.maven.plugin.emma4it;
+
+/*
+ * PUT YOUR LICENSE HEADER HERE.
+ */
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.codehaus.plexus.util.IOUtil;
+
+import com.vladium.emma.data.ClassDescriptor;
+
+/**
+ * The set of source files touched by a change, used to restrict the coverage reports to the affected classes. Paths are
+ * matched by suffix so that a change list relative to the repository root matches the package-relative source paths
+ * recorded in the metadata.
+ */
+class ChangeSet
+{
+
+    private final Set<String> suffixes = new HashSet<String>();
+
+    private final int size;
+
+    /**
+     * Creates a new change set from the specified paths.
+     *
+     * @param paths The paths of the changed files, must not be {@code null}.
+     */
+    ChangeSet( Collection<String> paths )
+    {
+        int count = 0;
+        for ( String path : paths )
+        {
+            String normalized = path.trim().replace( '\\', '/' );
+            if ( normalized.length() <= 0 )
+            {
+                continue;
+            }
+            count++;
+            suffixes.add( normalized );
+            for ( int i = normalized.indexOf( '/' ); i >= 0; i = normalized.indexOf( '/', i + 1 ) )
+            {
+                suffixes.add( normalized.substring( i + 1 ) );
+            }
+        }
+        size = count;
+    }
+
+    /**
+     * Reads a change set from a text file that lists one changed path per line.
+     *
+     * @param file The file to read, must not be {@code null}.
+     * @return The change set, never {@code null}.
+     * @throws IOException If the file could not be read.
+     */
+    static ChangeSet fromFile( File file )
+        throws IOException
+    {
+        InputStream is = new FileInputStream( file );
+        try
+        {
+            return new ChangeSet( readLines( is ) );
+        }
+        finally
+        {
+            IOUtil.close( is );
+        }
+    }
+
+    /**
+     * Determines the change set by asking git for the files that differ between the specified baseline and the working
+     * tree, including untracked files that are not ignored.
+     *
+     * @param directory The working directory of the git repository, must not be {@code null}.
+     * @param baseline The baseline revision, e.g. a branch name or commit id, must not be {@code null}.
+     * @return The change set, never {@code null}.
+     * @throws IOException If git could not be executed or failed.
+     */
+    static ChangeSet fromBaseline( File directory, String baseline )
+        throws IOException
+    {
+        List<String> lines = git( directory, "diff", "--name-only", baseline );
+        lines.addAll( git( directory, "ls-files", "--others", "--exclude-standard" ) );
+        return new ChangeSet( lines );
+    }
+
+    private static List<String> git( File directory, String... args )
+        throws IOException
+    {
+        List<String> command = new ArrayList<String>();
+        command.add( "git" );
+        command.addAll( Arrays.asList( args ) );
+        ProcessBuilder builder = new ProcessBuilder( command );
+        builder.directory( directory );
+        builder.redirectErrorStream( true );
+
+        Process process = builder.start();
+        List<String> lines;
+        try
+        {
+            process.getOutputStream().close();
+            lines = readLines( process.getInputStream() );
+            int exitCode = process.waitFor();
+            if ( exitCode != 0 )
+            {
+                throw new IOException( command + " failed with exit code " + exitCode + ": " + lines );
+            }
+        }
+        catch ( InterruptedException e )
+        {
+            throw (IOException) new IOException( "Interrupted while waiting for git" ).initCause( e );
+        }
+        finally
+        {
+            process.destroy();
+        }
+        return lines;
+    }
+
+    private static List<String> readLines( InputStream is )
+        throws IOException
+    {
+        List<String> lines = new ArrayList<String>();
+        BufferedReader reader = new BufferedReader( new InputStreamReader( is, "UTF-8" ) );
+        for ( String line = reader.readLine(); line != null; line = reader.readLine() )
+        {
+            lines.add( line );
+        }
+        return lines;
+    }
+
+    /**
+     * Gets the number of changed files.
+     *
+     * @return The number of changed files.
+     */
+    int size()
+    {
+        return size;
+    }
+
+    /**
+     * Determines whether the source file of the specified class has been changed.
+     *
+     * @param cls The class descriptor, must not be {@code null}.
+     * @return {@code true} if the class is affected by the change, {@code false} otherwise.
+     */
+    boolean contains( ClassDescriptor cls )
+    {
+        return suffixes.contains( getSourcePath( cls ) );
+    }
+
+    /**
+     * Determines whether the specified package-relative source path has been changed.
+     *
+     * @param sourcePath The source path using forward slashes, e.g. <code>org/foo/Bar.java</code>.
+     * @return {@code true} if the file is affected by the change, {@code false} otherwise.
+     */
+    boolean contains( String sourcePath )
+    {
+        return suffixes.contains( sourcePath );
+    }
+
+    /**
+     * Gets the package-relative path of the source file that declares the specified class. If the metadata lacks source
+     * file information, the path is derived from the name of the outermost class.
+     *
+     * @param cls The class descriptor, must not be {@code null}.
+     * @return The source path using forward slashes, e.g. <code>org/foo/Bar.java</code>.
+     */
+    static String getSourcePath( ClassDescriptor cls )
+    {
+        String fileName = cls.getSrcFileName();
+        if ( fileName == null )
+        {
+            String name = cls.getName();
+            int dollar = name.indexOf( '$' );
+            fileName = ( ( dollar > 0 ) ? name.substring( 0, dollar ) : name ) + ".java";
+        }
+        String packageName = cls.getPackageVMName();
+        if ( packageName == null || packageName.length() <= 0 )
+        {
+            return fileName;
+        }
+        return packageName + '/' + fileName;
+    }
+
+}
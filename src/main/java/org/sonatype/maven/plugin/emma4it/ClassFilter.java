@@ -0,0 +1,234 @@
+package org.sonatype.maven.plugin.emma4it;
+
+/*
+ * PUT YOUR LICENSE HEADER HERE.
+ */
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Decides whether a class is included by emma's inclusion/exclusion filters, e.g. <code>com.foo.*</code> or
+ * <code>-com.foo.test.*</code>. The literal prefix of every pattern (up to its first wildcard) is stored in a prefix
+ * trie, so a class name is matched by a single walk over its characters and only the patterns whose prefix matched need
+ * to evaluate their wildcard remainder. This allows to decide on archive entries by their name alone, before any
+ * bytecode is inflated or parsed.
+ */
+final class ClassFilter
+{
+
+    private final Node includes = new Node();
+
+    private final Node excludes = new Node();
+
+    private final boolean includeAll;
+
+    /**
+     * Creates a new filter.
+     *
+     * @param filters The emma filters, i.e. class name patterns that are prefixed with <code>-</code> to exclude and
+     *            optionally with <code>+</code> to include classes, may be {@code null} to include all classes.
+     */
+    ClassFilter( String[] filters )
+    {
+        int inclusions = 0;
+        if ( filters != null )
+        {
+            for ( String filter : filters )
+            {
+                for ( String spec : filter.split( "[,\\s]+" ) )
+                {
+                    if ( spec.length() <= 0 )
+                    {
+                        continue;
+                    }
+                    if ( spec.charAt( 0 ) == '-' )
+                    {
+                        add( excludes, spec.substring( 1 ) );
+                    }
+                    else
+                    {
+                        add( includes, ( spec.charAt( 0 ) == '+' ) ? spec.substring( 1 ) : spec );
+                        inclusions++;
+                    }
+                }
+            }
+        }
+        includeAll = inclusions <= 0;
+    }
+
+    private static void add( Node root, String pattern )
+    {
+        int wildcard = indexOfWildcard( pattern );
+        String prefix = ( wildcard < 0 ) ? pattern : pattern.substring( 0, wildcard );
+        String suffix = ( wildcard < 0 ) ? "" : pattern.substring( wildcard );
+
+        Node node = root;
+        for ( int i = 0; i < prefix.length(); i++ )
+        {
+            node = node.getOrCreate( prefix.charAt( i ) );
+        }
+        node.addSuffix( suffix );
+    }
+
+    private static int indexOfWildcard( String pattern )
+    {
+        for ( int i = 0; i < pattern.length(); i++ )
+        {
+            char c = pattern.charAt( i );
+            if ( c == '*' || c == '?' )
+            {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Determines whether the specified class is included by this filter.
+     *
+     * @param className The fully qualified (dotted) name of the class, must not be {@code null}.
+     * @return {@code true} if the class should be instrumented, {@code false} otherwise.
+     */
+    boolean isIncluded( String className )
+    {
+        return ( includeAll || matches( includes, className ) ) && !matches( excludes, className );
+    }
+
+    /**
+     * Determines whether the class stored in the specified archive entry is included by this filter.
+     *
+     * @param entryName The name of the archive entry, e.g. <code>com/foo/Bar.class</code>, must not be {@code null}.
+     * @return {@code true} if the class should be instrumented, {@code false} otherwise.
+     */
+    boolean isIncludedEntry( String entryName )
+    {
+        return isIncluded( ArchiveInstrumenter.getClassVMName( entryName ).replace( '/', '.' ) );
+    }
+
+    private static boolean matches( Node root, String name )
+    {
+        Node node = root;
+        for ( int i = 0; node != null; i++ )
+        {
+            if ( node.matches( name, i ) )
+            {
+                return true;
+            }
+            if ( i >= name.length() )
+            {
+                break;
+            }
+            node = node.get( name.charAt( i ) );
+        }
+        return false;
+    }
+
+    /**
+     * Matches the specified text against a wildcard pattern supporting <code>*</code> and <code>?</code>.
+     */
+    static boolean matchWildcard( String pattern, String text, int offset )
+    {
+        int p = 0;
+        int t = offset;
+        int star = -1;
+        int mark = -1;
+        while ( t < text.length() )
+        {
+            if ( p < pattern.length() && ( pattern.charAt( p ) == '?' || pattern.charAt( p ) == text.charAt( t ) ) )
+            {
+                p++;
+                t++;
+            }
+            else if ( p < pattern.length() && pattern.charAt( p ) == '*' )
+            {
+                star = p++;
+                mark = t;
+            }
+            else if ( star >= 0 )
+            {
+                p = star + 1;
+                t = ++mark;
+            }
+            else
+            {
+                return false;
+            }
+        }
+        while ( p < pattern.length() && pattern.charAt( p ) == '*' )
+        {
+            p++;
+        }
+        return p >= pattern.length();
+    }
+
+    /**
+     * A node of the prefix trie.
+     */
+    private static final class Node
+    {
+
+        private Map<Character, Node> children;
+
+        private List<String> suffixes;
+
+        Node get( char c )
+        {
+            return ( children != null ) ? children.get( Character.valueOf( c ) ) : null;
+        }
+
+        Node getOrCreate( char c )
+        {
+            if ( children == null )
+            {
+                children = new HashMap<Character, Node>();
+            }
+            Node child = children.get( Character.valueOf( c ) );
+            if ( child == null )
+            {
+                child = new Node();
+                children.put( Character.valueOf( c ), child );
+            }
+            return child;
+        }
+
+        void addSuffix( String suffix )
+        {
+            if ( suffixes == null )
+            {
+                suffixes = new ArrayList<String>( 2 );
+            }
+            suffixes.add( suffix );
+        }
+
+        /**
+         * Tests whether any pattern ending at this node matches the remainder of the name.
+         */
+        boolean matches( String name, int offset )
+        {
+            if ( suffixes == null )
+            {
+                return false;
+            }
+            for ( String suffix : suffixes )
+            {
+                if ( suffix.length() <= 0 )
+                {
+                    if ( offset >= name.length() )
+                    {
+                        return true;
+                    }
+                }
+                else if ( "*".equals( suffix ) || matchWildcard( suffix, name, offset ) )
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+    }
+
+}
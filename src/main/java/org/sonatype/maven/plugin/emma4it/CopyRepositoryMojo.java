@@ -147,6 +147,7 @@ public class CopyRepositoryMojo
     }
 
     private void instrument( File file )
+        throws MojoExecutionException
     {
         InstrProcessor.OutMode outMode = InstrProcessor.OutMode.nameToMode( "overwrite" );
 
@@ -163,12 +164,18 @@ public class CopyRepositoryMojo
         processor.setInclExclFilter( null );
         processor.setOutMode( outMode );
         processor.setInstrOutDir( null );
-        processor.setMetaOutFile( new File( emmaFolder, "coverage.em" ).getAbsolutePath() );
-        processor.setMetaOutMerge( Boolean.TRUE );
         XProperties properties = new XProperties();
         processor.setPropertyOverrides( properties );
 
-        processor.run();
+        File metaOutFile = new File( emmaFolder, "coverage.em" );
+        try
+        {
+            MetadataStore.instrument( processor, metaOutFile );
+        }
+        catch ( IOException e )
+        {
+            throw new MojoExecutionException( "Unable to write metadata to " + metaOutFile, e );
+        }
     }
 
     private File copy( Artifact artifact )
@@ -0,0 +1,270 @@
+package org.sonatype.maven.plugin.emma4it;
+
+/*
+ * PUT YOUR LICENSE HEADER HERE.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.maven.plugin.AbstractMojo;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.MojoFailureException;
+
+import com.vladium.emma.data.ClassDescriptor;
+
+/**
+ * Checks the previously collected coverage data against minimum coverage ratios. The ratios are computed directly from
+ * the offline metadata and runtime coverage in a single pass over the classes, no report files are written.
+ *
+ * @goal check
+ * @phase verify
+ * @since 1.4
+ */
+public class CoverageCheckMojo
+    extends AbstractMojo
+{
+
+    /**
+     * The project's base directory.
+     *
+     * @parameter default-value="${basedir}"
+     * @readonly
+     */
+    private File baseDirectory;
+
+    /**
+     * The project's build directory.
+     *
+     * @parameter default-value="${project.build.directory}"
+     * @readonly
+     */
+    private File buildDirectory;
+
+    /**
+     * The offline metadata and runtime coverage files to check. Defaults to all <code>*.ec</code>, <code>*.ecz</code>,
+     * <code>*.em</code> and <code>*.es</code> files within the project base directory and within any subdirectory of
+     * the build directory.
+     *
+     * @parameter
+     */
+    private FileSet[] dataSets;
+
+    /**
+     * The minimum coverage percentages for the whole project, given as a comma-separated list of
+     * <code>metric:percentage</code> pairs like <code>class:100,method:80,block:70</code>. Supported metrics are
+     * <code>class</code>, <code>method</code> and <code>block</code>.
+     *
+     * @parameter expression="${emma4it.check.metrics}"
+     */
+    private String metrics;
+
+    /**
+     * The minimum coverage percentages for each package, using the same syntax as {@link #metrics}.
+     *
+     * @parameter expression="${emma4it.check.packageMetrics}"
+     */
+    private String packageMetrics;
+
+    /**
+     * The minimum coverage percentages for each class, using the same syntax as {@link #metrics}.
+     *
+     * @parameter expression="${emma4it.check.classMetrics}"
+     */
+    private String classMetrics;
+
+    /**
+     * Whether to fail the build if any minimum coverage is not met. If <code>false</code>, violations are only logged.
+     *
+     * @parameter expression="${emma4it.check.haltOnFailure}" default-value="true"
+     */
+    private boolean haltOnFailure;
+
+    /**
+     * Whether to skip the coverage check.
+     *
+     * @parameter expression="${emma4it.check.skip}" default-value="false"
+     */
+    private boolean skip;
+
+    public void execute()
+        throws MojoExecutionException, MojoFailureException
+    {
+        if ( skip )
+        {
+            getLog().info( "Skipping coverage check" );
+            return;
+        }
+
+        long[] totalLimits = parseMetrics( metrics );
+        long[] packageLimits = parseMetrics( packageMetrics );
+        long[] classLimits = parseMetrics( classMetrics );
+
+        CoverageModel model;
+        try
+        {
+            model = CoverageModel.load( collectDataFiles() );
+        }
+        catch ( IOException e )
+        {
+            throw new MojoExecutionException( "Unable to load coverage data", e );
+        }
+
+        if ( model.getMetaData() == null )
+        {
+            throw new MojoExecutionException( "No coverage metadata found, did you instrument any classes?" );
+        }
+
+        int violations = 0;
+
+        CoverageCounts total = new CoverageCounts();
+        Map<String, CoverageCounts> packages = new TreeMap<String, CoverageCounts>();
+
+        for ( Iterator<ClassDescriptor> it = model.classes(); it.hasNext(); )
+        {
+            ClassDescriptor cls = it.next();
+            CoverageCounts counts = model.getCounts( cls );
+
+            total.add( counts );
+
+            String packageName = cls.getPackageVMName().replace( '/', '.' );
+            CoverageCounts packageCounts = packages.get( packageName );
+            if ( packageCounts == null )
+            {
+                packageCounts = new CoverageCounts();
+                packages.put( packageName, packageCounts );
+            }
+            packageCounts.add( counts );
+
+            violations += check( "class " + cls.getClassVMName().replace( '/', '.' ), counts, classLimits );
+        }
+
+        for ( Map.Entry<String, CoverageCounts> entry : packages.entrySet() )
+        {
+            String packageName = entry.getKey();
+            violations +=
+                check( "package " + ( ( packageName.length() > 0 ) ? packageName : "<default>" ), entry.getValue(),
+                       packageLimits );
+        }
+
+        violations += check( "project", total, totalLimits );
+
+        for ( int i = 0; i < CoverageCounts.NAMES.length; i++ )
+        {
+            getLog().info( "Overall " + CoverageCounts.NAMES[i] + " coverage: " + format( total, i ) );
+        }
+
+        if ( violations > 0 )
+        {
+            String msg = "Coverage check failed, " + violations + " minimum coverage ratios not met";
+            if ( haltOnFailure )
+            {
+                throw new MojoFailureException( msg );
+            }
+            getLog().warn( msg );
+        }
+    }
+
+    /**
+     * Checks the counters against the limits, given in hundredths of a percent. The ratios are compared in integer
+     * arithmetic so that e.g. 7 of 100 covered blocks always meet a limit of 7%.
+     *
+     * @param item The description of the checked item for the log, must not be {@code null}.
+     * @param counts The counters of the item, must not be {@code null}.
+     * @param limits The limits as returned by {@link #parseMetrics(String)}, must not be {@code null}.
+     * @return The number of unmet limits.
+     */
+    int check( String item, CoverageCounts counts, long[] limits )
+    {
+        int violations = 0;
+        for ( int i = 0; i < limits.length; i++ )
+        {
+            if ( limits[i] >= 0 && counts.getCovered( i ) * 10000L < limits[i] * counts.getTotal( i ) )
+            {
+                getLog().warn( "Insufficient " + CoverageCounts.NAMES[i] + " coverage for " + item + ": "
+                    + format( counts, i ) + ", required " + ( limits[i] / 100.0 ) + "%" );
+                violations++;
+            }
+        }
+        return violations;
+    }
+
+    private static String format( CoverageCounts counts, int type )
+    {
+        return ( Math.floor( counts.getRatio( type ) * 1000 ) / 10 ) + "% (" + counts.getCovered( type ) + "/"
+            + counts.getTotal( type ) + ")";
+    }
+
+    /**
+     * Parses the specified minimum coverage percentages.
+     *
+     * @param spec The comma-separated <code>metric:percentage</code> pairs, may be {@code null}.
+     * @return The limits in hundredths of a percent, indexed by counter, {@code -1} for metrics without a limit.
+     * @throws MojoExecutionException If a metric is unknown or a percentage is invalid.
+     */
+    static long[] parseMetrics( String spec )
+        throws MojoExecutionException
+    {
+        long[] limits = new long[CoverageCounts.NAMES.length];
+        Arrays.fill( limits, -1 );
+
+        if ( spec == null )
+        {
+            return limits;
+        }
+
+        for ( String metric : spec.split( "," ) )
+        {
+            metric = metric.trim();
+            if ( metric.length() <= 0 )
+            {
+                continue;
+            }
+
+            int colon = metric.indexOf( ':' );
+            int type = CoverageCounts.indexOf( ( colon > 0 ) ? metric.substring( 0, colon ).trim() : metric );
+            if ( type < 0 )
+            {
+                throw new MojoExecutionException( "Unsupported coverage metric: " + metric );
+            }
+
+            try
+            {
+                limits[type] = Math.round( Double.parseDouble( metric.substring( colon + 1 ).trim() ) * 100 );
+            }
+            catch ( NumberFormatException e )
+            {
+                throw new MojoExecutionException( "Invalid coverage percentage: " + metric, e );
+            }
+        }
+
+        return limits;
+    }
+
+    private List<File> collectDataFiles()
+        throws MojoExecutionException
+    {
+        FileSet[] dataSets = this.dataSets;
+
+        if ( dataSets == null || dataSets.length <= 0 )
+        {
+            dataSets = DataSets.getDefaults( baseDirectory, buildDirectory );
+        }
+
+        List<File> dataFiles = new ArrayList<File>();
+
+        for ( String path : DataSets.collect( dataSets, getLog() ) )
+        {
+            dataFiles.add( new File( path ) );
+        }
+
+        return dataFiles;
+    }
+
+}
@@ -0,0 +1,438 @@
+package org.sonatype.maven.plugin.emma4it;
+
+/*
+ * PUT YOUR LICENSE HEADER HERE.
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.maven.plugin.logging.Log;
+import org.codehaus.plexus.util.IOUtil;
+import org.sonatype.maven.plugin.emma4it.agent.CollectorProtocol;
+import org.sonatype.maven.plugin.emma4it.agent.CompactCoverage;
+
+import com.vladium.emma.data.ClassDescriptor;
+import com.vladium.emma.data.DataFactory;
+import com.vladium.emma.data.ICoverageData;
+import com.vladium.emma.data.IMetaData;
+
+/**
+ * Collects coverage snapshots pushed by agents of running JVMs over a TCP socket on the loopback interface. Each
+ * snapshot is compared with the coverage collected so far and only classes with newly covered blocks (and classes
+ * without known metadata) are appended to the coverage (and metadata) file, so the files stay current while the JVMs
+ * keep running. The collectors are registered by port for the lifetime of the plugin class loader, so that one goal can
+ * start a collector and another goal can stop it.
+ */
+final class CoverageCollector
+    implements Runnable
+{
+
+    private static final Map<Integer, CoverageCollector> RUNNING = new ConcurrentHashMap<Integer, CoverageCollector>();
+
+    private final ServerSocket server;
+
+    private final File metadataFile;
+
+    private final File coverageFile;
+
+    private final Log log;
+
+    private final List<Connection> connections = new ArrayList<Connection>();
+
+    private final Map<String, ICoverageData.DataHolder> collected = new HashMap<String, ICoverageData.DataHolder>();
+
+    private final Set<String> knownClasses = new HashSet<String>();
+
+    private CoverageCollector( ServerSocket server, File metadataFile, File coverageFile, Log log )
+    {
+        this.server = server;
+        this.metadataFile = metadataFile;
+        this.coverageFile = coverageFile;
+        this.log = log;
+    }
+
+    /**
+     * Starts a new collector.
+     *
+     * @param port The local port to listen on.
+     * @param metadataFile The metadata file to merge the metadata sent by agents into, must not be {@code null}.
+     * @param coverageFile The coverage file to merge the snapshots into, must not be {@code null}.
+     * @param log The log to use, must not be {@code null}.
+     * @return The started collector, never {@code null}.
+     * @throws IOException If the collector could not listen on the port.
+     */
+    static synchronized CoverageCollector start( int port, File metadataFile, File coverageFile, Log log )
+        throws IOException
+    {
+        if ( RUNNING.containsKey( Integer.valueOf( port ) ) )
+        {
+            throw new IOException( "A coverage collector is already running on port " + port );
+        }
+
+        ServerSocket server = new ServerSocket( port, 50, InetAddress.getByName( "127.0.0.1" ) );
+        CoverageCollector collector = new CoverageCollector( server, metadataFile, coverageFile, log );
+        RUNNING.put( Integer.valueOf( port ), collector );
+
+        Thread thread = new Thread( collector, "emma4it-collector-" + port );
+        thread.setDaemon( true );
+        thread.start();
+
+        return collector;
+    }
+
+    /**
+     * Gets the collector running on the specified port.
+     *
+     * @param port The port of the collector.
+     * @return The collector or {@code null} if none is running on the port.
+     */
+    static CoverageCollector get( int port )
+    {
+        return RUNNING.get( Integer.valueOf( port ) );
+    }
+
+    public void run()
+    {
+        while ( !server.isClosed() )
+        {
+            try
+            {
+                Connection connection = new Connection( server.accept() );
+                synchronized ( connections )
+                {
+                    connections.add( connection );
+                }
+                connection.start();
+            }
+            catch ( IOException e )
+            {
+                if ( !server.isClosed() )
+                {
+                    log.warn( "Coverage collector failed to accept connection: " + e.getMessage() );
+                }
+            }
+        }
+    }
+
+    /**
+     * Requests a snapshot from every connected agent and waits for the replies.
+     *
+     * @param timeout The maximum time in milliseconds to wait for the replies.
+     * @return The number of agents that replied in time.
+     */
+    int requestDumps( long timeout )
+    {
+        List<Connection> pending = new ArrayList<Connection>();
+        synchronized ( connections )
+        {
+            pending.addAll( connections );
+        }
+
+        Map<Connection, Integer> counts = new HashMap<Connection, Integer>();
+        for ( Iterator<Connection> it = pending.iterator(); it.hasNext(); )
+        {
+            Connection connection = it.next();
+            counts.put( connection, Integer.valueOf( connection.getDumps() ) );
+            if ( !connection.requestDump() )
+            {
+                it.remove();
+            }
+        }
+
+        int replies = 0;
+        long deadline = System.currentTimeMillis() + timeout;
+        for ( Connection connection : pending )
+        {
+            if ( connection.awaitDump( counts.get( connection ).intValue(), deadline ) )
+            {
+                replies++;
+            }
+        }
+        return replies;
+    }
+
+    /**
+     * Stops this collector and disconnects all agents.
+     */
+    void stop()
+    {
+        RUNNING.remove( Integer.valueOf( server.getLocalPort() ) );
+        try
+        {
+            server.close();
+        }
+        catch ( IOException e )
+        {
+            // ignore
+        }
+        synchronized ( connections )
+        {
+            for ( Connection connection : connections )
+            {
+                connection.close();
+            }
+            connections.clear();
+        }
+    }
+
+    /**
+     * Merges a snapshot into the metadata and coverage files.
+     */
+    synchronized void merge( byte[] meta, byte[] coverage )
+        throws IOException
+    {
+        if ( meta.length > 0 )
+        {
+            File tmp = File.createTempFile( "snapshot-", ".tmp", coverageFile.getParentFile() );
+            try
+            {
+                OutputStream os = new FileOutputStream( tmp );
+                try
+                {
+                    os.write( meta );
+                }
+                finally
+                {
+                    IOUtil.close( os );
+                }
+                mergeMetaData( DataFactory.loadMetaData( tmp ) );
+            }
+            finally
+            {
+                tmp.delete();
+            }
+        }
+
+        ICoverageData delta = DataFactory.newCoverageData();
+        Map<String, ICoverageData.DataHolder> snapshot =
+            CompactCoverage.readClasses( new ByteArrayInputStream( coverage ) );
+        for ( Map.Entry<String, ICoverageData.DataHolder> entry : snapshot.entrySet() )
+        {
+            ICoverageData.DataHolder current = entry.getValue();
+            ICoverageData.DataHolder previous = collected.get( entry.getKey() );
+            if ( previous == null || previous.m_stamp != current.m_stamp )
+            {
+                collected.put( entry.getKey(), current );
+                delta.addClass( current.m_coverage, entry.getKey(), current.m_stamp );
+            }
+            else if ( or( previous.m_coverage, current.m_coverage ) )
+            {
+                delta.addClass( previous.m_coverage, entry.getKey(), previous.m_stamp );
+            }
+        }
+
+        if ( !delta.isEmpty() )
+        {
+            log.debug( "Collected coverage of " + delta.size() + " classes" );
+            MetadataStore.merge( delta, coverageFile );
+        }
+    }
+
+    @SuppressWarnings( "unchecked" )
+    private void mergeMetaData( IMetaData metadata )
+        throws IOException
+    {
+        if ( metadata == null )
+        {
+            return;
+        }
+
+        IMetaData delta = DataFactory.newMetaData( metadata.getOptions() );
+        for ( Iterator<ClassDescriptor> it = metadata.iterator(); it.hasNext(); )
+        {
+            ClassDescriptor cls = it.next();
+            if ( knownClasses.add( cls.getClassVMName() + '@' + cls.getStamp() ) )
+            {
+                delta.add( cls, false );
+            }
+        }
+        MetadataStore.merge( delta, metadataFile );
+    }
+
+    /**
+     * Merges the source flags into the target flags.
+     *
+     * @return {@code true} if any target flag changed, {@code false} otherwise.
+     */
+    private static boolean or( boolean[][] target, boolean[][] source )
+    {
+        boolean changed = false;
+        for ( int i = 0; i < target.length && i < source.length; i++ )
+        {
+            if ( target[i] == null || source[i] == null )
+            {
+                continue;
+            }
+            for ( int j = 0; j < target[i].length && j < source[i].length; j++ )
+            {
+                if ( source[i][j] && !target[i][j] )
+                {
+                    target[i][j] = true;
+                    changed = true;
+                }
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * The connection to an agent.
+     */
+    private final class Connection
+        extends Thread
+    {
+
+        private final Socket socket;
+
+        private DataOutputStream out;
+
+        private int dumps;
+
+        Connection( Socket socket )
+        {
+            super( "emma4it-collector-" + socket.getRemoteSocketAddress() );
+            setDaemon( true );
+            this.socket = socket;
+        }
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                DataInputStream in = new DataInputStream( new BufferedInputStream( socket.getInputStream() ) );
+                synchronized ( this )
+                {
+                    out = new DataOutputStream( new BufferedOutputStream( socket.getOutputStream() ) );
+                }
+
+                if ( in.readInt() != CollectorProtocol.MAGIC || in.readInt() != CollectorProtocol.VERSION )
+                {
+                    log.warn( "Coverage collector rejected incompatible client " + socket.getRemoteSocketAddress() );
+                    return;
+                }
+                log.debug( "Coverage collector accepted client " + socket.getRemoteSocketAddress() );
+
+                for ( int message = in.read(); message == CollectorProtocol.DUMP; message = in.read() )
+                {
+                    byte[] meta = new byte[in.readInt()];
+                    in.readFully( meta );
+                    byte[] coverage = new byte[in.readInt()];
+                    in.readFully( coverage );
+
+                    try
+                    {
+                        merge( meta, coverage );
+                    }
+                    finally
+                    {
+                        synchronized ( this )
+                        {
+                            dumps++;
+                            notifyAll();
+                        }
+                    }
+                }
+            }
+            catch ( EOFException e )
+            {
+                // client gone
+            }
+            catch ( IOException e )
+            {
+                if ( !socket.isClosed() )
+                {
+                    log.warn( "Coverage collector failed to read from " + socket.getRemoteSocketAddress() + ": "
+                        + e.getMessage() );
+                }
+            }
+            finally
+            {
+                close();
+                synchronized ( connections )
+                {
+                    connections.remove( this );
+                }
+            }
+        }
+
+        synchronized int getDumps()
+        {
+            return dumps;
+        }
+
+        synchronized boolean requestDump()
+        {
+            if ( out == null )
+            {
+                return false;
+            }
+            try
+            {
+                out.writeByte( CollectorProtocol.REQUEST_DUMP );
+                out.flush();
+                return true;
+            }
+            catch ( IOException e )
+            {
+                return false;
+            }
+        }
+
+        synchronized boolean awaitDump( int previous, long deadline )
+        {
+            while ( dumps <= previous && !socket.isClosed() )
+            {
+                long remaining = deadline - System.currentTimeMillis();
+                if ( remaining <= 0 )
+                {
+                    return false;
+                }
+                try
+                {
+                    wait( remaining );
+                }
+                catch ( InterruptedException e )
+                {
+                    return false;
+                }
+            }
+            return dumps > previous;
+        }
+
+        synchronized void close()
+        {
+            try
+            {
+                socket.close();
+            }
+            catch ( IOException e )
+            {
+                // ignore
+            }
+            notifyAll();
+        }
+
+    }
+
+}
@@ -0,0 +1,232 @@
+package org.sonatype.maven.plugin.emma4it;
+
+/*
+ * PUT YOUR LICENSE HEADER HERE.
+ */
+
+import java.util.Arrays;
+
+import com.vladium.emma.data.ClassDescriptor;
+import com.vladium.emma.data.ICoverageData;
+import com.vladium.emma.data.MethodDescriptor;
+
+/**
+ * The covered and total counters of a class or an aggregate of classes. The counters follow the semantics of emma's
+ * own reports, i.e. a class is covered when it has been loaded, a method is covered when it has been entered and the
+ * block counter is weighted by the number of bytecode instructions per basic block.
+ */
+class CoverageCounts
+{
+
+    /**
+     * The index of the class counter.
+     */
+    static final int CLASS = 0;
+
+    /**
+     * The index of the method counter.
+     */
+    static final int METHOD = 1;
+
+    /**
+     * The index of the block counter.
+     */
+    static final int BLOCK = 2;
+
+    /**
+     * The names of the counters, indexed by the counter constants.
+     */
+    static final String[] NAMES = { "class", "method", "block" };
+
+    private final int[] covered = new int[NAMES.length];
+
+    private final int[] total = new int[NAMES.length];
+
+    /**
+     * Creates an empty set of counters.
+     */
+    CoverageCounts()
+    {
+        // all zero
+    }
+
+    /**
+     * Computes the counters of the specified class.
+     *
+     * @param cls The class descriptor from the metadata, must not be {@code null}.
+     * @param data The runtime coverage of the class, may be {@code null} if the class was never loaded.
+     * @return The counters of the class, never {@code null}.
+     */
+    static CoverageCounts of( ClassDescriptor cls, ICoverageData.DataHolder data )
+    {
+        CoverageCounts counts = new CoverageCounts();
+
+        boolean[][] coverage = getCoverage( cls, data );
+
+        counts.total[CLASS] = 1;
+        counts.covered[CLASS] = ( coverage != null ) ? 1 : 0;
+
+        MethodDescriptor[] methods = cls.getMethods();
+        for ( int m = 0; m < methods.length; m++ )
+        {
+            int[] blockSizes = methods[m].getBlockSizes();
+            if ( blockSizes == null )
+            {
+                continue;
+            }
+
+            boolean[] blocks = ( coverage != null && m < coverage.length ) ? coverage[m] : null;
+
+            boolean entered = false;
+            for ( int b = 0; b < blockSizes.length; b++ )
+            {
+                counts.total[BLOCK] += blockSizes[b];
+                if ( blocks != null && b < blocks.length && blocks[b] )
+                {
+                    counts.covered[BLOCK] += blockSizes[b];
+                    entered = true;
+                }
+            }
+
+            counts.total[METHOD]++;
+            if ( entered )
+            {
+                counts.covered[METHOD]++;
+            }
+        }
+
+        return counts;
+    }
+
+    /**
+     * Gets the runtime coverage of the specified class, discarding coverage that was recorded for a different version
+     * of the class than the one described by the metadata.
+     *
+     * @param cls The class descriptor from the metadata, must not be {@code null}.
+     * @param data The runtime coverage of the class, may be {@code null}.
+     * @return The block coverage of the class or {@code null} if the class was never loaded.
+     */
+    static boolean[][] getCoverage( ClassDescriptor cls, ICoverageData.DataHolder data )
+    {
+        if ( data == null || data.m_stamp != cls.getStamp() )
+        {
+            return null;
+        }
+        return data.m_coverage;
+    }
+
+    /**
+     * Adds the specified counters to these counters.
+     *
+     * @param counts The counters to add, must not be {@code null}.
+     */
+    void add( CoverageCounts counts )
+    {
+        for ( int i = 0; i < NAMES.length; i++ )
+        {
+            covered[i] += counts.covered[i];
+            total[i] += counts.total[i];
+        }
+    }
+
+    /**
+     * Sets the specified counter.
+     *
+     * @param type The counter index, e.g. {@link #BLOCK}.
+     * @param covered The covered count.
+     * @param total The total count.
+     */
+    void set( int type, int covered, int total )
+    {
+        this.covered[type] = covered;
+        this.total[type] = total;
+    }
+
+    /**
+     * Gets the covered count of the specified counter.
+     *
+     * @param type The counter index, e.g. {@link #BLOCK}.
+     * @return The covered count.
+     */
+    int getCovered( int type )
+    {
+        return covered[type];
+    }
+
+    /**
+     * Gets the total count of the specified counter.
+     *
+     * @param type The counter index, e.g. {@link #BLOCK}.
+     * @return The total count.
+     */
+    int getTotal( int type )
+    {
+        return total[type];
+    }
+
+    /**
+     * Gets the coverage ratio of the specified counter.
+     *
+     * @param type The counter index, e.g. {@link #BLOCK}.
+     * @return The coverage ratio in the range [0, 1], or {@code 1} if there is nothing to cover.
+     */
+    double getRatio( int type )
+    {
+        return ( total[type] > 0 ) ? covered[type] / (double) total[type] : 1;
+    }
+
+    /**
+     * Gets the index of the specified counter name.
+     *
+     * @param name The (case-insensitive) counter name, may be {@code null}.
+     * @return The counter index or {@code -1} if the name is unknown.
+     */
+    static int indexOf( String name )
+    {
+        for ( int i = 0; i < NAMES.length; i++ )
+        {
+            if ( NAMES[i].equalsIgnoreCase( name ) )
+            {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public boolean equals( Object obj )
+    {
+        if ( this == obj )
+        {
+            return true;
+        }
+        if ( !( obj instanceof CoverageCounts ) )
+        {
+            return false;
+        }
+        CoverageCounts that = (CoverageCounts) obj;
+        return Arrays.equals( covered, that.covered ) && Arrays.equals( total, that.total );
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return Arrays.hashCode( covered ) * 31 + Arrays.hashCode( total );
+    }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder buffer = new StringBuilder( 64 );
+        for ( int i = 0; i < NAMES.length; i++ )
+        {
+            if ( i > 0 )
+            {
+                buffer.append( ", " );
+            }
+            buffer.append( NAMES[i] ).append( '=' ).append( covered[i] ).append( '/' ).append( total[i] );
+        }
+        return buffer.toString();
+    }
+
+}
@@ -0,0 +1,437 @@
+package org.sonatype.maven.plugin.emma4it;
+
+/*
+ * PUT YOUR LICENSE HEADER HERE.
+ */
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.apache.maven.plugin.AbstractMojo;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.codehaus.plexus.util.IOUtil;
+
+import com.vladium.emma.data.ClassDescriptor;
+
+/**
+ * Compares the coverage of two sets of offline metadata and runtime coverage files class by class and writes only
+ * those classes whose coverage changed. Both models are reduced to a compact summary per class, the baseline before the
+ * current data is loaded, so that the full coverage models never need to be held in memory at the same time.
+ *
+ * @goal diff
+ * @since 1.4
+ */
+public class CoverageDiffMojo
+    extends AbstractMojo
+{
+
+    /**
+     * The project's build directory.
+     *
+     * @parameter default-value="${project.build.directory}"
+     * @readonly
+     */
+    private File buildDirectory;
+
+    /**
+     * The offline metadata and runtime coverage files of the baseline to compare against, e.g. the merged
+     * <code>coverage.em</code> and <code>coverage.ec</code> of another branch. The goal fails if none of these files
+     * exists.
+     *
+     * @parameter
+     * @required
+     */
+    private File[] baselineFiles;
+
+    /**
+     * The offline metadata and runtime coverage files to compare with the baseline. Defaults to the merged
+     * <code>coverage.em</code> and <code>coverage.ec</code> in <code>${project.build.directory}/emma</code>.
+     *
+     * @parameter
+     */
+    private File[] dataFiles;
+
+    /**
+     * The directory to write the coverage difference to.
+     *
+     * @parameter default-value="${project.build.directory}/emma"
+     */
+    private File outputDirectory;
+
+    /**
+     * The format of the coverage difference, either <code>xml</code> or <code>json</code>.
+     *
+     * @parameter default-value="xml"
+     */
+    private String format;
+
+    public void execute()
+        throws MojoExecutionException
+    {
+        if ( !"xml".equals( format ) && !"json".equals( format ) )
+        {
+            throw new MojoExecutionException( "Invalid format type: " + format );
+        }
+
+        Map<String, ClassState> baseline = summarize( loadModel( Arrays.asList( baselineFiles ), true ) );
+
+        File outputFile = new File( outputDirectory, "coverage-diff." + format );
+        outputFile.getParentFile().mkdirs();
+
+        int changes = 0;
+
+        Writer writer = null;
+        try
+        {
+            writer = new BufferedWriter( new OutputStreamWriter( new FileOutputStream( outputFile ), "UTF-8" ) );
+
+            DiffWriter diff = "json".equals( format ) ? new JsonDiffWriter( writer ) : new XmlDiffWriter( writer );
+            changes = diff( baseline, summarize( loadModel( getDataFiles(), false ) ), diff );
+        }
+        catch ( IOException e )
+        {
+            throw new MojoExecutionException( "Unable to write coverage difference to " + outputFile, e );
+        }
+        finally
+        {
+            IOUtil.close( writer );
+        }
+
+        getLog().info( "Coverage changed for " + changes + " classes, see " + outputFile );
+    }
+
+    /**
+     * Reduces the specified model to the compact coverage summary of its classes.
+     *
+     * @param model The coverage model to summarize, must not be {@code null}.
+     * @return The summaries by class VM name, in the iteration order of the model, never {@code null}.
+     */
+    static Map<String, ClassState> summarize( CoverageModel model )
+    {
+        Map<String, ClassState> states = new LinkedHashMap<String, ClassState>( model.size() * 4 / 3 + 1 );
+        for ( Iterator<ClassDescriptor> it = model.classes(); it.hasNext(); )
+        {
+            ClassDescriptor cls = it.next();
+            states.put( cls.getClassVMName(),
+                        new ClassState( model.getCounts( cls ), fingerprint( model.getCoverage( cls ) ) ) );
+        }
+        return states;
+    }
+
+    /**
+     * Writes the classes whose coverage differs between the baseline and the current data, i.e. the changed and added
+     * classes in the order of the current data followed by the removed classes in the order of the baseline.
+     *
+     * @param baseline The summaries of the baseline by class VM name, must not be {@code null}.
+     * @param current The summaries of the current data by class VM name, must not be {@code null}.
+     * @param diff The writer to report the differences to, must not be {@code null}.
+     * @return The number of written classes.
+     * @throws IOException If the differences could not be written.
+     */
+    static int diff( Map<String, ClassState> baseline, Map<String, ClassState> current, DiffWriter diff )
+        throws IOException
+    {
+        int changes = 0;
+
+        diff.start();
+
+        for ( Map.Entry<String, ClassState> entry : current.entrySet() )
+        {
+            ClassState previous = baseline.get( entry.getKey() );
+            if ( !entry.getValue().equals( previous ) )
+            {
+                diff.write( entry.getKey(), previous, entry.getValue() );
+                changes++;
+            }
+        }
+
+        for ( Map.Entry<String, ClassState> entry : baseline.entrySet() )
+        {
+            if ( !current.containsKey( entry.getKey() ) )
+            {
+                diff.write( entry.getKey(), entry.getValue(), null );
+                changes++;
+            }
+        }
+
+        diff.end();
+
+        return changes;
+    }
+
+    private List<File> getDataFiles()
+    {
+        if ( dataFiles == null || dataFiles.length <= 0 )
+        {
+            File emmaDir = new File( buildDirectory, "emma" );
+            return Arrays.asList( new File( emmaDir, "coverage.em" ), new File( emmaDir, "coverage.ec" ) );
+        }
+        return Arrays.asList( dataFiles );
+    }
+
+    CoverageModel loadModel( List<File> files, boolean baseline )
+        throws MojoExecutionException
+    {
+        List<File> existing = new ArrayList<File>();
+        for ( File file : files )
+        {
+            if ( file.isFile() )
+            {
+                existing.add( file );
+            }
+            else
+            {
+                getLog().warn( "Data file " + file.getAbsolutePath() + " not found!" );
+            }
+        }
+        if ( baseline && existing.isEmpty() )
+        {
+            // an empty baseline would report every class as added
+            throw new MojoExecutionException( "None of the baseline data files " + files + " exists" );
+        }
+
+        try
+        {
+            return CoverageModel.load( existing );
+        }
+        catch ( IOException e )
+        {
+            throw new MojoExecutionException( "Unable to load coverage data from " + existing, e );
+        }
+    }
+
+    static long fingerprint( boolean[][] coverage )
+    {
+        if ( coverage == null )
+        {
+            return -1;
+        }
+        CRC32 crc = new CRC32();
+        for ( boolean[] blocks : coverage )
+        {
+            if ( blocks == null )
+            {
+                crc.update( 0xFF );
+                continue;
+            }
+            for ( boolean block : blocks )
+            {
+                crc.update( block ? 1 : 0 );
+            }
+            crc.update( 0xFE );
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * The compact coverage summary of a single class.
+     */
+    static final class ClassState
+    {
+
+        final CoverageCounts counts;
+
+        final long fingerprint;
+
+        ClassState( CoverageCounts counts, long fingerprint )
+        {
+            this.counts = counts;
+            this.fingerprint = fingerprint;
+        }
+
+        @Override
+        public boolean equals( Object obj )
+        {
+            if ( this == obj )
+            {
+                return true;
+            }
+            if ( !( obj instanceof ClassState ) )
+            {
+                return false;
+            }
+            ClassState that = (ClassState) obj;
+            return fingerprint == that.fingerprint && counts.equals( that.counts );
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return counts.hashCode() * 31 + (int) ( fingerprint ^ ( fingerprint >>> 32 ) );
+        }
+
+    }
+
+    /**
+     * Writes the changed classes in some output format.
+     */
+    abstract static class DiffWriter
+    {
+
+        final Writer writer;
+
+        DiffWriter( Writer writer )
+        {
+            this.writer = writer;
+        }
+
+        abstract void start()
+            throws IOException;
+
+        /**
+         * Writes a changed class.
+         *
+         * @param classVMName The VM name of the class, must not be {@code null}.
+         * @param baseline The state of the class in the baseline, {@code null} if the class was added.
+         * @param current The current state of the class, {@code null} if the class was removed.
+         * @throws IOException If the output could not be written.
+         */
+        abstract void write( String classVMName, ClassState baseline, ClassState current )
+            throws IOException;
+
+        abstract void end()
+            throws IOException;
+
+        static String getStatus( ClassState baseline, ClassState current )
+        {
+            if ( baseline == null )
+            {
+                return "added";
+            }
+            else if ( current == null )
+            {
+                return "removed";
+            }
+            return "changed";
+        }
+
+    }
+
+    static final class XmlDiffWriter
+        extends DiffWriter
+    {
+
+        XmlDiffWriter( Writer writer )
+        {
+            super( writer );
+        }
+
+        @Override
+        void start()
+            throws IOException
+        {
+            writer.write( "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" );
+            writer.write( "<coverage-diff>\n" );
+        }
+
+        @Override
+        void write( String classVMName, ClassState baseline, ClassState current )
+            throws IOException
+        {
+            writer.write( "  <class name=\"" );
+            writer.write( Escaping.xml( classVMName.replace( '/', '.' ) ) );
+            writer.write( "\" status=\"" );
+            writer.write( getStatus( baseline, current ) );
+            writer.write( "\">\n" );
+            for ( int i = 0; i < CoverageCounts.NAMES.length; i++ )
+            {
+                writer.write( "    <counter type=\"" );
+                writer.write( CoverageCounts.NAMES[i] );
+                writer.write( '"' );
+                if ( baseline != null )
+                {
+                    writer.write( " baseline-covered=\"" + baseline.counts.getCovered( i ) + '"' );
+                    writer.write( " baseline-total=\"" + baseline.counts.getTotal( i ) + '"' );
+                }
+                if ( current != null )
+                {
+                    writer.write( " covered=\"" + current.counts.getCovered( i ) + '"' );
+                    writer.write( " total=\"" + current.counts.getTotal( i ) + '"' );
+                }
+                writer.write( "/>\n" );
+            }
+            writer.write( "  </class>\n" );
+        }
+
+        @Override
+        void end()
+            throws IOException
+        {
+            writer.write( "</coverage-diff>\n" );
+        }
+
+    }
+
+    static final class JsonDiffWriter
+        extends DiffWriter
+    {
+
+        private boolean first = true;
+
+        JsonDiffWriter( Writer writer )
+        {
+            super( writer );
+        }
+
+        @Override
+        void start()
+            throws IOException
+        {
+            writer.write( "{\"classes\":[" );
+        }
+
+        @Override
+        void write( String classVMName, ClassState baseline, ClassState current )
+            throws IOException
+        {
+            writer.write( first ? "\n" : ",\n" );
+            first = false;
+            writer.write( "{\"name\":\"" );
+            writer.write( Escaping.json( classVMName.replace( '/', '.' ) ) );
+            writer.write( "\",\"status\":\"" );
+            writer.write( getStatus( baseline, current ) );
+            writer.write( "\",\"counters\":{" );
+            for ( int i = 0; i < CoverageCounts.NAMES.length; i++ )
+            {
+                if ( i > 0 )
+                {
+                    writer.write( ',' );
+                }
+                writer.write( '"' + CoverageCounts.NAMES[i] + "\":{" );
+                if ( baseline != null )
+                {
+                    writer.write( "\"baseline\":[" + baseline.counts.getCovered( i ) + ','
+                        + baseline.counts.getTotal( i ) + ']' );
+                }
+                if ( current != null )
+                {
+                    writer.write( ( baseline != null ) ? "," : "" );
+                    writer.write( "\"current\":[" + current.counts.getCovered( i ) + ','
+                        + current.counts.getTotal( i ) + ']' );
+                }
+                writer.write( '}' );
+            }
+            writer.write( "}}" );
+        }
+
+        @Override
+        void end()
+            throws IOException
+        {
+            writer.write( "\n]}\n" );
+        }
+
+    }
+
+}
@@ -0,0 +1,295 @@
+package org.sonatype.maven.plugin.emma4it;
+
+/*
+ * PUT YOUR LICENSE HEADER HERE.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.sonatype.maven.plugin.emma4it.agent.CompactCoverage;
+import org.sonatype.maven.plugin.emma4it.agent.CompressedData;
+
+import com.vladium.emma.data.ClassDescriptor;
+import com.vladium.emma.data.DataFactory;
+import com.vladium.emma.data.ICoverageData;
+import com.vladium.emma.data.IMergeable;
+import com.vladium.emma.data.IMetaData;
+import com.vladium.emma.data.MethodDescriptor;
+import com.vladium.emma.data.SessionData;
+
+/**
+ * The merged offline metadata and runtime coverage of a set of emma data files, i.e. the same model that emma's
+ * report processor builds internally but made accessible to the goals of this plugin.
+ */
+class CoverageModel
+{
+
+    private final IMetaData metadata;
+
+    private final ICoverageData coverage;
+
+    /**
+     * Creates a new model from the specified data.
+     *
+     * @param metadata The offline metadata, may be {@code null} if none.
+     * @param coverage The runtime coverage, may be {@code null} if none.
+     */
+    CoverageModel( IMetaData metadata, ICoverageData coverage )
+    {
+        this.metadata = metadata;
+        this.coverage = coverage;
+    }
+
+    /**
+     * Loads and merges the specified metadata, coverage and session files. Compact coverage files written by the agent
+     * and compressed emma data files are read as well. Models that were just written by another goal of this build are
+     * taken from the {@link ModelCache} instead of parsing their files.
+     *
+     * @param files The emma data files to load, must not be {@code null}.
+     * @return The merged model, never {@code null}.
+     * @throws IOException If any file could not be read.
+     */
+    static CoverageModel load( Collection<File> files )
+        throws IOException
+    {
+        CoverageModel model = new CoverageModel( null, null );
+
+        for ( File file : files )
+        {
+            CoverageModel cached = ModelCache.take( file );
+            if ( cached != null )
+            {
+                model = model.merge( cached );
+                continue;
+            }
+
+            if ( CompactCoverage.isCompact( file ) )
+            {
+                model = model.merge( new CoverageModel( null, CompactCoverage.read( file ) ) );
+                continue;
+            }
+
+            IMergeable[] data = CompressedData.load( file );
+
+            model =
+                model.merge( new CoverageModel( (IMetaData) data[DataFactory.TYPE_METADATA],
+                                                (ICoverageData) data[DataFactory.TYPE_COVERAGEDATA] ) );
+        }
+
+        return model;
+    }
+
+    /**
+     * Writes this model to the specified file, replacing any existing file. Depending on the available data, the file
+     * is written as emma metadata, coverage or session file.
+     *
+     * @param file The file to write to, must not be {@code null}.
+     * @throws IOException If the file could not be written.
+     */
+    void persist( File file )
+        throws IOException
+    {
+        file.getAbsoluteFile().getParentFile().mkdirs();
+        file.delete();
+        if ( metadata != null && coverage != null )
+        {
+            DataFactory.persist( new SessionData( metadata, coverage ), file, false );
+        }
+        else if ( metadata != null )
+        {
+            DataFactory.persist( metadata, file, false );
+        }
+        else if ( coverage != null )
+        {
+            DataFactory.persist( coverage, file, false );
+        }
+    }
+
+    /**
+     * Merges the specified model with this model. The data of either model may be reused by the result and must not be
+     * used on its own afterwards.
+     *
+     * @param model The model to merge with this model, must not be {@code null}.
+     * @return The merged model, never {@code null}.
+     */
+    CoverageModel merge( CoverageModel model )
+    {
+        return new CoverageModel( (IMetaData) merge( metadata, model.metadata ),
+                                  (ICoverageData) merge( coverage, model.coverage ) );
+    }
+
+    private static IMergeable merge( IMergeable data, IMergeable other )
+    {
+        if ( other == null || other.isEmpty() )
+        {
+            return data;
+        }
+        if ( data == null || data.isEmpty() )
+        {
+            return other;
+        }
+        return data.merge( other );
+    }
+
+    /**
+     * Gets the offline metadata of this model.
+     *
+     * @return The offline metadata or {@code null} if none.
+     */
+    IMetaData getMetaData()
+    {
+        return metadata;
+    }
+
+    /**
+     * Gets the runtime coverage of this model.
+     *
+     * @return The runtime coverage or {@code null} if none.
+     */
+    ICoverageData getCoverageData()
+    {
+        return coverage;
+    }
+
+    /**
+     * Gets the number of classes described by the metadata.
+     *
+     * @return The number of classes.
+     */
+    int size()
+    {
+        return ( metadata != null ) ? metadata.size() : 0;
+    }
+
+    /**
+     * Estimates the heap memory used by this model, i.e. by the descriptors and block maps of the metadata and the
+     * coverage arrays. The estimate ignores JVM specifics and is only meant to cap caches of models.
+     *
+     * @return The estimated size in bytes.
+     */
+    long estimateSize()
+    {
+        long size = 64;
+        for ( Iterator<ClassDescriptor> it = classes(); it.hasNext(); )
+        {
+            ClassDescriptor cls = it.next();
+            size += 128 + 2L * cls.getClassVMName().length();
+            if ( cls.getSrcFileName() != null )
+            {
+                size += 48 + 2L * cls.getSrcFileName().length();
+            }
+            boolean covered = getDataHolder( cls ) != null;
+            MethodDescriptor[] methods = cls.getMethods();
+            size += 16 + 4L * methods.length + ( covered ? 16 + 4L * methods.length : 0 );
+            for ( MethodDescriptor method : methods )
+            {
+                size += 96 + 2L * ( method.getName().length() + method.getDescriptor().length() );
+                int[] blockSizes = method.getBlockSizes();
+                if ( blockSizes != null )
+                {
+                    size += 16 + 4L * blockSizes.length + ( covered ? 16 + blockSizes.length : 0 );
+                }
+                int[][] blockMap = method.getBlockMap();
+                if ( blockMap != null )
+                {
+                    size += 16 + 4L * blockMap.length;
+                    for ( int[] lines : blockMap )
+                    {
+                        size += ( lines != null ) ? 16 + 4L * lines.length : 0;
+                    }
+                }
+            }
+        }
+        if ( metadata == null && coverage != null )
+        {
+            // coverage without metadata cannot be iterated, assume an average class
+            size += coverage.size() * 512L;
+        }
+        return size;
+    }
+
+    /**
+     * Iterates the classes described by the metadata.
+     *
+     * @return The class descriptors, never {@code null}.
+     */
+    @SuppressWarnings( "unchecked" )
+    Iterator<ClassDescriptor> classes()
+    {
+        if ( metadata == null )
+        {
+            return Collections.<ClassDescriptor> emptyList().iterator();
+        }
+        return metadata.iterator();
+    }
+
+    /**
+     * Groups the classes described by the metadata by their package.
+     *
+     * @return The classes sorted by name, keyed by the sorted (dotted) package names, never {@code null}.
+     */
+    Map<String, List<ClassDescriptor>> packages()
+    {
+        Map<String, List<ClassDescriptor>> packages = new TreeMap<String, List<ClassDescriptor>>();
+        for ( Iterator<ClassDescriptor> it = classes(); it.hasNext(); )
+        {
+            ClassDescriptor cls = it.next();
+            String name = cls.getPackageVMName().replace( '/', '.' );
+            List<ClassDescriptor> classes = packages.get( name );
+            if ( classes == null )
+            {
+                classes = new ArrayList<ClassDescriptor>();
+                packages.put( name, classes );
+            }
+            classes.add( cls );
+        }
+        for ( List<ClassDescriptor> classes : packages.values() )
+        {
+            Collections.sort( classes, new Comparator<ClassDescriptor>()
+            {
+                public int compare( ClassDescriptor cls1, ClassDescriptor cls2 )
+                {
+                    return cls1.getName().compareTo( cls2.getName() );
+                }
+            } );
+        }
+        return packages;
+    }
+
+    /**
+     * Gets the block coverage of the specified class.
+     *
+     * @param cls The class descriptor, must not be {@code null}.
+     * @return The block coverage or {@code null} if the class was never loaded.
+     */
+    boolean[][] getCoverage( ClassDescriptor cls )
+    {
+        return CoverageCounts.getCoverage( cls, getDataHolder( cls ) );
+    }
+
+    /**
+     * Computes the counters of the specified class.
+     *
+     * @param cls The class descriptor, must not be {@code null}.
+     * @return The counters of the class, never {@code null}.
+     */
+    CoverageCounts getCounts( ClassDescriptor cls )
+    {
+        return CoverageCounts.of( cls, getDataHolder( cls ) );
+    }
+
+    private ICoverageData.DataHolder getDataHolder( ClassDescriptor cls )
+    {
+        return ( coverage != null ) ? coverage.getCoverage( cls ) : null;
+    }
+
+}
@@ -0,0 +1,96 @@
+package org.sonatype.maven.plugin.emma4it;
+
+/*
+ * PUT YOUR LICENSE HEADER HERE.
+ */
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.logging.Log;
+
+/**
+ * Collects the offline metadata and runtime coverage files that the reporting goals read.
+ */
+final class DataSets
+{
+
+    /**
+     * The patterns matching emma data files in a directory tree, including the compressed runtime coverage written by
+     * the goals of this plugin.
+     */
+    static final String[] INCLUDES = { "**/*.ec", "**/*.ecz", "**/*.em", "**/*.es" };
+
+    private DataSets()
+    {
+        // hide constructor
+    }
+
+    /**
+     * Gets the default data sets, i.e. all data files within the project base directory and within any subdirectory of
+     * the build directory.
+     *
+     * @param baseDirectory The project base directory, must not be {@code null}.
+     * @param buildDirectory The project build directory, must not be {@code null}.
+     * @return The default data sets, never {@code null}.
+     */
+    static FileSet[] getDefaults( File baseDirectory, File buildDirectory )
+    {
+        return new FileSet[] { new FileSet( baseDirectory, new String[] { "*.ec", "*.ecz", "*.em", "*.es" }, null ),
+            new FileSet( buildDirectory, INCLUDES, null ) };
+    }
+
+    /**
+     * Collects the absolute paths to the data files matched by the specified data sets. Data sets whose base directory
+     * does not exist are ignored.
+     *
+     * @param dataSets The data sets to scan, must not be {@code null}.
+     * @param log The logger to report ignored data sets and the collected files to, must not be {@code null}.
+     * @return The paths to the data files, never {@code null}.
+     * @throws MojoExecutionException If a data set lacks a base directory.
+     */
+    static List<String> collect( FileSet[] dataSets, Log log )
+        throws MojoExecutionException
+    {
+        log.debug( "Collecting data files" );
+
+        List<FileSet> existingSets = new ArrayList<FileSet>();
+
+        for ( FileSet fileSet : dataSets )
+        {
+            if ( fileSet.getDirectory() == null )
+            {
+                throw new MojoExecutionException( "Missing base directory for data set " + fileSet );
+            }
+            else if ( !fileSet.getDirectory().isDirectory() )
+            {
+                log.warn( "Ignored non-existing data set directory " + fileSet.getDirectory() );
+            }
+            else
+            {
+                existingSets.add( fileSet );
+            }
+        }
+
+        List<String> dataPath = new ArrayList<String>();
+
+        for ( Collection<String> paths : FileSet.scan( existingSets, true, false ) )
+        {
+            dataPath.addAll( paths );
+        }
+
+        if ( log.isDebugEnabled() )
+        {
+            for ( String path : dataPath )
+            {
+                log.debug( "  " + path );
+            }
+        }
+
+        return dataPath;
+    }
+
+}
@@ -2,6 +2,11 @@ package org.sonatype.maven.plugin.emma4it;
 
 
 /**
+ * Generates the coverage report for the site after running the tests in the forked <code>emma4it</code> lifecycle.
+ * With <code>-Demma4it.reuse=true</code>, the forked lifecycle skips instrumentation, tests and merging if the
+ * coverage data in <code>${project.build.directory}/emma</code> is newer than the project's classes, and the report
+ * is generated from the existing data.
+ *
  * @author marvin
  * @goal emma4it
  * @execute phase="test" lifecycle="emma4it"
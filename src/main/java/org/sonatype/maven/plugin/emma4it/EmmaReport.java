@@ -0,0 +1,117 @@
+package org.sonatype.maven.plugin.emma4it;
+
+/*
+ * PUT YOUR LICENSE HEADER HERE.
+ */
+
+import java.io.File;
+
+import com.vladium.emma.EMMAProperties;
+import com.vladium.emma.data.DataFactory;
+import com.vladium.emma.data.ICoverageData;
+import com.vladium.emma.report.AbstractReportGenerator;
+import com.vladium.emma.report.IReportGenerator;
+import com.vladium.emma.report.SourcePathCache;
+import com.vladium.util.IProperties;
+import com.vladium.util.XProperties;
+
+/**
+ * Generates emma's <code>txt</code>, <code>xml</code> and <code>html</code> reports from a {@link CoverageModel}. Unlike
+ * emma's report processor, which reads the data files itself, the report generators are driven directly with the data
+ * already loaded by the calling goal, so merged or cached models need not be written to disk and parsed again.
+ */
+class EmmaReport
+{
+
+    /**
+     * The sort order of the reports generated by the <code>report</code> and <code>aggregate-report</code> goals.
+     */
+    static final String SORT_ORDER = "+name,+block,+method,+class";
+
+    private final String[] formats;
+
+    private final XProperties properties = new XProperties();
+
+    /**
+     * Creates a new report writing all files to the specified directory, sorted by name and encoded in UTF-8, as
+     * configured for the <code>report</code> and <code>aggregate-report</code> goals.
+     *
+     * @param formats The emma report types to generate, must not be {@code null}.
+     * @param reportDirectory The directory to write the reports to, must not be {@code null}.
+     * @return The new report, never {@code null}.
+     */
+    static EmmaReport create( String[] formats, File reportDirectory )
+    {
+        EmmaReport report = new EmmaReport( formats, reportDirectory, reportDirectory );
+        report.properties.setProperty( "report.sort", SORT_ORDER );
+        report.properties.setProperty( "report.out.encoding", "UTF-8" );
+        report.properties.setProperty( "report.xml.out.encoding", "UTF-8" );
+        report.properties.setProperty( "report.html.out.encoding", "UTF-8" );
+        return report;
+    }
+
+    /**
+     * Creates a new report using emma's default settings except for the output files.
+     *
+     * @param formats The emma report types to generate, must not be {@code null}.
+     * @param htmlDirectory The directory to write the <code>index.html</code> of the HTML report to, must not be
+     *            {@code null}.
+     * @param dataDirectory The directory to write <code>coverage.xml</code> and <code>coverage.txt</code> to, must not
+     *            be {@code null}.
+     */
+    EmmaReport( String[] formats, File htmlDirectory, File dataDirectory )
+    {
+        this.formats = formats;
+        properties.setProperty( "report.html.out.file", new File( htmlDirectory, "index.html" ).getAbsolutePath() );
+        properties.setProperty( "report.xml.out.file", new File( dataDirectory, "coverage.xml" ).getAbsolutePath() );
+        properties.setProperty( "report.txt.out.file", new File( dataDirectory, "coverage.txt" ).getAbsolutePath() );
+    }
+
+    /**
+     * Generates the reports for the specified model.
+     *
+     * @param model The coverage model to report, must not be {@code null}. Its metadata must not be {@code null}.
+     * @param sourcePath The source directories used to decorate the HTML report, may be {@code null} or empty.
+     * @throws IllegalArgumentException If a report type is not supported by emma.
+     */
+    void write( CoverageModel model, String[] sourcePath )
+    {
+        IReportGenerator[] generators = new IReportGenerator[formats.length];
+        for ( int i = 0; i < formats.length; i++ )
+        {
+            try
+            {
+                generators[i] = AbstractReportGenerator.create( formats[i] );
+            }
+            catch ( RuntimeException e )
+            {
+                throw new IllegalArgumentException( "Unsupported report format: " + formats[i], e );
+            }
+        }
+
+        ICoverageData coverage = model.getCoverageData();
+        if ( coverage == null )
+        {
+            coverage = DataFactory.newCoverageData();
+        }
+
+        SourcePathCache sourceCache =
+            ( sourcePath != null && sourcePath.length > 0 ) ? new SourcePathCache( sourcePath, true ) : null;
+
+        IProperties toolProperties =
+            IProperties.Factory.combine( EMMAProperties.wrap( properties ), EMMAProperties.getAppProperties() );
+
+        for ( IReportGenerator generator : generators )
+        {
+            try
+            {
+                generator.process( model.getMetaData(), coverage, sourceCache, toolProperties );
+            }
+            finally
+            {
+                generator.cleanup();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,134 @@
+package org.sonatype.maven.plugin.emma4it;
+
+/*
+ * PUT YOUR LICENSE HEADER HERE.
+ */
+
+/**
+ * Helps to escape text for the machine-readable reports generated by this plugin.
+ */
+final class Escaping
+{
+
+    private Escaping()
+    {
+        // hide constructor
+    }
+
+    /**
+     * Escapes the specified text for use in XML character data or attribute values.
+     *
+     * @param text The text to escape, may be {@code null}.
+     * @return The escaped text, never {@code null}.
+     */
+    static String xml( String text )
+    {
+        if ( text == null )
+        {
+            return "";
+        }
+        StringBuilder buffer = new StringBuilder( text.length() + 16 );
+        for ( int i = 0; i < text.length(); i++ )
+        {
+            char c = text.charAt( i );
+            switch ( c )
+            {
+                case '<':
+                    buffer.append( "&lt;" );
+                    break;
+                case '>':
+                    buffer.append( "&gt;" );
+                    break;
+                case '&':
+                    buffer.append( "&amp;" );
+                    break;
+                case '"':
+                    buffer.append( "&quot;" );
+                    break;
+                case '\'':
+                    buffer.append( "&apos;" );
+                    break;
+                default:
+                    buffer.append( c );
+            }
+        }
+        return buffer.toString();
+    }
+
+    /**
+     * Escapes the specified text for use inside a JSON string literal.
+     *
+     * @param text The text to escape, may be {@code null}.
+     * @return The escaped text (without surrounding quotes), never {@code null}.
+     */
+    static String json( String text )
+    {
+        if ( text == null )
+        {
+            return "";
+        }
+        StringBuilder buffer = new StringBuilder( text.length() + 16 );
+        for ( int i = 0; i < text.length(); i++ )
+        {
+            char c = text.charAt( i );
+            switch ( c )
+            {
+                case '"':
+                    buffer.append( "\\\"" );
+                    break;
+                case '\\':
+                    buffer.append( "\\\\" );
+                    break;
+                case '\n':
+                    buffer.append( "\\n" );
+                    break;
+                case '\r':
+                    buffer.append( "\\r" );
+                    break;
+                case '\t':
+                    buffer.append( "\\t" );
+                    break;
+                default:
+                    if ( c < 0x20 )
+                    {
+                        String hex = Integer.toHexString( c );
+                        buffer.append( "\\u" );
+                        for ( int j = hex.length(); j < 4; j++ )
+                        {
+                            buffer.append( '0' );
+                        }
+                        buffer.append( hex );
+                    }
+                    else
+                    {
+                        buffer.append( c );
+                    }
+            }
+        }
+        return buffer.toString();
+    }
+
+    /**
+     * Escapes the specified text for use as a CSV field. Fields containing a comma, quote or line break are quoted.
+     *
+     * @param text The text to escape, may be {@code null}.
+     * @return The escaped text, never {@code null}.
+     */
+    static String csv( String text )
+    {
+        if ( text == null )
+        {
+            return "";
+        }
+        for ( int i = 0; i < text.length(); i++ )
+        {
+            char c = text.charAt( i );
+            if ( c == ',' || c == '"' || c == '\n' || c == '\r' )
+            {
+                return '"' + text.replace( "\"", "\"\"" ) + '"';
+            }
+        }
+        return text;
+    }
+
+}
@@ -8,8 +8,12 @@ import java.io.File;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
-
-import org.codehaus.plexus.util.DirectoryScanner;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * A bean for the mojo configuration to hold the specification of an Ant-like fileset. This class is very similar to the
@@ -36,6 +40,11 @@ public class FileSet
      */
     private String[] excludes;
 
+    /**
+     * The scanner compiled from the patterns, lazily created.
+     */
+    private transient FileSetScanner scanner;
+
     /**
      * Creates a new data set.
      */
@@ -105,36 +114,76 @@ public class FileSet
 
         Collection<String> paths = new ArrayList<String>();
 
-        if ( getDirectory().isDirectory() )
+        if ( scanner == null )
         {
-            DirectoryScanner scanner = new DirectoryScanner();
-
-            scanner.setBasedir( getDirectory() );
+            scanner = new FileSetScanner( getIncludes(), getExcludes() );
+        }
+        scanner.scan( getDirectory(), files, dirs, paths );
 
-            scanner.setIncludes( getIncludes() );
-            scanner.setExcludes( getExcludes() );
-            scanner.addDefaultExcludes();
+        return paths;
+    }
 
-            scanner.scan();
+    /**
+     * Collects the absolute paths to the files matched by the specified file sets. The file sets are scanned
+     * concurrently.
+     * 
+     * @param fileSets The file sets to scan, must not be {@code null}.
+     * @param files A flag whether to include normal files in the result collection.
+     * @param dirs A flag whether to include directories in the result collection.
+     * @return The matched files of each file set, in the order of the file sets, never {@code null}.
+     * @throws IllegalStateException If the base directory of any file set has not been set.
+     */
+    public static List<Collection<String>> scan( List<FileSet> fileSets, final boolean files, final boolean dirs )
+    {
+        List<Collection<String>> results = new ArrayList<Collection<String>>();
 
-            if ( files )
+        if ( fileSets.size() <= 1 )
+        {
+            for ( FileSet fileSet : fileSets )
             {
-                for ( String path : scanner.getIncludedFiles() )
-                {
-                    paths.add( new File( scanner.getBasedir(), path ).getAbsolutePath() );
-                }
+                results.add( fileSet.scan( files, dirs ) );
             }
+            return results;
+        }
 
-            if ( dirs )
+        int threads = Math.min( fileSets.size(), Runtime.getRuntime().availableProcessors() );
+        ExecutorService executor = Executors.newFixedThreadPool( threads );
+        try
+        {
+            List<Future<Collection<String>>> futures = new ArrayList<Future<Collection<String>>>();
+            for ( final FileSet fileSet : fileSets )
             {
-                for ( String path : scanner.getIncludedDirectories() )
+                futures.add( executor.submit( new Callable<Collection<String>>()
                 {
-                    paths.add( new File( scanner.getBasedir(), path ).getAbsolutePath() );
-                }
+                    public Collection<String> call()
+                    {
+                        return fileSet.scan( files, dirs );
+                    }
+                } ) );
+            }
+            for ( Future<Collection<String>> future : futures )
+            {
+                results.add( future.get() );
+            }
+        }
+        catch ( ExecutionException e )
+        {
+            if ( e.getCause() instanceof RuntimeException )
+            {
+                throw (RuntimeException) e.getCause();
             }
+            throw new IllegalStateException( e.getCause() );
+        }
+        catch ( InterruptedException e )
+        {
+            throw new IllegalStateException( e );
+        }
+        finally
+        {
+            executor.shutdownNow();
         }
 
-        return paths;
+        return results;
     }
 
     @Override
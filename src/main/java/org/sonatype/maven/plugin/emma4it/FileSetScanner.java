@@ -0,0 +1,419 @@
+package org.sonatype.maven.plugin.emma4it;
+
+/*
+ * PUT YOUR LICENSE HEADER HERE.
+ */
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.codehaus.plexus.util.SelectorUtils;
+
+/**
+ * Scans a directory tree for the paths matching a set of Ant-like inclusion and exclusion patterns. Unlike plexus'
+ * directory scanner, the patterns are tokenized once, directories that are completely excluded or cannot contain any
+ * included path are not entered and directory listings are cached for the lifetime of the plugin class loader so that
+ * several goals scanning the same build directory only walk it once.
+ */
+final class FileSetScanner
+{
+
+    /**
+     * The patterns for files that are excluded by default, same as for plexus' directory scanner.
+     */
+    static final String[] DEFAULT_EXCLUDES =
+        { "**/*~", "**/#*#", "**/.#*", "**/%*%", "**/._*", "**/CVS", "**/CVS/**", "**/.cvsignore", "**/SCCS",
+            "**/SCCS/**", "**/vssver.scc", "**/.svn", "**/.svn/**", "**/.arch-ids", "**/.arch-ids/**", "**/.bzr",
+            "**/.bzr/**", "**/.MySCMServerInfo", "**/.DS_Store", "**/.git", "**/.git/**", "**/.hg", "**/.hg/**" };
+
+    private static final String[][] DEFAULT_EXCLUDE_TOKENS = tokenize( DEFAULT_EXCLUDES );
+
+    private static final String ANY = "**";
+
+    /**
+     * The maximum number of directory listings to cache.
+     */
+    private static final int MAX_CACHED_LISTINGS = 100000;
+
+    /**
+     * The minimum age (in milliseconds) of a directory's modification time at the time it was listed before its listing
+     * may be reused. This guards against file systems with coarse timestamps where a change shortly after the listing
+     * would not be reflected in the modification time.
+     */
+    private static final long MIN_LISTING_AGE = 2000;
+
+    private static final Map<File, Listing> LISTINGS = new ConcurrentHashMap<File, Listing>();
+
+    private final String[][] includes;
+
+    private final String[][] excludes;
+
+    /**
+     * The patterns of excluded directories whose entire contents is excluded as well, i.e. the exclusion patterns
+     * ending with <code>**</code> without that trailing token.
+     */
+    private final String[][] prunes;
+
+    /**
+     * Creates a new scanner for the specified patterns.
+     *
+     * @param includes The Ant-like inclusion patterns, maybe {@code null} to include all files.
+     * @param excludes The Ant-like exclusion patterns, may be {@code null} to exclude no files besides the defaults.
+     */
+    FileSetScanner( String[] includes, String[] excludes )
+    {
+        this.includes = tokenize( ( includes == null || includes.length <= 0 ) ? new String[] { ANY } : includes );
+
+        String[][] tokenized = tokenize( ( excludes == null ) ? new String[0] : excludes );
+        this.excludes = new String[tokenized.length + DEFAULT_EXCLUDE_TOKENS.length][];
+        System.arraycopy( tokenized, 0, this.excludes, 0, tokenized.length );
+        System.arraycopy( DEFAULT_EXCLUDE_TOKENS, 0, this.excludes, tokenized.length, DEFAULT_EXCLUDE_TOKENS.length );
+
+        List<String[]> prunes = new ArrayList<String[]>();
+        for ( String[] exclude : this.excludes )
+        {
+            if ( exclude.length > 0 && ANY.equals( exclude[exclude.length - 1] ) )
+            {
+                String[] prune = new String[exclude.length - 1];
+                System.arraycopy( exclude, 0, prune, 0, prune.length );
+                prunes.add( prune );
+            }
+        }
+        this.prunes = prunes.toArray( new String[prunes.size()][] );
+    }
+
+    /**
+     * Scans the specified base directory.
+     *
+     * @param basedir The base directory to scan, must not be {@code null}.
+     * @param files A flag whether to include normal files in the result collection.
+     * @param dirs A flag whether to include directories in the result collection.
+     * @param paths The collection to add the absolute paths of the matched files to, must not be {@code null}.
+     */
+    void scan( File basedir, boolean files, boolean dirs, Collection<String> paths )
+    {
+        if ( basedir.isDirectory() )
+        {
+            if ( dirs && isSelected( new String[0] ) )
+            {
+                paths.add( basedir.getAbsolutePath() );
+            }
+            scan( basedir, new String[0], files, dirs, paths );
+        }
+    }
+
+    private void scan( File dir, String[] tokens, boolean files, boolean dirs, Collection<String> paths )
+    {
+        Listing listing = list( dir );
+
+        for ( int i = 0; i < listing.names.length; i++ )
+        {
+            String[] childTokens = new String[tokens.length + 1];
+            System.arraycopy( tokens, 0, childTokens, 0, tokens.length );
+            childTokens[tokens.length] = listing.names[i];
+
+            File child = new File( dir, listing.names[i] );
+
+            if ( listing.directories[i] )
+            {
+                if ( dirs && isSelected( childTokens ) )
+                {
+                    paths.add( child.getAbsolutePath() );
+                }
+                if ( couldHoldIncluded( childTokens ) && !isPruned( childTokens ) )
+                {
+                    scan( child, childTokens, files, dirs, paths );
+                }
+            }
+            else if ( files && isSelected( childTokens ) )
+            {
+                paths.add( child.getAbsolutePath() );
+            }
+        }
+    }
+
+    private boolean isSelected( String[] tokens )
+    {
+        return matchesAny( includes, tokens ) && !matchesAny( excludes, tokens );
+    }
+
+    private boolean couldHoldIncluded( String[] tokens )
+    {
+        for ( String[] include : includes )
+        {
+            if ( matchPatternStart( include, tokens ) )
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isPruned( String[] tokens )
+    {
+        return matchesAny( prunes, tokens );
+    }
+
+    private static boolean matchesAny( String[][] patterns, String[] tokens )
+    {
+        for ( String[] pattern : patterns )
+        {
+            if ( matchPath( pattern, tokens ) )
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Listing list( File dir )
+    {
+        long lastModified = dir.lastModified();
+
+        Listing listing = LISTINGS.get( dir );
+        if ( listing != null && listing.lastModified == lastModified
+            && listing.listed - lastModified >= MIN_LISTING_AGE )
+        {
+            return listing;
+        }
+
+        long listed = System.currentTimeMillis();
+        File[] children = dir.listFiles();
+        if ( children == null )
+        {
+            children = new File[0];
+        }
+
+        String[] names = new String[children.length];
+        boolean[] directories = new boolean[children.length];
+        for ( int i = 0; i < children.length; i++ )
+        {
+            names[i] = children[i].getName();
+            directories[i] = children[i].isDirectory();
+        }
+
+        listing = new Listing( lastModified, listed, names, directories );
+
+        if ( LISTINGS.size() >= MAX_CACHED_LISTINGS )
+        {
+            LISTINGS.clear();
+        }
+        LISTINGS.put( dir, listing );
+
+        return listing;
+    }
+
+    private static String[][] tokenize( String[] patterns )
+    {
+        String[][] tokenized = new String[patterns.length][];
+        for ( int i = 0; i < patterns.length; i++ )
+        {
+            tokenized[i] = tokenize( patterns[i] );
+        }
+        return tokenized;
+    }
+
+    private static String[] tokenize( String pattern )
+    {
+        String normalized = pattern.trim().replace( '\\', '/' );
+        if ( normalized.endsWith( "/" ) )
+        {
+            normalized += ANY;
+        }
+
+        List<String> tokens = new ArrayList<String>();
+        for ( String token : normalized.split( "/" ) )
+        {
+            if ( token.length() > 0 )
+            {
+                tokens.add( token.intern() );
+            }
+        }
+        return tokens.toArray( new String[tokens.size()] );
+    }
+
+    private static boolean match( String pattern, String name )
+    {
+        if ( "*".equals( pattern ) )
+        {
+            return true;
+        }
+        if ( pattern.indexOf( '*' ) < 0 && pattern.indexOf( '?' ) < 0 )
+        {
+            return pattern.equals( name );
+        }
+        return SelectorUtils.match( pattern, name, true );
+    }
+
+    /**
+     * Tests whether the specified path could be the parent of a path matched by the given pattern.
+     *
+     * @param pattern The tokenized pattern, must not be {@code null}.
+     * @param path The tokenized path, must not be {@code null}.
+     * @return {@code true} if the pattern may match a path below the given path, {@code false} otherwise.
+     */
+    static boolean matchPatternStart( String[] pattern, String[] path )
+    {
+        int patIdx = 0;
+        int strIdx = 0;
+
+        while ( patIdx < pattern.length && strIdx < path.length )
+        {
+            if ( ANY.equals( pattern[patIdx] ) )
+            {
+                return true;
+            }
+            if ( !match( pattern[patIdx], path[strIdx] ) )
+            {
+                return false;
+            }
+            patIdx++;
+            strIdx++;
+        }
+
+        return strIdx >= path.length || patIdx < pattern.length;
+    }
+
+    /**
+     * Tests whether the specified path matches the given pattern, using Ant's semantics for <code>**</code>.
+     *
+     * @param pattern The tokenized pattern, must not be {@code null}.
+     * @param path The tokenized path, must not be {@code null}.
+     * @return {@code true} if the pattern matches the path, {@code false} otherwise.
+     */
+    static boolean matchPath( String[] pattern, String[] path )
+    {
+        int patIdxStart = 0;
+        int patIdxEnd = pattern.length - 1;
+        int strIdxStart = 0;
+        int strIdxEnd = path.length - 1;
+
+        // up to first '**'
+        while ( patIdxStart <= patIdxEnd && strIdxStart <= strIdxEnd )
+        {
+            if ( ANY.equals( pattern[patIdxStart] ) )
+            {
+                break;
+            }
+            if ( !match( pattern[patIdxStart], path[strIdxStart] ) )
+            {
+                return false;
+            }
+            patIdxStart++;
+            strIdxStart++;
+        }
+        if ( strIdxStart > strIdxEnd )
+        {
+            return onlyAny( pattern, patIdxStart, patIdxEnd );
+        }
+        else if ( patIdxStart > patIdxEnd )
+        {
+            return false;
+        }
+
+        // up to last '**'
+        while ( patIdxStart <= patIdxEnd && strIdxStart <= strIdxEnd )
+        {
+            if ( ANY.equals( pattern[patIdxEnd] ) )
+            {
+                break;
+            }
+            if ( !match( pattern[patIdxEnd], path[strIdxEnd] ) )
+            {
+                return false;
+            }
+            patIdxEnd--;
+            strIdxEnd--;
+        }
+        if ( strIdxStart > strIdxEnd )
+        {
+            return onlyAny( pattern, patIdxStart, patIdxEnd );
+        }
+
+        // the path segments between the '**' tokens
+        while ( patIdxStart != patIdxEnd && strIdxStart <= strIdxEnd )
+        {
+            int patIdxTmp = -1;
+            for ( int i = patIdxStart + 1; i <= patIdxEnd; i++ )
+            {
+                if ( ANY.equals( pattern[i] ) )
+                {
+                    patIdxTmp = i;
+                    break;
+                }
+            }
+            if ( patIdxTmp == patIdxStart + 1 )
+            {
+                // '**/**' situation, so skip one
+                patIdxStart++;
+                continue;
+            }
+
+            int patLength = patIdxTmp - patIdxStart - 1;
+            int strLength = strIdxEnd - strIdxStart + 1;
+            int foundIdx = -1;
+            strLoop: for ( int i = 0; i <= strLength - patLength; i++ )
+            {
+                for ( int j = 0; j < patLength; j++ )
+                {
+                    if ( !match( pattern[patIdxStart + j + 1], path[strIdxStart + i + j] ) )
+                    {
+                        continue strLoop;
+                    }
+                }
+                foundIdx = strIdxStart + i;
+                break;
+            }
+            if ( foundIdx == -1 )
+            {
+                return false;
+            }
+
+            patIdxStart = patIdxTmp;
+            strIdxStart = foundIdx + patLength;
+        }
+
+        return onlyAny( pattern, patIdxStart, patIdxEnd );
+    }
+
+    private static boolean onlyAny( String[] pattern, int start, int end )
+    {
+        for ( int i = start; i <= end; i++ )
+        {
+            if ( !ANY.equals( pattern[i] ) )
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The cached listing of a directory.
+     */
+    private static final class Listing
+    {
+
+        final long lastModified;
+
+        final long listed;
+
+        final String[] names;
+
+        final boolean[] directories;
+
+        Listing( long lastModified, long listed, String[] names, boolean[] directories )
+        {
+            this.lastModified = lastModified;
+            this.listed = listed;
+            this.names = names;
+            this.directories = directories;
+        }
+
+    }
+
+}
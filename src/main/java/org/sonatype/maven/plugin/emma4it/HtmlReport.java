@@ -0,0 +1,504 @@
+package org.sonatype.maven.plugin.emma4it;
+
+/*
+ * PUT YOUR LICENSE HEADER HERE.
+ */
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.vladium.emma.data.ClassDescriptor;
+import com.vladium.emma.data.MethodDescriptor;
+
+/**
+ * Renders an HTML report of a coverage model whose pages are modeled after emma's HTML report without reproducing it:
+ * an overall summary in <code>index.html</code> links to one page per package named
+ * <code>_files/&lt;package&gt;.html</code>, which in turn links to one page per class. Methods are listed by their
+ * name and descriptor, and the tables show the class, method and block counters of {@link CoverageCounts} but not
+ * emma's line counter. Class pages list the methods and, if the source file of the class is found, the source code
+ * with the lines colored by their coverage. Unlike emma's report, the package and class pages are rendered
+ * concurrently, each page being a separate task, so the source files are read and decorated in parallel as well. The
+ * renderer keeps {@link PackageDigests} of the reported packages and only re-renders the pages of packages whose
+ * classes, coverage or source files changed since the last run, along with the overall summary.
+ */
+final class HtmlReport
+{
+
+    /**
+     * The name of this report format.
+     */
+    static final String FORMAT = "parallel-html";
+
+    private static final String FILES = "_files";
+
+    /**
+     * The version of the page layout, to be increased whenever the rendered pages change.
+     */
+    private static final String LAYOUT = "html-3";
+
+    private static final String STYLE =
+        "body{font-family:sans-serif;font-size:13px}table{border-collapse:collapse}"
+            + "th,td{border:1px solid #ccc;padding:1px 6px;text-align:left}th{background:#ccf}td.n{text-align:right}"
+            + "pre{margin:0}.c{background:#dfd}.p{background:#ffc}.z{background:#fdd}.l{color:#888;text-align:right}";
+
+    private final File outputDirectory;
+
+    private final SourceIndex sources;
+
+    private final int threads;
+
+    /**
+     * Creates a new renderer.
+     *
+     * @param outputDirectory The directory to write <code>index.html</code> to, must not be {@code null}.
+     * @param sources The index to look up the source files of the classes, may be {@code null}.
+     * @param threads The number of pages to render concurrently.
+     */
+    HtmlReport( File outputDirectory, SourceIndex sources, int threads )
+    {
+        this.outputDirectory = outputDirectory;
+        this.sources = sources;
+        this.threads = Math.max( 1, threads );
+    }
+
+    /**
+     * Renders the report of the specified model.
+     *
+     * @param model The coverage model to report, must not be {@code null}.
+     * @return The number of rendered pages, excluding the pages of packages whose data did not change since the last
+     *         run.
+     * @throws IOException If any page could not be written.
+     */
+    int write( CoverageModel model )
+        throws IOException
+    {
+        final Map<String, List<ClassDescriptor>> packages = model.packages();
+        final Map<String, CoverageCounts> packageCounts = new TreeMap<String, CoverageCounts>();
+        final Map<ClassDescriptor, CoverageCounts> classCounts = new HashMap<ClassDescriptor, CoverageCounts>();
+        final Map<ClassDescriptor, boolean[][]> coverages = new HashMap<ClassDescriptor, boolean[][]>();
+        for ( Map.Entry<String, List<ClassDescriptor>> entry : packages.entrySet() )
+        {
+            CoverageCounts counts = new CoverageCounts();
+            for ( ClassDescriptor cls : entry.getValue() )
+            {
+                CoverageCounts clsCounts = model.getCounts( cls );
+                classCounts.put( cls, clsCounts );
+                coverages.put( cls, model.getCoverage( cls ) );
+                counts.add( clsCounts );
+            }
+            packageCounts.put( entry.getKey(), counts );
+        }
+
+        File filesDirectory = new File( outputDirectory, FILES );
+        filesDirectory.mkdirs();
+        PackageDigests digests = new PackageDigests( new File( filesDirectory, "digests.properties" ), LAYOUT );
+
+        List<Callable<Object>> pages = new ArrayList<Callable<Object>>();
+        for ( final Map.Entry<String, List<ClassDescriptor>> entry : packages.entrySet() )
+        {
+            final Map<ClassDescriptor, File> sources = new HashMap<ClassDescriptor, File>();
+            for ( ClassDescriptor cls : entry.getValue() )
+            {
+                File source = findSource( cls );
+                if ( source != null )
+                {
+                    sources.put( cls, source );
+                }
+            }
+
+            File packagePage = new File( filesDirectory, getPackagePage( entry.getKey() ) );
+            if ( digests.update( entry.getKey(), entry.getValue(), model, sources ) && packagePage.isFile() )
+            {
+                continue;
+            }
+            delete( new File( filesDirectory, getPackageDirectory( entry.getKey() ) ) );
+
+            pages.add( new Callable<Object>()
+            {
+                public Object call()
+                    throws IOException
+                {
+                    writePackage( entry.getKey(), entry.getValue(), packageCounts.get( entry.getKey() ), classCounts );
+                    return null;
+                }
+            } );
+            for ( final ClassDescriptor cls : entry.getValue() )
+            {
+                pages.add( new Callable<Object>()
+                {
+                    public Object call()
+                        throws IOException
+                    {
+                        writeClass( cls, classCounts.get( cls ), coverages.get( cls ), sources.get( cls ) );
+                        return null;
+                    }
+                } );
+            }
+        }
+
+        for ( String name : digests.getRemoved() )
+        {
+            new File( filesDirectory, getPackagePage( name ) ).delete();
+            delete( new File( filesDirectory, getPackageDirectory( name ) ) );
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool( Math.min( threads, Math.max( 1, pages.size() ) ) );
+        try
+        {
+            List<Future<Object>> results = new ArrayList<Future<Object>>();
+            for ( Callable<Object> page : pages )
+            {
+                results.add( executor.submit( page ) );
+            }
+
+            writeIndex( packageCounts );
+
+            for ( Future<Object> result : results )
+            {
+                result.get();
+            }
+
+            digests.save();
+        }
+        catch ( ExecutionException e )
+        {
+            if ( e.getCause() instanceof IOException )
+            {
+                throw (IOException) e.getCause();
+            }
+            throw (IOException) new IOException( "Unable to render HTML report" ).initCause( e.getCause() );
+        }
+        catch ( InterruptedException e )
+        {
+            throw (IOException) new IOException( "Interrupted while rendering HTML report" ).initCause( e );
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+
+        return pages.size() + 1;
+    }
+
+    private void writeIndex( Map<String, CoverageCounts> packageCounts )
+        throws IOException
+    {
+        CoverageCounts totals = new CoverageCounts();
+        for ( CoverageCounts counts : packageCounts.values() )
+        {
+            totals.add( counts );
+        }
+
+        StringBuilder html = new StringBuilder( 1024 + packageCounts.size() * 256 );
+        startPage( html, "EMMA Coverage Report (generated " + new Date() + ")" );
+        html.append( "<h2>OVERALL COVERAGE SUMMARY</h2>\n" );
+        startTable( html, "name" );
+        appendRow( html, "all classes", null, totals );
+        html.append( "</table>\n<h2>COVERAGE BREAKDOWN BY PACKAGE</h2>\n" );
+        startTable( html, "name" );
+        for ( Map.Entry<String, CoverageCounts> entry : packageCounts.entrySet() )
+        {
+            appendRow( html, getDisplayName( entry.getKey() ), FILES + '/' + getPackagePage( entry.getKey() ),
+                       entry.getValue() );
+        }
+        html.append( "</table>\n" );
+        endPage( html );
+
+        writePage( new File( outputDirectory, "index.html" ), html );
+    }
+
+    private void writePackage( String name, List<ClassDescriptor> classes, CoverageCounts counts,
+                               Map<ClassDescriptor, CoverageCounts> classCounts )
+        throws IOException
+    {
+        StringBuilder html = new StringBuilder( 1024 + classes.size() * 256 );
+        startPage( html, "EMMA Coverage Report" );
+        html.append( "<p>[<a href=\"../index.html\">all classes</a>]</p>\n" );
+        html.append( "<h2>COVERAGE SUMMARY FOR PACKAGE [" ).append( Escaping.xml( getDisplayName( name ) ) );
+        html.append( "]</h2>\n" );
+        startTable( html, "name" );
+        appendRow( html, getDisplayName( name ), null, counts );
+        html.append( "</table>\n<h2>COVERAGE BREAKDOWN BY CLASS</h2>\n" );
+        startTable( html, "name" );
+        for ( ClassDescriptor cls : classes )
+        {
+            appendRow( html, cls.getName(), getClassPage( cls ), classCounts.get( cls ) );
+        }
+        html.append( "</table>\n" );
+        endPage( html );
+
+        writePage( new File( outputDirectory, FILES + '/' + getPackagePage( name ) ), html );
+    }
+
+    private void writeClass( ClassDescriptor cls, CoverageCounts counts, boolean[][] coverage, File source )
+        throws IOException
+    {
+        String packageName = cls.getPackageVMName().replace( '/', '.' );
+
+        StringBuilder html = new StringBuilder( 4096 );
+        startPage( html, "EMMA Coverage Report" );
+        html.append( "<p>[<a href=\"../../index.html\">all classes</a>][<a href=\"../" );
+        html.append( Escaping.xml( getPackagePage( packageName ) ) ).append( "\">" );
+        html.append( Escaping.xml( getDisplayName( packageName ) ) ).append( "</a>]</p>\n" );
+        html.append( "<h2>COVERAGE SUMMARY FOR CLASS [" ).append( Escaping.xml( cls.getName() ) ).append( "]</h2>\n" );
+        startTable( html, "name" );
+        appendRow( html, cls.getName(), null, counts );
+        html.append( "</table>\n<h2>COVERAGE BREAKDOWN BY METHOD</h2>\n" );
+        startTable( html, "name" );
+        MethodDescriptor[] methods = cls.getMethods();
+        for ( int m = 0; m < methods.length; m++ )
+        {
+            if ( methods[m].getBlockSizes() != null )
+            {
+                boolean[] blocks = ( coverage != null && m < coverage.length ) ? coverage[m] : null;
+                appendRow( html, methods[m].getName() + methods[m].getDescriptor(), null,
+                           getMethodCounts( methods[m], blocks ) );
+            }
+        }
+        html.append( "</table>\n" );
+
+        if ( source != null )
+        {
+            appendSource( html, source, getLineStatus( cls, coverage ) );
+        }
+        endPage( html );
+
+        writePage( new File( outputDirectory, FILES + '/' + getPackageDirectory( packageName ) + '/'
+            + getClassFileName( cls ) ), html );
+    }
+
+    private static void delete( File directory )
+    {
+        File[] files = directory.listFiles();
+        if ( files != null )
+        {
+            for ( File file : files )
+            {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    private static CoverageCounts getMethodCounts( MethodDescriptor method, boolean[] blocks )
+    {
+        CoverageCounts counts = new CoverageCounts();
+        int[] blockSizes = method.getBlockSizes();
+        int covered = 0;
+        int total = 0;
+        for ( int b = 0; b < blockSizes.length; b++ )
+        {
+            total += blockSizes[b];
+            if ( blocks != null && b < blocks.length && blocks[b] )
+            {
+                covered += blockSizes[b];
+            }
+        }
+        counts.set( CoverageCounts.METHOD, ( covered > 0 ) ? 1 : 0, 1 );
+        counts.set( CoverageCounts.BLOCK, covered, total );
+        return counts;
+    }
+
+    /**
+     * Determines the coverage status of the source lines of a class: <code>'c'</code> if all blocks on the line are
+     * covered, <code>'p'</code> if some are covered and <code>'z'</code> if none is covered.
+     */
+    static Map<Integer, Character> getLineStatus( ClassDescriptor cls, boolean[][] coverage )
+    {
+        Map<Integer, int[]> lines = new HashMap<Integer, int[]>();
+        MethodDescriptor[] methods = cls.getMethods();
+        for ( int m = 0; m < methods.length; m++ )
+        {
+            int[][] blockMap = methods[m].getBlockMap();
+            if ( blockMap == null || !methods[m].hasLineNumberInfo() )
+            {
+                continue;
+            }
+            boolean[] blocks = ( coverage != null && m < coverage.length ) ? coverage[m] : null;
+            for ( int b = 0; b < blockMap.length; b++ )
+            {
+                if ( blockMap[b] == null )
+                {
+                    continue;
+                }
+                boolean covered = blocks != null && b < blocks.length && blocks[b];
+                for ( int line : blockMap[b] )
+                {
+                    int[] counts = lines.get( Integer.valueOf( line ) );
+                    if ( counts == null )
+                    {
+                        counts = new int[2];
+                        lines.put( Integer.valueOf( line ), counts );
+                    }
+                    counts[0] += covered ? 1 : 0;
+                    counts[1]++;
+                }
+            }
+        }
+
+        Map<Integer, Character> status = new HashMap<Integer, Character>();
+        for ( Map.Entry<Integer, int[]> entry : lines.entrySet() )
+        {
+            int[] counts = entry.getValue();
+            char c = ( counts[0] >= counts[1] ) ? 'c' : ( counts[0] > 0 ) ? 'p' : 'z';
+            status.put( entry.getKey(), Character.valueOf( c ) );
+        }
+        return status;
+    }
+
+    /**
+     * Looks up the source file of the specified class in the source index.
+     *
+     * @param cls The class descriptor, must not be {@code null}.
+     * @return The source file or {@code null} if not found.
+     */
+    File findSource( ClassDescriptor cls )
+    {
+        if ( sources == null || cls.getSrcFileName() == null )
+        {
+            return null;
+        }
+        return sources.find( ChangeSet.getSourcePath( cls ) );
+    }
+
+    private static void appendSource( StringBuilder html, File source, Map<Integer, Character> status )
+        throws IOException
+    {
+        html.append( "<h2>SOURCE</h2>\n<table>\n" );
+        BufferedReader reader = new BufferedReader( new InputStreamReader( new FileInputStream( source ), "UTF-8" ) );
+        try
+        {
+            int number = 1;
+            for ( String line = reader.readLine(); line != null; line = reader.readLine(), number++ )
+            {
+                Character c = status.get( Integer.valueOf( number ) );
+                html.append( "<tr><td class=\"l\"><a name=\"" ).append( number ).append( "\">" ).append( number );
+                html.append( "</a></td><td" );
+                if ( c != null )
+                {
+                    html.append( " class=\"" ).append( c.charValue() ).append( '"' );
+                }
+                html.append( "><pre>" ).append( Escaping.xml( line.replace( "\t", "    " ) ) );
+                html.append( "</pre></td></tr>\n" );
+            }
+        }
+        finally
+        {
+            reader.close();
+        }
+        html.append( "</table>\n" );
+    }
+
+    private static void startPage( StringBuilder html, String title )
+    {
+        html.append( "<!DOCTYPE html>\n<html><head><meta charset=\"UTF-8\"><title>" ).append( Escaping.xml( title ) );
+        html.append( "</title><style>" ).append( STYLE ).append( "</style></head><body>\n<h1>" );
+        html.append( Escaping.xml( title ) ).append( "</h1>\n" );
+    }
+
+    private static void endPage( StringBuilder html )
+    {
+        html.append( "</body></html>\n" );
+    }
+
+    private static void startTable( StringBuilder html, String first )
+    {
+        html.append( "<table>\n<tr><th>" ).append( first ).append( "</th>" );
+        for ( String name : CoverageCounts.NAMES )
+        {
+            html.append( "<th>" ).append( name ).append( ", %</th>" );
+        }
+        html.append( "</tr>\n" );
+    }
+
+    private static void appendRow( StringBuilder html, String name, String link, CoverageCounts counts )
+    {
+        html.append( "<tr><td>" );
+        if ( link != null )
+        {
+            html.append( "<a href=\"" ).append( Escaping.xml( link ) ).append( "\">" );
+        }
+        html.append( Escaping.xml( name ) );
+        if ( link != null )
+        {
+            html.append( "</a>" );
+        }
+        html.append( "</td>" );
+        for ( int i = 0; i < CoverageCounts.NAMES.length; i++ )
+        {
+            html.append( "<td class=\"n\">" );
+            if ( counts.getTotal( i ) > 0 )
+            {
+                html.append( (int) ( counts.getRatio( i ) * 100 ) ).append( "% (" ).append( counts.getCovered( i ) );
+                html.append( '/' ).append( counts.getTotal( i ) ).append( ')' );
+            }
+            html.append( "</td>" );
+        }
+        html.append( "</tr>\n" );
+    }
+
+    private static void writePage( File file, CharSequence html )
+        throws IOException
+    {
+        file.getParentFile().mkdirs();
+        Writer writer = new BufferedWriter( new OutputStreamWriter( new FileOutputStream( file ), "UTF-8" ) );
+        try
+        {
+            writer.append( html );
+        }
+        finally
+        {
+            writer.close();
+        }
+    }
+
+    private static String getDisplayName( String packageName )
+    {
+        return ( packageName.length() > 0 ) ? packageName : "default package";
+    }
+
+    /**
+     * Gets the path of the page of the specified package relative to the <code>_files</code> directory.
+     */
+    static String getPackagePage( String packageName )
+    {
+        return getPackageDirectory( packageName ) + ".html";
+    }
+
+    private static String getPackageDirectory( String packageName )
+    {
+        return ( packageName.length() > 0 ) ? packageName : "default";
+    }
+
+    /**
+     * Gets the path of the page of the specified class relative to the <code>_files</code> directory.
+     */
+    static String getClassPage( ClassDescriptor cls )
+    {
+        return getPackageDirectory( cls.getPackageVMName().replace( '/', '.' ) ) + '/' + getClassFileName( cls );
+    }
+
+    private static String getClassFileName( ClassDescriptor cls )
+    {
+        return cls.getName() + ".html";
+    }
+
+}
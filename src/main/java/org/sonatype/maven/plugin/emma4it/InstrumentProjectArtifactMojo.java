@@ -25,6 +25,7 @@ import java.util.Collection;
 import java.util.Enumeration;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
 import java.util.jar.JarOutputStream;
@@ -78,7 +79,9 @@ public class InstrumentProjectArtifactMojo
     private MavenProject project;
 
     /**
-     * The include filter for the classes to instrument/measure.
+     * The include filter for the classes to instrument/measure. If {@link #includes} or {@link #excludes} are given and
+     * the {@link #outputMode} is <code>overwrite</code>, the class entries of the artifact are matched by their names
+     * before emma sees them, so excluded classes are never inflated and parsed by emma.
      *
      * @parameter
      * @since 1.2
@@ -105,6 +108,65 @@ public class InstrumentProjectArtifactMojo
      */
     private boolean appendEmma;
 
+    /**
+     * Whether to append only the emma runtime classes that instrumented code references instead of the entire emma
+     * jar when {@link #appendEmma} is enabled. The referenced classes are determined from the constant pools of emma's
+     * runtime, so classes that emma loads by computed names could be missing. Enable this only after verifying that the
+     * tests collect coverage with the smaller jar; by default the entire emma jar is appended as before.
+     *
+     * @parameter expression="${emma4it.minimalRuntime}" default-value="false"
+     * @since 1.4
+     */
+    private boolean minimalRuntime;
+
+    /**
+     * Whether to only re-instrument the classes whose CRC changed since the last run. The instrumented classes and
+     * metadata of the last run are kept in <code>${project.build.directory}/emma/incremental</code>. Like
+     * {@link #threads} and {@link #nestedArchives}, this requires the {@link #outputMode} <code>overwrite</code>.
+     *
+     * @parameter expression="${emma4it.incremental}" default-value="false"
+     * @since 1.4
+     */
+    private boolean incremental;
+
+    /**
+     * The maximum number of threads used to instrument a large archive. If greater than one, the classes of an archive
+     * are split into chunks of {@link #chunkSize} classes which are instrumented concurrently. The produced archive and
+     * metadata are the same as for a sequential run.
+     *
+     * @parameter expression="${emma4it.threads}" default-value="1"
+     * @since 1.4
+     */
+    private int threads;
+
+    /**
+     * The number of classes per chunk when instrumenting with multiple {@link #threads}.
+     *
+     * @parameter expression="${emma4it.chunkSize}" default-value="1000"
+     * @since 1.4
+     */
+    private int chunkSize;
+
+    /**
+     * The Ant-like patterns for the entry names of nested archives to instrument as well, e.g.
+     * <code>WEB-INF/lib/foo-*.jar</code> for libraries of a WAR or <code>lib/*.jar</code> for an EAR. The nested
+     * archives are instrumented concurrently using up to {@link #threads} threads and written back into the outer
+     * archive.
+     *
+     * @parameter
+     * @since 1.4
+     */
+    private String[] nestedArchives;
+
+    /**
+     * Whether to store the metadata file gzip-compressed. Compressed files keep their names and are read transparently
+     * by the goals of this plugin.
+     *
+     * @parameter expression="${emma4it.compress}" default-value="false"
+     * @since 1.4
+     */
+    private boolean compress;
+
     public void execute()
         throws MojoExecutionException
     {
@@ -121,6 +183,8 @@ public class InstrumentProjectArtifactMojo
             throw new MojoExecutionException( "invalid outputMode value: " + outputMode );
         }
 
+        XProperties properties = new XProperties();
+
         File emmaFolder = new File( project.getBuild().getDirectory(), "emma" );
         if ( !emmaFolder.exists() )
         {
@@ -128,28 +192,79 @@ public class InstrumentProjectArtifactMojo
         }
 
         File instrumentedFile = new File( emmaFolder, projectFile.getName() );
-        try
+
+        boolean overwrite = outMode == InstrProcessor.OutMode.OUT_MODE_OVERWRITE;
+        boolean archiveInstrumenter =
+            incremental || threads > 1 || ( nestedArchives != null && nestedArchives.length > 0 );
+        if ( archiveInstrumenter && !overwrite )
         {
-            FileUtils.copyFile( projectFile, instrumentedFile );
+            throw new MojoExecutionException( "The outputMode " + outputMode
+                + " is not supported with incremental, multi-threaded or nested archive instrumentation" );
         }
-        catch ( IOException e )
+
+        // the archive instrumenter also skips excluded classes by name before they reach emma
+        if ( archiveInstrumenter || ( overwrite && getCoverageFilters() != null ) )
         {
-            throw new MojoExecutionException( e.getMessage(), e );
+            ArchiveInstrumenter instrumenter =
+                new ArchiveInstrumenter( new File( emmaFolder, "incremental/" + projectFile.getName() ), getLog() );
+            instrumenter.setFilters( getCoverageFilters() );
+            instrumenter.setProperties( properties );
+            instrumenter.setIncremental( incremental );
+            instrumenter.setThreads( threads );
+            instrumenter.setChunkSize( chunkSize );
+            instrumenter.setNestedArchives( nestedArchives );
+            try
+            {
+                instrumenter.instrument( projectFile, instrumentedFile, new File( emmaFolder, "coverage.em" ) );
+            }
+            catch ( IOException e )
+            {
+                throw new MojoExecutionException( "Unable to instrument " + projectFile, e );
+            }
         }
+        else
+        {
+            try
+            {
+                FileUtils.copyFile( projectFile, instrumentedFile );
+            }
+            catch ( IOException e )
+            {
+                throw new MojoExecutionException( e.getMessage(), e );
+            }
 
-        InstrProcessor processor = InstrProcessor.create();
-        processor.setAppName( IAppConstants.APP_NAME );
+            InstrProcessor processor = InstrProcessor.create();
+            processor.setAppName( IAppConstants.APP_NAME );
 
-        processor.setInstrPath( new String[] { instrumentedFile.getAbsolutePath() }, true );
-        processor.setInclExclFilter( getCoverageFilters() );
-        processor.setOutMode( outMode );
-        processor.setInstrOutDir( null );
-        processor.setMetaOutFile( new File( emmaFolder, "coverage.em" ).getAbsolutePath() );
-        processor.setMetaOutMerge( Boolean.TRUE );
-        XProperties properties = new XProperties();
-        processor.setPropertyOverrides( properties );
+            processor.setInstrPath( new String[] { instrumentedFile.getAbsolutePath() }, true );
+            processor.setInclExclFilter( getCoverageFilters() );
+            processor.setOutMode( outMode );
+            processor.setInstrOutDir( null );
+            processor.setPropertyOverrides( properties );
+
+            File metaOutFile = new File( emmaFolder, "coverage.em" );
+            try
+            {
+                MetadataStore.instrument( processor, metaOutFile );
+            }
+            catch ( IOException e )
+            {
+                throw new MojoExecutionException( "Unable to write metadata to " + metaOutFile, e );
+            }
+        }
 
-        processor.run();
+        if ( compress )
+        {
+            File metaOutFile = new File( emmaFolder, "coverage.em" );
+            try
+            {
+                MetadataStore.compress( metaOutFile );
+            }
+            catch ( IOException e )
+            {
+                throw new MojoExecutionException( "Unable to compress " + metaOutFile, e );
+            }
+        }
 
         if ( appendEmma )
         {
@@ -186,8 +301,8 @@ public class InstrumentProjectArtifactMojo
         JarOutputStream finalJar = new JarOutputStream( new FileOutputStream( instrumentedFile ) );
         try
         {
-            append( finalJar, original, false );
-            append( finalJar, emma.getFile(), true );
+            append( finalJar, original, false, null );
+            append( finalJar, emma.getFile(), true, minimalRuntime ? getRuntimeEntries( emma.getFile() ) : null );
         }
         finally
         {
@@ -195,7 +310,23 @@ public class InstrumentProjectArtifactMojo
         }
     }
 
-    private void append( JarOutputStream output, File jar, boolean excludeMetainf )
+    private Set<String> getRuntimeEntries( File emmaFile )
+        throws IOException
+    {
+        JarFile jar = new JarFile( emmaFile );
+        try
+        {
+            Set<String> entries = RuntimeClosure.compute( jar );
+            getLog().info( "Appending " + entries.size() + " of " + jar.size() + " emma entries required at runtime" );
+            return entries;
+        }
+        finally
+        {
+            jar.close();
+        }
+    }
+
+    private void append( JarOutputStream output, File jar, boolean excludeMetainf, Set<String> names )
         throws IOException
     {
         JarFile ejar = new JarFile( jar );
@@ -204,7 +335,8 @@ public class InstrumentProjectArtifactMojo
         while ( entries.hasMoreElements() )
         {
             JarEntry jarEntry = entries.nextElement();
-            if ( jarEntry.isDirectory() || ( excludeMetainf && jarEntry.getName().startsWith( "META-INF" ) ) )
+            if ( jarEntry.isDirectory() || ( excludeMetainf && jarEntry.getName().startsWith( "META-INF" ) )
+                || ( names != null && !names.contains( jarEntry.getName() ) ) )
             {
                 continue;
             }
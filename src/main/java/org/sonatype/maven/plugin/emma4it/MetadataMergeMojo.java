@@ -1,23 +1,32 @@
 package org.sonatype.maven.plugin.emma4it;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
 
-import org.apache.commons.io.FileUtils;
-import org.apache.commons.io.filefilter.NameFileFilter;
-import org.apache.commons.io.filefilter.TrueFileFilter;
 import org.apache.maven.plugin.AbstractMojo;
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.MojoFailureException;
 import org.apache.maven.project.MavenProject;
+import org.sonatype.maven.plugin.emma4it.agent.CompactCoverage;
 
-import com.vladium.emma.IAppConstants;
-import com.vladium.emma.data.MergeProcessor;
-import com.vladium.util.XProperties;
+import com.vladium.emma.data.DataFactory;
 
 /**
+ * Merges the metadata and coverage files found below the search path into <code>coverage.em</code> and
+ * <code>coverage.ec</code> in <code>${project.build.directory}/emma</code>. Both files are merged concurrently. Session
+ * files (<code>*.es</code>, e.g. written by the agent of the <code>prepare-agent</code> goal) contribute their
+ * metadata to <code>coverage.em</code> and their coverage to <code>coverage.ec</code>.
+ *
  * @goal merge
  * @author marvin
  */
@@ -25,6 +34,16 @@ public class MetadataMergeMojo
     extends AbstractMojo
 {
 
+    /**
+     * Marks the end of the files handed to a merge task.
+     */
+    private static final File END = new File( "" );
+
+    /**
+     * The extension of emma session files, which hold both metadata and coverage.
+     */
+    private static final String SESSION_EXTENSION = ".es";
+
     /**
      * Location of the file.
      *
@@ -38,52 +57,201 @@ public class MetadataMergeMojo
      */
     private File searchPath;
 
+    /**
+     * Whether to store the merged files gzip-compressed. Compressed files keep their names and are read transparently
+     * by the goals of this plugin.
+     *
+     * @parameter expression="${emma4it.compress}" default-value="false"
+     * @since 1.4
+     */
+    private boolean compress;
+
+    /**
+     * The maximum estimated heap size in megabytes of the merged data that is kept in memory for a following goal of
+     * the same build, sparing it from parsing the merged files again. The limit applies to the loaded data, not to the
+     * files, which are much smaller when compressed. The cache is used by all goals reading the merged data, e.g. the
+     * <code>emma4it</code> report of the site. A cached merge result is handed to the first goal reading it, later
+     * goals and data that exceeds the limit or was evicted are read from disk. A value of <code>0</code> disables the
+     * cache.
+     *
+     * @parameter expression="${emma4it.cacheLimit}" default-value="64"
+     * @since 1.4
+     */
+    private int cacheLimit;
+
+    /**
+     * Whether to skip merging. The <code>emma4it</code> lifecycle sets this when the coverage data is up to date or the
+     * tests are skipped, see the <code>up-to-date</code> goal.
+     *
+     * @parameter default-value="false"
+     * @since 1.4
+     */
+    private boolean skip;
+
     public void execute()
         throws MojoExecutionException, MojoFailureException
     {
+        if ( skip )
+        {
+            getLog().info( "Skipping merge" );
+            return;
+        }
+
         if ( !searchPath.isDirectory() )
         {
             throw new MojoExecutionException( "SearchPath " + searchPath + " not found." );
         }
 
-        merge( "coverage.ec" );
-        merge( "coverage.em" );
+        File emmaFolder = new File( project.getBuild().getDirectory(), "emma" );
+        MergeTask coverageTask = new MergeTask( new File( emmaFolder, "coverage.ec" ), DataFactory.TYPE_COVERAGEDATA );
+        MergeTask metadataTask = new MergeTask( new File( emmaFolder, "coverage.em" ), DataFactory.TYPE_METADATA );
+        MergeTask[] tasks = { coverageTask, metadataTask };
+
+        // both merges consume the files of a single walk while it is still in progress
+        ExecutorService executor = Executors.newFixedThreadPool( tasks.length );
+        try
+        {
+            List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+            for ( MergeTask task : tasks )
+            {
+                futures.add( executor.submit( task ) );
+            }
+
+            try
+            {
+                walk( searchPath, coverageTask, metadataTask );
+            }
+            finally
+            {
+                for ( MergeTask task : tasks )
+                {
+                    task.add( END );
+                }
+            }
+
+            for ( int i = 0; i < tasks.length; i++ )
+            {
+                String name = tasks[i].output.getName();
+                int count;
+                try
+                {
+                    count = futures.get( i ).get().intValue();
+                }
+                catch ( InterruptedException e )
+                {
+                    throw new MojoExecutionException( "Interrupted while merging " + name, e );
+                }
+                catch ( ExecutionException e )
+                {
+                    throw new MojoExecutionException( "Unable to merge " + name + " into " + tasks[i].output,
+                                                      e.getCause() );
+                }
+
+                if ( count <= 0 )
+                {
+                    getLog().error( name + " metadata not found." );
+                }
+                else
+                {
+                    getLog().info( "Merged " + count + " " + name + " files" );
+                }
+            }
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
     }
 
-    private void merge( String metadataFile )
+    /**
+     * Hands the data files below the specified directory to the merge tasks as they are discovered.
+     */
+    private static void walk( File directory, MergeTask coverageTask, MergeTask metadataTask )
     {
-        getLog().info( "Merging " + metadataFile );
-        String[] paths = getMetadataPaths( metadataFile );
-        if ( paths.length == 0 )
+        File[] files = directory.listFiles();
+        if ( files == null )
         {
-            getLog().error( "coverage.ec metadata not found." );
             return;
         }
+        for ( File file : files )
+        {
+            String name = file.getName();
+            if ( file.isDirectory() )
+            {
+                walk( file, coverageTask, metadataTask );
+            }
+            else if ( name.equals( coverageTask.output.getName() ) || name.endsWith( CompactCoverage.EXTENSION ) )
+            {
+                coverageTask.add( file );
+            }
+            else if ( name.equals( metadataTask.output.getName() ) )
+            {
+                metadataTask.add( file );
+            }
+            else if ( name.endsWith( SESSION_EXTENSION ) )
+            {
+                coverageTask.add( file );
+                metadataTask.add( file );
+            }
+        }
+    }
 
-        String output = project.getBuild().getDirectory() + "/emma/" + metadataFile;
+    /**
+     * Merges the data files it receives into one output file, starting with the first file while further files are
+     * still being discovered. Only the type of data written to the output file is kept from each data file.
+     */
+    private final class MergeTask
+        implements Callable<Integer>
+    {
 
-        MergeProcessor processor = MergeProcessor.create();
-        processor.setAppName( IAppConstants.APP_NAME ); // for log prefixing
+        final File output;
 
-        processor.setDataPath( paths );
-        processor.setSessionOutFile( output );
-        processor.setPropertyOverrides( new XProperties() );
+        private final int type;
 
-        processor.run();
-    }
+        private final BlockingQueue<File> files = new LinkedBlockingQueue<File>();
 
-    @SuppressWarnings( "unchecked" )
-    private String[] getMetadataPaths( String metadataFile )
-    {
-        Collection<File> metadatas =
-            FileUtils.listFiles( searchPath, new NameFileFilter( metadataFile ), TrueFileFilter.INSTANCE );
-        List<String> paths = new ArrayList<String>();
-        for ( File file : metadatas )
+        MergeTask( File output, int type )
         {
-            paths.add( file.getAbsolutePath() );
+            this.output = output;
+            this.type = type;
+        }
+
+        void add( File file )
+        {
+            files.add( file );
+        }
+
+        public Integer call()
+            throws IOException, InterruptedException
+        {
+            CoverageModel model = new CoverageModel( null, null );
+            int count = 0;
+            for ( File file = files.take(); file != END; file = files.take() )
+            {
+                CoverageModel data = CoverageModel.load( Collections.singleton( file ) );
+                if ( type == DataFactory.TYPE_METADATA )
+                {
+                    model = model.merge( new CoverageModel( data.getMetaData(), null ) );
+                }
+                else
+                {
+                    model = model.merge( new CoverageModel( null, data.getCoverageData() ) );
+                }
+                count++;
+            }
+
+            if ( count > 0 )
+            {
+                model.persist( output );
+                if ( compress )
+                {
+                    MetadataStore.compress( output );
+                }
+                ModelCache.put( output, model, cacheLimit * 1024L * 1024L );
+            }
+            return Integer.valueOf( count );
         }
 
-        return paths.toArray( new String[0] );
     }
 
 }
@@ -0,0 +1,308 @@
+package org.sonatype.maven.plugin.emma4it;
+
+/*
+ * PUT YOUR LICENSE HEADER HERE.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.sonatype.maven.plugin.emma4it.agent.CompressedData;
+
+import com.vladium.emma.data.DataFactory;
+import com.vladium.emma.data.ICoverageData;
+import com.vladium.emma.data.IMergeable;
+import com.vladium.emma.data.IMetaData;
+import com.vladium.emma.instr.InstrProcessor;
+
+/**
+ * Serializes the writes to shared metadata and coverage files like <code>target/emma/coverage.em</code>. emma merges
+ * new metadata into an existing file by appending a record that is merged with the others when the file is loaded.
+ * Such appends are guarded by a lock per file within this JVM (for parallel builds using <code>-T</code>) and by a
+ * file system lock on a sibling <code>.lock</code> file across JVMs sharing the directory, which is deleted again
+ * after the append. Instrumentation by emma itself writes to a private shard first which is then appended by this
+ * store. A shared file that was compressed by {@link #compress(File)} is expanded, appended to, compressed again and
+ * renamed over the shared file, so that readers which do not take the lock never see the file missing.
+ */
+final class MetadataStore
+{
+
+    private static final ConcurrentMap<File, Lock> LOCKS = new ConcurrentHashMap<File, Lock>();
+
+    private MetadataStore()
+    {
+        // hide constructor
+    }
+
+    /**
+     * Creates a new shard file for a writer of metadata. The shard does not match the usual patterns for data files so
+     * it is never picked up by a concurrent reader.
+     *
+     * @param metaOutFile The shared metadata file the shard will be merged into, must not be {@code null}.
+     * @return The (empty) shard file, never {@code null}.
+     * @throws IOException If the shard could not be created.
+     */
+    static File newShard( File metaOutFile )
+        throws IOException
+    {
+        File dir = metaOutFile.getAbsoluteFile().getParentFile();
+        dir.mkdirs();
+        File shard = File.createTempFile( metaOutFile.getName() + "-", ".shard", dir );
+        shard.delete();
+        return shard;
+    }
+
+    /**
+     * Runs the specified instrumentation with its metadata written to a private shard which is then merged into the
+     * shared metadata file. If the instrumentation fails, the shard is discarded and the shared file is left alone.
+     *
+     * @param processor The configured instrumentation processor, must not be {@code null}.
+     * @param metaOutFile The shared metadata file, must not be {@code null}.
+     * @throws IOException If the metadata could not be merged.
+     */
+    static void instrument( InstrProcessor processor, File metaOutFile )
+        throws IOException
+    {
+        File shard = newShard( metaOutFile );
+        boolean instrumented = false;
+        try
+        {
+            processor.setMetaOutFile( shard.getAbsolutePath() );
+            processor.setMetaOutMerge( Boolean.FALSE );
+
+            processor.run();
+            instrumented = true;
+        }
+        finally
+        {
+            if ( !instrumented )
+            {
+                shard.delete();
+            }
+        }
+
+        mergeShard( shard, metaOutFile );
+    }
+
+    /**
+     * Merges the metadata of a shard into the shared metadata file and deletes the shard.
+     *
+     * @param shard The shard to merge, must not be {@code null}. A missing shard is ignored.
+     * @param metaOutFile The shared metadata file, must not be {@code null}.
+     * @throws IOException If the metadata could not be merged.
+     */
+    static void mergeShard( File shard, File metaOutFile )
+        throws IOException
+    {
+        try
+        {
+            if ( shard.isFile() )
+            {
+                merge( (IMetaData) DataFactory.load( shard )[DataFactory.TYPE_METADATA], metaOutFile );
+            }
+        }
+        finally
+        {
+            shard.delete();
+        }
+    }
+
+    /**
+     * Merges the specified metadata into the shared metadata file.
+     *
+     * @param metadata The metadata to merge, may be {@code null} or empty.
+     * @param metaOutFile The shared metadata file, must not be {@code null}.
+     * @throws IOException If the metadata could not be merged.
+     */
+    static void merge( IMetaData metadata, File metaOutFile )
+        throws IOException
+    {
+        if ( metadata != null && !metadata.isEmpty() )
+        {
+            append( metadata, metaOutFile );
+        }
+    }
+
+    /**
+     * Merges the specified runtime coverage into the shared coverage file.
+     *
+     * @param coverage The coverage to merge, may be {@code null} or empty.
+     * @param coverageOutFile The shared coverage file, must not be {@code null}.
+     * @throws IOException If the coverage could not be merged.
+     */
+    static void merge( ICoverageData coverage, File coverageOutFile )
+        throws IOException
+    {
+        if ( coverage != null && !coverage.isEmpty() )
+        {
+            append( coverage, coverageOutFile );
+        }
+    }
+
+    /**
+     * Compresses the specified shared file in place. Later merges into the file keep it compressed.
+     *
+     * @param outFile The shared metadata or coverage file, must not be {@code null}. A missing file is ignored.
+     * @throws IOException If the file could not be compressed.
+     */
+    static void compress( File outFile )
+        throws IOException
+    {
+        update( outFile, new Update()
+        {
+            public void run( File file )
+                throws IOException
+            {
+                CompressedData.compress( file );
+            }
+        } );
+    }
+
+    private static void append( final IMergeable data, File outFile )
+        throws IOException
+    {
+        update( outFile, new Update()
+        {
+            public void run( File file )
+                throws IOException
+            {
+                if ( !CompressedData.isCompressed( file ) )
+                {
+                    persist( data, file );
+                    return;
+                }
+
+                // emma can only append to an uncompressed file
+                File plain = newShard( file );
+                try
+                {
+                    CompressedData.decompress( file, plain );
+                    persist( data, plain );
+                    CompressedData.compress( plain );
+                    CompressedData.replace( plain, file );
+                }
+                finally
+                {
+                    plain.delete();
+                }
+            }
+        } );
+    }
+
+    private static void persist( IMergeable data, File file )
+        throws IOException
+    {
+        if ( data instanceof IMetaData )
+        {
+            DataFactory.persist( (IMetaData) data, file, true );
+        }
+        else
+        {
+            DataFactory.persist( (ICoverageData) data, file, true );
+        }
+    }
+
+    private static void update( File outFile, Update update )
+        throws IOException
+    {
+        File file = outFile.getCanonicalFile();
+
+        Lock lock = LOCKS.get( file );
+        if ( lock == null )
+        {
+            Lock newLock = new ReentrantLock();
+            lock = LOCKS.putIfAbsent( file, newLock );
+            if ( lock == null )
+            {
+                lock = newLock;
+            }
+        }
+
+        lock.lock();
+        try
+        {
+            file.getParentFile().mkdirs();
+            File lockPath = new File( file.getPath() + ".lock" );
+            RandomAccessFile lockFile = lock( lockPath );
+            try
+            {
+                update.run( file );
+            }
+            finally
+            {
+                unlock( lockPath, lockFile );
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Opens and locks the specified lock file. A lock file that its previous holder deleted while this JVM was waiting
+     * for the lock is marked stale and skipped in favor of the lock file that takes its place.
+     */
+    private static RandomAccessFile lock( File lockPath )
+        throws IOException
+    {
+        while ( true )
+        {
+            RandomAccessFile lockFile = new RandomAccessFile( lockPath, "rw" );
+            try
+            {
+                lockFile.getChannel().lock();
+                if ( lockFile.length() <= 0 )
+                {
+                    RandomAccessFile locked = lockFile;
+                    lockFile = null;
+                    return locked;
+                }
+            }
+            finally
+            {
+                if ( lockFile != null )
+                {
+                    lockFile.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Deletes and unlocks the specified lock file. Closing the file releases its lock.
+     */
+    private static void unlock( File lockPath, RandomAccessFile lockFile )
+        throws IOException
+    {
+        try
+        {
+            // other JVMs may already wait for the lock of the deleted file, let them know to retry
+            if ( lockPath.delete() )
+            {
+                lockFile.setLength( 1 );
+            }
+        }
+        finally
+        {
+            lockFile.close();
+        }
+    }
+
+    /**
+     * An update of a shared file performed while holding its locks.
+     */
+    private interface Update
+    {
+
+        void run( File file )
+            throws IOException;
+
+    }
+
+}
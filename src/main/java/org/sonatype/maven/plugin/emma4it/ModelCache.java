@@ -0,0 +1,126 @@
+package org.sonatype.maven.plugin.emma4it;
+
+/*
+ * PUT YOUR LICENSE HEADER HERE.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.SoftReference;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Hands coverage models that a goal has just written over to a later goal of the same build, sparing the later goal
+ * from parsing the file again. The cache lives as long as the plugin's class loader, i.e. for the current build
+ * session. Its memory use is capped by the total {@link CoverageModel#estimateSize() estimated size} of the cached
+ * models, evicting the least recently cached models first, and the models are only softly referenced so that they can
+ * be reclaimed under memory pressure as well. Because emma merges data in place, a cached model is taken out of the
+ * cache by its reader. Readers that miss the cache, or find a file that was changed since it was cached, load the file
+ * from disk.
+ */
+final class ModelCache
+{
+
+    private static final Map<File, Entry> ENTRIES = new LinkedHashMap<File, Entry>();
+
+    private static long size;
+
+    private ModelCache()
+    {
+        // hide constructor
+    }
+
+    /**
+     * Caches the model that was just written to the specified file.
+     *
+     * @param file The file the model was written to, must not be {@code null}.
+     * @param model The model to cache, must not be {@code null}. It must not be used by the caller afterwards.
+     * @param limit The maximum total estimated size in bytes of the cached models. Models larger than this are not
+     *            cached.
+     * @throws IOException If the file could not be resolved.
+     */
+    static synchronized void put( File file, CoverageModel model, long limit )
+        throws IOException
+    {
+        File key = file.getCanonicalFile();
+        remove( key );
+
+        Entry entry = new Entry( key, model );
+        if ( entry.size > limit )
+        {
+            return;
+        }
+
+        for ( Iterator<Entry> it = ENTRIES.values().iterator(); it.hasNext() && size + entry.size > limit; )
+        {
+            size -= it.next().size;
+            it.remove();
+        }
+
+        ENTRIES.put( key, entry );
+        size += entry.size;
+    }
+
+    /**
+     * Takes the cached model of the specified file out of the cache.
+     *
+     * @param file The file whose model should be taken, must not be {@code null}.
+     * @return The cached model or {@code null} if the model is not cached (anymore) or the file was modified since.
+     * @throws IOException If the file could not be resolved.
+     */
+    static synchronized CoverageModel take( File file )
+        throws IOException
+    {
+        Entry entry = remove( file.getCanonicalFile() );
+        if ( entry == null || !entry.isCurrent() )
+        {
+            return null;
+        }
+        return entry.model.get();
+    }
+
+    private static Entry remove( File key )
+    {
+        Entry entry = ENTRIES.remove( key );
+        if ( entry != null )
+        {
+            size -= entry.size;
+        }
+        return entry;
+    }
+
+    /**
+     * A cached model along with the state of its file at the time it was cached.
+     */
+    private static final class Entry
+    {
+
+        final File file;
+
+        final SoftReference<CoverageModel> model;
+
+        final long size;
+
+        final long length;
+
+        final long lastModified;
+
+        Entry( File file, CoverageModel model )
+        {
+            this.file = file;
+            this.model = new SoftReference<CoverageModel>( model );
+            this.size = model.estimateSize();
+            this.length = file.length();
+            this.lastModified = file.lastModified();
+        }
+
+        boolean isCurrent()
+        {
+            return file.length() == length && file.lastModified() == lastModified;
+        }
+
+    }
+
+}
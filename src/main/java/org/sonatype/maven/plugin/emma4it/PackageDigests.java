@@ -0,0 +1,198 @@
+package org.sonatype.maven.plugin.emma4it;
+
+/*
+ * PUT YOUR LICENSE HEADER HERE.
+ */
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+
+import com.vladium.emma.data.ClassDescriptor;
+
+/**
+ * Keeps a digest of the reported data of each package next to a report, so that a later run of the report only needs
+ * to render the packages whose digest changed. The digest of a package covers the name, version and coverage of its
+ * classes as well as the size and modification time of their source files.
+ */
+final class PackageDigests
+{
+
+    private final File file;
+
+    private final String layout;
+
+    private final Properties previous = new Properties();
+
+    private final Properties current = new Properties();
+
+    /**
+     * Loads the digests of the previous run.
+     *
+     * @param file The file to keep the digests in, must not be {@code null}. A missing or unreadable file is treated as
+     *            a report without any digests.
+     * @param layout The version of the report layout, must not be {@code null}. Changing the layout invalidates all
+     *            digests.
+     */
+    PackageDigests( File file, String layout )
+    {
+        this.file = file;
+        this.layout = layout;
+        if ( file.isFile() )
+        {
+            try
+            {
+                InputStream is = new FileInputStream( file );
+                try
+                {
+                    previous.load( is );
+                }
+                finally
+                {
+                    is.close();
+                }
+            }
+            catch ( IOException e )
+            {
+                previous.clear();
+            }
+        }
+    }
+
+    /**
+     * Computes the digest of the specified package and records it for {@link #save()}.
+     *
+     * @param name The (dotted) name of the package, must not be {@code null}.
+     * @param classes The classes of the package, must not be {@code null}.
+     * @param model The coverage model of the classes, must not be {@code null}.
+     * @param sources The source files of the classes, may be {@code null} if the report does not include sources.
+     * @return {@code true} if the package is unchanged since the previous run, {@code false} otherwise.
+     */
+    boolean update( String name, List<ClassDescriptor> classes, CoverageModel model,
+                    Map<ClassDescriptor, File> sources )
+    {
+        MessageDigest digest = newDigest();
+        update( digest, layout );
+        for ( ClassDescriptor cls : classes )
+        {
+            update( digest, cls.getClassVMName() );
+            update( digest, cls.getStamp() );
+            boolean[][] coverage = model.getCoverage( cls );
+            if ( coverage != null )
+            {
+                for ( boolean[] blocks : coverage )
+                {
+                    update( digest, ( blocks != null ) ? blocks.length : -1 );
+                    for ( int b = 0; blocks != null && b < blocks.length; b++ )
+                    {
+                        digest.update( blocks[b] ? (byte) 1 : (byte) 0 );
+                    }
+                }
+            }
+            File source = ( sources != null ) ? sources.get( cls ) : null;
+            if ( source != null )
+            {
+                update( digest, source.getPath() );
+                update( digest, source.length() );
+                update( digest, source.lastModified() );
+            }
+        }
+
+        String value = toHex( digest.digest() );
+        current.setProperty( name, value );
+        return value.equals( previous.getProperty( name ) );
+    }
+
+    /**
+     * Gets the packages of the previous run which have not been updated in this run.
+     *
+     * @return The names of the removed packages, never {@code null}.
+     */
+    Set<String> getRemoved()
+    {
+        Set<String> removed = new TreeSet<String>();
+        for ( Object name : previous.keySet() )
+        {
+            if ( !current.containsKey( name ) )
+            {
+                removed.add( (String) name );
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Saves the digests of this run.
+     *
+     * @throws IOException If the digests could not be saved.
+     */
+    void save()
+        throws IOException
+    {
+        file.getParentFile().mkdirs();
+        OutputStream os = new FileOutputStream( file );
+        try
+        {
+            current.store( os, "package digests of the coverage report" );
+        }
+        finally
+        {
+            os.close();
+        }
+    }
+
+    private static MessageDigest newDigest()
+    {
+        try
+        {
+            return MessageDigest.getInstance( "MD5" );
+        }
+        catch ( NoSuchAlgorithmException e )
+        {
+            throw new IllegalStateException( e );
+        }
+    }
+
+    private static void update( MessageDigest digest, String text )
+    {
+        try
+        {
+            digest.update( text.getBytes( "UTF-8" ) );
+            digest.update( (byte) 0 );
+        }
+        catch ( UnsupportedEncodingException e )
+        {
+            throw new IllegalStateException( e );
+        }
+    }
+
+    private static void update( MessageDigest digest, long value )
+    {
+        for ( int i = 56; i >= 0; i -= 8 )
+        {
+            digest.update( (byte) ( value >>> i ) );
+        }
+    }
+
+    private static String toHex( byte[] bytes )
+    {
+        StringBuilder buffer = new StringBuilder( bytes.length * 2 );
+        for ( byte b : bytes )
+        {
+            buffer.append( Character.forDigit( ( b >> 4 ) & 0x0F, 16 ) ).append( Character.forDigit( b & 0x0F, 16 ) );
+        }
+        return buffer.toString();
+    }
+
+}
@@ -0,0 +1,391 @@
+package org.sonatype.maven.plugin.emma4it;
+
+/*
+ * PUT YOUR LICENSE HEADER HERE.
+ */
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.util.Collection;
+import java.util.Enumeration;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+import org.apache.maven.artifact.Artifact;
+import org.apache.maven.artifact.factory.ArtifactFactory;
+import org.apache.maven.artifact.repository.ArtifactRepository;
+import org.apache.maven.artifact.resolver.AbstractArtifactResolutionException;
+import org.apache.maven.artifact.resolver.ArtifactResolver;
+import org.apache.maven.plugin.AbstractMojo;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.project.MavenProject;
+import org.codehaus.plexus.util.IOUtil;
+import org.sonatype.maven.plugin.emma4it.agent.EmmaAgent;
+
+/**
+ * Prepares a Java agent that instruments the classes matching the coverage filters when they are loaded by the JVM,
+ * instead of instrumenting archives offline. The JVM argument to install the agent is appended to a project property,
+ * by default <code>argLine</code> as used by the Surefire and Failsafe plugins, and can be passed to other JVMs like
+ * those started by Cargo or Jetty via <code>${argLine}</code>. On exit, the JVM writes an emma session file with the
+ * metadata and coverage of the loaded classes that the <code>report</code>, <code>check</code> and
+ * <code>aggregate-report</code> goals pick up. Running the goal again, e.g. in a forked lifecycle, does not add a
+ * second agent.
+ * <p>
+ * For artifacts that were instrumented offline, the agent can instead replace emma's full coverage dump with a compact
+ * dump of the classes that were actually hit, see {@link #compactDump}.
+ *
+ * @goal prepare-agent
+ * @phase pre-integration-test
+ * @since 1.4
+ */
+public class PrepareAgentMojo
+    extends AbstractMojo
+{
+
+    private static final String AGENT_PACKAGE = EmmaAgent.class.getPackage().getName().replace( '.', '/' ) + '/';
+
+    /**
+     * @component
+     */
+    private ArtifactFactory artifactFactory;
+
+    /**
+     * @component
+     */
+    private ArtifactResolver resolver;
+
+    /**
+     * @parameter expression="${localRepository}"
+     */
+    private ArtifactRepository localRepository;
+
+    /**
+     * @parameter expression="${project.remoteArtifactRepositories}"
+     */
+    private List<? extends ArtifactRepository> remoteRepositories;
+
+    /**
+     * @parameter expression="${project}"
+     * @required
+     */
+    private MavenProject project;
+
+    /**
+     * The include filter for the classes to instrument/measure. An entry may list several patterns separated by commas.
+     *
+     * @parameter
+     */
+    private String[] includes;
+
+    /**
+     * The exclude filter for the classes to not instrument/measure. An entry may list several patterns separated by
+     * commas.
+     *
+     * @parameter
+     */
+    private String[] excludes;
+
+    /**
+     * The name of the project property to append the agent argument to.
+     *
+     * @parameter expression="${emma4it.agent.propertyName}" default-value="argLine"
+     */
+    private String propertyName;
+
+    /**
+     * The session file the agent merges the collected metadata and coverage into.
+     *
+     * @parameter expression="${emma4it.agent.sessionFile}"
+     *            default-value="${project.build.directory}/emma/coverage.es"
+     */
+    private File sessionFile;
+
+    /**
+     * Whether the agent should only dump the coverage of classes instrumented offline instead of instrumenting classes
+     * itself. Each JVM then writes a new compressed <code>*.ecz</code> file next to the {@link #sessionFile} that only
+     * holds the classes with at least one covered block. The metadata is taken from
+     * <code>${project.build.directory}/emma/coverage.em</code>. For the agent to see the coverage, the emma runtime
+     * must not be loaded child-first by the tested application, i.e. the artifacts should not be instrumented with
+     * <code>appendEmma</code>.
+     *
+     * @parameter expression="${emma4it.agent.compactDump}" default-value="false"
+     */
+    private boolean compactDump;
+
+    /**
+     * Whether the agent should push coverage snapshots to the local collector started by the
+     * <code>start-collector</code> goal while the JVM is running, in addition to writing its coverage on exit.
+     *
+     * @parameter expression="${emma4it.agent.collector}" default-value="false"
+     */
+    private boolean collector;
+
+    /**
+     * The local port of the coverage collector.
+     *
+     * @parameter expression="${emma4it.collector.port}" default-value="6300"
+     */
+    private int collectorPort;
+
+    /**
+     * The interval in seconds between the snapshots pushed to the collector. If zero, snapshots are only pushed when
+     * the collector requests them and when the JVM exits.
+     *
+     * @parameter expression="${emma4it.collector.interval}" default-value="0"
+     */
+    private int collectorInterval;
+
+    public void execute()
+        throws MojoExecutionException
+    {
+        File emmaFolder = new File( project.getBuild().getDirectory(), "emma" );
+        if ( !emmaFolder.exists() )
+        {
+            emmaFolder.mkdirs();
+        }
+
+        File agentFile = new File( emmaFolder, "emma4it-agent.jar" );
+        try
+        {
+            createAgent( agentFile );
+        }
+        catch ( IOException e )
+        {
+            throw new MojoExecutionException( "Unable to create agent " + agentFile, e );
+        }
+
+        String agentPrefix = "-javaagent:" + agentFile.getAbsolutePath();
+        String agentArg = agentPrefix + "=" + getAgentOptions();
+        if ( agentArg.indexOf( ' ' ) >= 0 )
+        {
+            agentArg = '"' + agentArg + '"';
+        }
+
+        String value = project.getProperties().getProperty( propertyName );
+        if ( value != null && value.indexOf( agentPrefix ) >= 0 )
+        {
+            getLog().info( propertyName + " already installs the agent " + agentFile );
+            return;
+        }
+        value = ( value == null || value.trim().length() <= 0 ) ? agentArg : value + ' ' + agentArg;
+        project.getProperties().setProperty( propertyName, value );
+
+        getLog().info( propertyName + " set to " + value );
+    }
+
+    private String getAgentOptions()
+    {
+        StringBuilder options = new StringBuilder( 256 );
+        options.append( EmmaAgent.OPTION_FILE ).append( '=' ).append( sessionFile.getAbsolutePath() );
+
+        if ( collector )
+        {
+            options.append( ',' ).append( EmmaAgent.OPTION_COLLECTOR ).append( "=localhost:" ).append( collectorPort );
+            if ( collectorInterval > 0 )
+            {
+                options.append( ',' ).append( EmmaAgent.OPTION_INTERVAL ).append( '=' ).append( collectorInterval );
+            }
+        }
+
+        if ( compactDump )
+        {
+            File metadataFile = new File( new File( project.getBuild().getDirectory(), "emma" ), "coverage.em" );
+            options.append( ',' ).append( EmmaAgent.OPTION_METADATA ).append( '=' );
+            options.append( metadataFile.getAbsolutePath() );
+            return options.toString();
+        }
+
+        // the agent options are separated by commas, so comma-separated pattern lists are split into single specs
+        Collection<String> filters = new LinkedHashSet<String>();
+        if ( includes != null )
+        {
+            for ( String include : includes )
+            {
+                addFilters( filters, include, "" );
+            }
+        }
+        if ( excludes != null )
+        {
+            for ( String exclude : excludes )
+            {
+                addFilters( filters, exclude, "-" );
+            }
+        }
+        if ( !filters.isEmpty() )
+        {
+            options.append( ',' ).append( EmmaAgent.OPTION_FILTER ).append( '=' );
+            boolean first = true;
+            for ( String filter : filters )
+            {
+                if ( !first )
+                {
+                    options.append( ':' );
+                }
+                options.append( filter );
+                first = false;
+            }
+        }
+
+        return options.toString();
+    }
+
+    private static void addFilters( Collection<String> filters, String patterns, String prefix )
+    {
+        for ( String pattern : patterns.split( "[,\\s]+" ) )
+        {
+            if ( pattern.length() > 0 )
+            {
+                filters.add( prefix + pattern );
+            }
+        }
+    }
+
+    /**
+     * Creates the agent archive from the agent classes of this plugin and the emma runtime. The archive puts itself on
+     * the boot class path so that the emma runtime is visible to the classes of any class loader.
+     */
+    private void createAgent( File agentFile )
+        throws MojoExecutionException, IOException
+    {
+        File pluginFile = getPluginFile();
+        File emmaFile = resolveEmma();
+
+        if ( agentFile.lastModified() > Math.max( pluginFile.lastModified(), emmaFile.lastModified() ) )
+        {
+            getLog().debug( "Agent " + agentFile + " is up-to-date" );
+            return;
+        }
+
+        Manifest manifest = new Manifest();
+        Attributes attributes = manifest.getMainAttributes();
+        attributes.put( Attributes.Name.MANIFEST_VERSION, "1.0" );
+        attributes.putValue( "Premain-Class", EmmaAgent.class.getName() );
+        attributes.putValue( "Boot-Class-Path", agentFile.getName() );
+
+        JarOutputStream output = new JarOutputStream( new FileOutputStream( agentFile ), manifest );
+        try
+        {
+            if ( pluginFile.isDirectory() )
+            {
+                appendDirectory( output, new File( pluginFile, AGENT_PACKAGE ), AGENT_PACKAGE );
+            }
+            else
+            {
+                append( output, pluginFile, AGENT_PACKAGE );
+            }
+            append( output, emmaFile, null );
+        }
+        finally
+        {
+            IOUtil.close( output );
+        }
+    }
+
+    private File getPluginFile()
+        throws MojoExecutionException
+    {
+        try
+        {
+            return new File( EmmaAgent.class.getProtectionDomain().getCodeSource().getLocation().toURI() );
+        }
+        catch ( URISyntaxException e )
+        {
+            throw new MojoExecutionException( "Unable to locate agent classes", e );
+        }
+    }
+
+    private File resolveEmma()
+        throws MojoExecutionException
+    {
+        Artifact emma = artifactFactory.createArtifact( "emma", "emma", "2.0.5312", "compile", "jar" );
+        try
+        {
+            resolver.resolve( emma, remoteRepositories, localRepository );
+        }
+        catch ( AbstractArtifactResolutionException e )
+        {
+            throw new MojoExecutionException( e.getMessage(), e );
+        }
+        return emma.getFile();
+    }
+
+    private void append( JarOutputStream output, File jar, String prefix )
+        throws IOException
+    {
+        JarFile ejar = new JarFile( jar );
+        try
+        {
+            Enumeration<JarEntry> entries = ejar.entries();
+            while ( entries.hasMoreElements() )
+            {
+                JarEntry jarEntry = entries.nextElement();
+                String name = jarEntry.getName();
+                if ( jarEntry.isDirectory() || name.startsWith( "META-INF" )
+                    || ( prefix != null && !name.startsWith( prefix ) ) )
+                {
+                    continue;
+                }
+
+                output.putNextEntry( new JarEntry( name ) );
+
+                InputStream input = ejar.getInputStream( jarEntry );
+                try
+                {
+                    IOUtil.copy( input, output );
+                }
+                finally
+                {
+                    IOUtil.close( input );
+                }
+
+                output.closeEntry();
+            }
+        }
+        finally
+        {
+            ejar.close();
+        }
+    }
+
+    private void appendDirectory( JarOutputStream output, File dir, String path )
+        throws IOException
+    {
+        File[] files = dir.listFiles();
+        if ( files == null )
+        {
+            return;
+        }
+        for ( File file : files )
+        {
+            if ( file.isDirectory() )
+            {
+                appendDirectory( output, file, path + file.getName() + '/' );
+                continue;
+            }
+
+            output.putNextEntry( new JarEntry( path + file.getName() ) );
+
+            InputStream input = new FileInputStream( file );
+            try
+            {
+                IOUtil.copy( input, output );
+            }
+            finally
+            {
+                IOUtil.close( input );
+            }
+
+            output.closeEntry();
+        }
+    }
+
+}
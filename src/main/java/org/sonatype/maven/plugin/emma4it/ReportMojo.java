@@ -5,8 +5,14 @@ package org.sonatype.maven.plugin.emma4it;
  */
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.zip.ZipFile;
 
 import org.apache.maven.artifact.Artifact;
 import org.apache.maven.artifact.factory.ArtifactFactory;
@@ -20,9 +26,10 @@ import org.codehaus.plexus.archiver.UnArchiver;
 import org.codehaus.plexus.archiver.manager.ArchiverManager;
 import org.codehaus.plexus.archiver.manager.NoSuchArchiverException;
 
-import com.vladium.emma.IAppConstants;
-import com.vladium.emma.report.ReportProcessor;
-import com.vladium.util.XProperties;
+import com.vladium.emma.data.ClassDescriptor;
+import com.vladium.emma.data.DataFactory;
+import com.vladium.emma.data.ICoverageData;
+import com.vladium.emma.data.IMetaData;
 
 /**
  * Generates human-readable reports from the previously collected coverage data. <strong>Note:</strong> Unlike the
@@ -93,7 +100,17 @@ public class ReportMojo
 
     /**
      * The (case-sensitive) names of the reports to be generated. Supported reports are <code>txt</code>,
-     * <code>xml</code> and <code>html</code>. Defaults to <code>txt</code>, <code>xml</code> and <code>html</code>.
+     * <code>xml</code>, <code>html</code>, <code>parallel-html</code>, <code>bundle</code>, <code>json</code> and
+     * <code>csv</code>. Defaults to <code>txt</code>, <code>xml</code> and <code>html</code>. The
+     * <code>parallel-html</code> report is rendered by this plugin rather than by emma: it writes pages modeled after
+     * emma's <code>html</code> report to <code>parallel-html/index.html</code>, rendering the package and class pages
+     * concurrently using up to {@link #threads} threads and only re-rendering the packages that changed. Its page
+     * names, method listing and counters differ from emma's report, it does not replace it. The <code>bundle</code>
+     * report is an alternative to <code>html</code> for large projects: it writes a single-page viewer to
+     * <code>bundle/index.html</code> along with one data chunk per package that the viewer loads on demand, instead of
+     * one page per package and class. The <code>json</code> and <code>csv</code> reports merely list the counters of
+     * each package and class in <code>coverage.json</code> and <code>coverage.csv</code>, for build servers that do not
+     * need the full <code>xml</code> report.
      *
      * @parameter
      */
@@ -101,8 +118,8 @@ public class ReportMojo
 
     /**
      * The offline metadata and runtime coverage files to generate the reports from. Defaults to all <code>*.ec</code>,
-     * <code>*.em</code> and <code>*.es</code> files within the project base directory and within any subdirectory of
-     * the build directory.
+     * <code>*.ecz</code>, <code>*.em</code> and <code>*.es</code> files within the project base directory and within
+     * any subdirectory of the build directory. Files compressed by the goals of this plugin are read transparently.
      *
      * @parameter
      */
@@ -122,11 +139,40 @@ public class ReportMojo
      */
     private ArtifactItem[] artifactItems;
 
+    /**
+     * A text file listing the paths of the changed source files, one per line. If set, the reports only cover the
+     * classes declared by these files and only source directories containing them are used.
+     *
+     * @parameter expression="${emma4it.changedFiles}"
+     * @since 1.4
+     */
+    private File changedFiles;
+
+    /**
+     * The revision to compare the working tree against in order to determine the changed source files, e.g.
+     * <code>origin/master</code>. The changes are determined by <code>git diff --name-only</code> plus the untracked files
+     * reported by <code>git ls-files --others --exclude-standard</code>. If set, the reports
+     * only cover the classes declared by the changed files and only source directories containing them are used.
+     *
+     * @parameter expression="${emma4it.changeBaseline}"
+     * @since 1.4
+     */
+    private String changeBaseline;
+
     /**
      * @component role="org.codehaus.plexus.archiver.manager.ArchiverManager"
      */
     private ArchiverManager archiverManager;
 
+    /**
+     * The maximum number of HTML pages rendered concurrently for the <code>parallel-html</code> report. Defaults to the
+     * number of available processors.
+     *
+     * @parameter expression="${emma4it.threads}"
+     * @since 1.4
+     */
+    private int threads;
+
     /**
      * Executes this mojo.
      *
@@ -136,33 +182,147 @@ public class ReportMojo
         throws MojoExecutionException
     {
         String[] formats = getFormats();
-        String[] dataPath = collectDataPath();
-        String[] sourcePath = collectSourcePath();
-
-        XProperties properties = new XProperties();
-        properties.setProperty( "report.html.out.file", new File( reportDirectory, "index.html" ).getAbsolutePath() );
-        properties.setProperty( "report.xml.out.file", new File( reportDirectory, "coverage.xml" ).getAbsolutePath() );
-        properties.setProperty( "report.txt.out.file", new File( reportDirectory, "coverage.txt" ).getAbsolutePath() );
-        properties.setProperty( "report.sort", getSortOrder() );
-        properties.setProperty( "report.out.encoding", "UTF-8" );
-        properties.setProperty( "report.xml.out.encoding", "UTF-8" );
-        properties.setProperty( "report.html.out.encoding", "UTF-8" );
-
-        ReportProcessor reporter = ReportProcessor.create();
-        reporter.setAppName( IAppConstants.APP_NAME );
-        reporter.setDataPath( dataPath );
-        reporter.setSourcePath( sourcePath );
+        CoverageModel model = loadModel( collectDataPath() );
+
+        Collection<String> changedSources = null;
+        ChangeSet changeSet = collectChangeSet();
+        if ( changeSet != null )
+        {
+            changedSources = new HashSet<String>();
+            model = filterModel( model, changeSet, changedSources );
+            if ( changedSources.isEmpty() )
+            {
+                getLog().info( "No instrumented classes affected by the " + changeSet.size()
+                    + " changed files, skipping report" );
+                return;
+            }
+        }
+
+        List<String> emmaFormats = new ArrayList<String>( Arrays.asList( formats ) );
+        boolean bundle = emmaFormats.remove( BundleReport.FORMAT );
+        boolean json = emmaFormats.remove( SummaryReport.JSON );
+        boolean csv = emmaFormats.remove( SummaryReport.CSV );
+        boolean parallelHtml = emmaFormats.remove( HtmlReport.FORMAT );
+
+        if ( bundle )
+        {
+            writeBundle( model );
+        }
+        if ( json )
+        {
+            writeSummary( model, SummaryReport.JSON );
+        }
+        if ( csv )
+        {
+            writeSummary( model, SummaryReport.CSV );
+        }
+        if ( !parallelHtml && emmaFormats.isEmpty() )
+        {
+            return;
+        }
+        if ( model.getMetaData() == null )
+        {
+            getLog().warn( "No coverage metadata found, skipping report" );
+            return;
+        }
+
+        SourceIndex sourceIndex =
+            SourceIndex.load( new File( buildDirectory, "emma/source-index.properties" ),
+                              collectSourcePath( changedSources ) );
+        String[] sourcePath = sourceIndex.getRoots( changedSources );
+        if ( getLog().isDebugEnabled() )
+        {
+            getLog().debug( "Source directories providing the reported sources:" );
+            for ( String path : sourcePath )
+            {
+                getLog().debug( "  " + path );
+            }
+        }
+
+        if ( parallelHtml )
+        {
+            writeHtml( model, sourceIndex );
+            if ( emmaFormats.isEmpty() )
+            {
+                return;
+            }
+        }
+
         try
         {
-            reporter.setReportTypes( formats );
+            String[] types = emmaFormats.toArray( new String[emmaFormats.size()] );
+            EmmaReport.create( types, reportDirectory ).write( model, sourcePath );
         }
-        catch ( RuntimeException e )
+        catch ( IllegalArgumentException e )
         {
             throw new MojoExecutionException( "Unsupported report format", e );
         }
-        reporter.setPropertyOverrides( properties );
+    }
+
+    private CoverageModel loadModel( String[] dataPath )
+        throws MojoExecutionException
+    {
+        List<File> dataFiles = new ArrayList<File>();
+        for ( String path : dataPath )
+        {
+            dataFiles.add( new File( path ) );
+        }
 
-        reporter.run();
+        try
+        {
+            return CoverageModel.load( dataFiles );
+        }
+        catch ( IOException e )
+        {
+            throw new MojoExecutionException( "Unable to read coverage data", e );
+        }
+    }
+
+    private void writeHtml( CoverageModel model, SourceIndex sourceIndex )
+        throws MojoExecutionException
+    {
+        File htmlDirectory = new File( reportDirectory, HtmlReport.FORMAT );
+        int poolSize = ( threads > 0 ) ? threads : Runtime.getRuntime().availableProcessors();
+        try
+        {
+            int pages = new HtmlReport( htmlDirectory, sourceIndex, poolSize ).write( model );
+            getLog().info( "Rendered " + pages + " HTML pages to " + htmlDirectory + " using " + poolSize
+                + " threads" );
+        }
+        catch ( IOException e )
+        {
+            throw new MojoExecutionException( "Unable to write HTML report to " + htmlDirectory, e );
+        }
+    }
+
+    private void writeBundle( CoverageModel model )
+        throws MojoExecutionException
+    {
+        File bundleDirectory = new File( reportDirectory, BundleReport.FORMAT );
+        try
+        {
+            int packages = new BundleReport( bundleDirectory ).write( model );
+            getLog().info( "Wrote coverage bundle of " + packages + " packages to " + bundleDirectory );
+        }
+        catch ( IOException e )
+        {
+            throw new MojoExecutionException( "Unable to write coverage bundle to " + bundleDirectory, e );
+        }
+    }
+
+    private void writeSummary( CoverageModel model, String format )
+        throws MojoExecutionException
+    {
+        File summaryFile = new File( reportDirectory, "coverage." + format );
+        try
+        {
+            int packages = new SummaryReport( format ).write( model, summaryFile );
+            getLog().info( "Wrote coverage summary of " + packages + " packages to " + summaryFile );
+        }
+        catch ( IOException e )
+        {
+            throw new MojoExecutionException( "Unable to write coverage summary to " + summaryFile, e );
+        }
     }
 
     private String[] getFormats()
@@ -174,55 +334,85 @@ public class ReportMojo
         return formats;
     }
 
-    private String getSortOrder()
-    {
-        return "+name,+block,+method,+class";
-    }
-
     private String[] collectDataPath()
         throws MojoExecutionException
     {
-        getLog().debug( "Collecting data files" );
-
         FileSet[] dataSets = this.dataSets;
 
         if ( dataSets == null || dataSets.length <= 0 )
         {
-            dataSets = new FileSet[2];
-            dataSets[0] = new FileSet( baseDirectory, new String[] { "*.ec", "*.em", "*.es" }, null );
-            dataSets[1] = new FileSet( buildDirectory, new String[] { "**/*.ec", "**/*.em", "**/*.es" }, null );
+            dataSets = DataSets.getDefaults( baseDirectory, buildDirectory );
         }
 
-        List<String> dataPath = new ArrayList<String>();
+        List<String> dataPath = DataSets.collect( dataSets, getLog() );
+
+        return dataPath.toArray( new String[dataPath.size()] );
+    }
 
-        for ( FileSet fileSet : dataSets )
+    private ChangeSet collectChangeSet()
+        throws MojoExecutionException
+    {
+        try
         {
-            if ( fileSet.getDirectory() == null )
-            {
-                throw new MojoExecutionException( "Missing base directory for data set " + fileSet );
-            }
-            else if ( !fileSet.getDirectory().isDirectory() )
+            if ( changedFiles != null )
             {
-                getLog().warn( "Ignored non-existing data set directory " + fileSet.getDirectory() );
+                getLog().debug( "Reading changed files from " + changedFiles );
+                return ChangeSet.fromFile( changedFiles );
             }
-            else
+            else if ( changeBaseline != null && changeBaseline.length() > 0 )
             {
-                dataPath.addAll( fileSet.scan( true, false ) );
+                getLog().debug( "Determining changed files against " + changeBaseline );
+                return ChangeSet.fromBaseline( baseDirectory, changeBaseline );
             }
         }
+        catch ( IOException e )
+        {
+            throw new MojoExecutionException( "Unable to determine changed files", e );
+        }
+        return null;
+    }
 
-        if ( getLog().isDebugEnabled() )
+    /**
+     * Reduces the coverage data to the classes affected by the specified change set.
+     *
+     * @param model The original coverage data, must not be {@code null}.
+     * @param changeSet The changed source files, must not be {@code null}.
+     * @param changedSources The collection to add the source paths of the affected classes to, must not be {@code null}.
+     * @return The filtered coverage data, never {@code null}.
+     */
+    private CoverageModel filterModel( CoverageModel model, ChangeSet changeSet, Collection<String> changedSources )
+    {
+        if ( model.getMetaData() == null )
+        {
+            return model;
+        }
+
+        IMetaData metadata = DataFactory.newMetaData( model.getMetaData().getOptions() );
+        ICoverageData coverage = DataFactory.newCoverageData();
+
+        for ( Iterator<ClassDescriptor> it = model.classes(); it.hasNext(); )
         {
-            for ( String path : dataPath )
+            ClassDescriptor cls = it.next();
+            if ( changeSet.contains( cls ) )
             {
-                getLog().debug( "  " + path );
+                metadata.add( cls, false );
+                ICoverageData.DataHolder data =
+                    ( model.getCoverageData() != null ) ? model.getCoverageData().getCoverage( cls ) : null;
+                if ( data != null )
+                {
+                    coverage.addClass( data.m_coverage, cls.getClassVMName(), data.m_stamp );
+                }
+                changedSources.add( ChangeSet.getSourcePath( cls ) );
             }
         }
 
-        return dataPath.toArray( new String[dataPath.size()] );
+        getLog().info( "Reporting " + metadata.size() + " of " + model.size() + " classes affected by "
+            + changeSet.size() + " changed files" );
+
+        return new CoverageModel( metadata, coverage );
     }
 
-    private String[] collectSourcePath()
+    private String[] collectSourcePath( Collection<String> changedSources )
         throws MojoExecutionException
     {
         getLog().debug( "Collecting source directories" );
@@ -234,6 +424,11 @@ public class ReportMojo
             List<Artifact> artifacts = resolveArtifacts();
             for ( Artifact artifact : artifacts )
             {
+                if ( changedSources != null && !containsAny( artifact.getFile(), changedSources ) )
+                {
+                    getLog().debug( "Skipped " + artifact + " sources without changed files" );
+                    continue;
+                }
                 File outputDir = new File( sourcesDirectory, artifact.getArtifactId() );
                 try
                 {
@@ -258,6 +453,8 @@ public class ReportMojo
 
         if ( sourceSets != null && sourceSets.length > 0 )
         {
+            List<FileSet> existingSets = new ArrayList<FileSet>();
+
             for ( FileSet fileSet : sourceSets )
             {
                 if ( fileSet.getDirectory() == null )
@@ -270,9 +467,14 @@ public class ReportMojo
                 }
                 else
                 {
-                    sourcePath.addAll( fileSet.scan( false, true ) );
+                    existingSets.add( fileSet );
                 }
             }
+
+            for ( Collection<String> paths : FileSet.scan( existingSets, false, true ) )
+            {
+                sourcePath.addAll( paths );
+            }
         }
 
         if ( getLog().isDebugEnabled() )
@@ -286,6 +488,37 @@ public class ReportMojo
         return sourcePath.toArray( new String[sourcePath.size()] );
     }
 
+    /**
+     * Determines whether the specified source archive contains any of the specified source files, without extracting
+     * it. Archives that cannot be read are assumed to contain them.
+     */
+    private static boolean containsAny( File sourceArchive, Collection<String> sourceFiles )
+    {
+        try
+        {
+            ZipFile zip = new ZipFile( sourceArchive );
+            try
+            {
+                for ( String sourceFile : sourceFiles )
+                {
+                    if ( zip.getEntry( sourceFile ) != null )
+                    {
+                        return true;
+                    }
+                }
+                return false;
+            }
+            finally
+            {
+                zip.close();
+            }
+        }
+        catch ( IOException e )
+        {
+            return true;
+        }
+    }
+
     private List<Artifact> resolveArtifacts()
     {
         List<Artifact> artifacts = new ArrayList<Artifact>();
@@ -0,0 +1,175 @@
+package org.sonatype.maven.plugin.emma4it;
+
+/*
+ * PUT YOUR LICENSE HEADER HERE.
+ */
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Enumeration;
+import java.util.LinkedList;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+import org.codehaus.plexus.util.IOUtil;
+
+/**
+ * Determines the entries of the emma archive that instrumented code needs at runtime. Starting from the runtime class
+ * that the probes of instrumented classes call, the constant pools of the classes are walked transitively and every
+ * class of the archive named by a class reference, a type descriptor or a string constant (as used for reflective
+ * loading) is included. Resources like the default emma properties are always included.
+ */
+final class RuntimeClosure
+{
+
+    /**
+     * The runtime class called by the probes of instrumented classes.
+     */
+    static final String RUNTIME_CLASS = "com/vladium/emma/rt/RT";
+
+    private RuntimeClosure()
+    {
+        // hide constructor
+    }
+
+    /**
+     * Computes the runtime closure of the specified emma archive.
+     *
+     * @param jar The emma archive, must not be {@code null}.
+     * @return The names of the archive entries required at runtime, never {@code null}.
+     * @throws IOException If the archive could not be read.
+     */
+    static Set<String> compute( JarFile jar )
+        throws IOException
+    {
+        Set<String> entries = new TreeSet<String>();
+
+        for ( Enumeration<JarEntry> en = jar.entries(); en.hasMoreElements(); )
+        {
+            JarEntry entry = en.nextElement();
+            if ( !entry.isDirectory() && !entry.getName().endsWith( ".class" )
+                && !entry.getName().startsWith( "META-INF" ) )
+            {
+                entries.add( entry.getName() );
+            }
+        }
+
+        LinkedList<String> pending = new LinkedList<String>();
+        pending.add( RUNTIME_CLASS );
+
+        while ( !pending.isEmpty() )
+        {
+            String className = pending.removeFirst();
+            String entryName = className + ".class";
+            JarEntry entry = jar.getJarEntry( entryName );
+            if ( entry == null || !entries.add( entryName ) )
+            {
+                continue;
+            }
+
+            InputStream is = jar.getInputStream( entry );
+            try
+            {
+                for ( String reference : getReferences( new DataInputStream( is ) ) )
+                {
+                    if ( !entries.contains( reference + ".class" ) )
+                    {
+                        pending.add( reference );
+                    }
+                }
+            }
+            finally
+            {
+                IOUtil.close( is );
+            }
+        }
+
+        return entries;
+    }
+
+    /**
+     * Gets the names of the classes possibly referenced by the constant pool of a class file.
+     */
+    private static Set<String> getReferences( DataInputStream in )
+        throws IOException
+    {
+        Set<String> references = new TreeSet<String>();
+
+        if ( in.readInt() != 0xCAFEBABE )
+        {
+            throw new IOException( "Not a class file" );
+        }
+        in.readUnsignedShort();
+        in.readUnsignedShort();
+
+        int count = in.readUnsignedShort();
+        for ( int i = 1; i < count; i++ )
+        {
+            int tag = in.readUnsignedByte();
+            switch ( tag )
+            {
+                case 1: // Utf8
+                    addReferences( in.readUTF(), references );
+                    break;
+                case 7: // Class
+                case 8: // String
+                case 16: // MethodType
+                case 19: // Module
+                case 20: // Package
+                    in.readUnsignedShort();
+                    break;
+                case 15: // MethodHandle
+                    in.readUnsignedByte();
+                    in.readUnsignedShort();
+                    break;
+                case 3: // Integer
+                case 4: // Float
+                case 9: // Fieldref
+                case 10: // Methodref
+                case 11: // InterfaceMethodref
+                case 12: // NameAndType
+                case 17: // Dynamic
+                case 18: // InvokeDynamic
+                    in.readInt();
+                    break;
+                case 5: // Long
+                case 6: // Double
+                    in.readLong();
+                    i++;
+                    break;
+                default:
+                    throw new IOException( "Unknown constant pool tag " + tag );
+            }
+        }
+
+        return references;
+    }
+
+    /**
+     * Adds the class names found in a constant pool string, which may be an internal class name, a type descriptor or
+     * a dotted class name used for reflection.
+     */
+    private static void addReferences( String value, Set<String> references )
+    {
+        if ( value.length() <= 0 || value.indexOf( ' ' ) >= 0 )
+        {
+            return;
+        }
+
+        references.add( value.replace( '.', '/' ) );
+
+        for ( int start = value.indexOf( 'L' ); start >= 0; start = value.indexOf( 'L', start + 1 ) )
+        {
+            int end = value.indexOf( ';', start );
+            if ( end < 0 )
+            {
+                break;
+            }
+            references.add( value.substring( start + 1, end ) );
+        }
+    }
+
+}
@@ -0,0 +1,253 @@
+package org.sonatype.maven.plugin.emma4it;
+
+/*
+ * PUT YOUR LICENSE HEADER HERE.
+ */
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Maps the relative paths of source files like <code>com/foo/Bar.java</code> to the source root containing them, so
+ * that the source of a class is found by a single lookup instead of probing every source root. Like emma's source
+ * path, the first root containing a file wins. The index is persisted along with the modification times of all indexed
+ * directories and reused by later runs as long as the source roots are the same and none of their directories changed,
+ * i.e. no file was added, removed or renamed.
+ */
+final class SourceIndex
+{
+
+    private static final String KEY_ROOT = "root.";
+
+    private static final String KEY_DIR = "dir.";
+
+    private static final String KEY_FILE = "file.";
+
+    private final String[] roots;
+
+    private final Map<String, Integer> files = new HashMap<String, Integer>();
+
+    private final Map<String, Long> directories = new LinkedHashMap<String, Long>();
+
+    private SourceIndex( String[] roots )
+    {
+        this.roots = roots;
+    }
+
+    /**
+     * Gets the index of the specified source roots, either by reusing the persisted index of a previous run or by
+     * indexing the roots and persisting the new index.
+     *
+     * @param indexFile The file to persist the index in, must not be {@code null}.
+     * @param roots The source roots in the order of their precedence, must not be {@code null}.
+     * @return The index, never {@code null}.
+     */
+    static SourceIndex load( File indexFile, String[] roots )
+    {
+        SourceIndex index = read( indexFile, roots );
+        if ( index == null )
+        {
+            index = new SourceIndex( roots );
+            for ( int i = 0; i < roots.length; i++ )
+            {
+                index.scan( i, new File( roots[i] ), "" );
+            }
+            try
+            {
+                index.write( indexFile );
+            }
+            catch ( IOException e )
+            {
+                // the index is merely not reused next time
+                indexFile.delete();
+            }
+        }
+        return index;
+    }
+
+    private static SourceIndex read( File indexFile, String[] roots )
+    {
+        if ( !indexFile.isFile() )
+        {
+            return null;
+        }
+
+        Properties props = new Properties();
+        try
+        {
+            InputStream is = new FileInputStream( indexFile );
+            try
+            {
+                props.load( is );
+            }
+            finally
+            {
+                is.close();
+            }
+        }
+        catch ( IOException e )
+        {
+            return null;
+        }
+
+        for ( int i = 0; i < roots.length; i++ )
+        {
+            if ( !roots[i].equals( props.getProperty( KEY_ROOT + i ) ) )
+            {
+                return null;
+            }
+        }
+        if ( props.getProperty( KEY_ROOT + roots.length ) != null )
+        {
+            return null;
+        }
+
+        SourceIndex index = new SourceIndex( roots );
+        for ( Map.Entry<Object, Object> entry : props.entrySet() )
+        {
+            String key = entry.getKey().toString();
+            String value = entry.getValue().toString();
+            try
+            {
+                if ( key.startsWith( KEY_DIR ) )
+                {
+                    String dir = key.substring( KEY_DIR.length() );
+                    int colon = dir.indexOf( ':' );
+                    File directory = new File( roots[Integer.parseInt( dir.substring( 0, colon ) )],
+                                               dir.substring( colon + 1 ) );
+                    if ( directory.lastModified() != Long.parseLong( value ) )
+                    {
+                        return null;
+                    }
+                    index.directories.put( dir, Long.valueOf( value ) );
+                }
+                else if ( key.startsWith( KEY_FILE ) )
+                {
+                    index.files.put( key.substring( KEY_FILE.length() ), Integer.valueOf( value ) );
+                }
+            }
+            catch ( RuntimeException e )
+            {
+                return null;
+            }
+        }
+        return index;
+    }
+
+    private void write( File indexFile )
+        throws IOException
+    {
+        Properties props = new Properties();
+        for ( int i = 0; i < roots.length; i++ )
+        {
+            props.setProperty( KEY_ROOT + i, roots[i] );
+        }
+        for ( Map.Entry<String, Long> entry : directories.entrySet() )
+        {
+            props.setProperty( KEY_DIR + entry.getKey(), entry.getValue().toString() );
+        }
+        for ( Map.Entry<String, Integer> entry : files.entrySet() )
+        {
+            props.setProperty( KEY_FILE + entry.getKey(), entry.getValue().toString() );
+        }
+
+        indexFile.getParentFile().mkdirs();
+        OutputStream os = new FileOutputStream( indexFile );
+        try
+        {
+            props.store( os, "source file index" );
+        }
+        finally
+        {
+            os.close();
+        }
+    }
+
+    private void scan( int root, File directory, String path )
+    {
+        // a missing root is recorded as well (with a modification time of 0) so that creating it invalidates the index
+        directories.put( root + ":" + path, Long.valueOf( directory.lastModified() ) );
+        File[] children = directory.listFiles();
+        if ( children == null )
+        {
+            return;
+        }
+        for ( File child : children )
+        {
+            String childPath = path + child.getName();
+            if ( child.isDirectory() )
+            {
+                scan( root, child, childPath + '/' );
+            }
+            else if ( !files.containsKey( childPath ) )
+            {
+                files.put( childPath, Integer.valueOf( root ) );
+            }
+        }
+    }
+
+    /**
+     * Finds the specified source file.
+     *
+     * @param path The path of the source file relative to the source roots, using forward slashes, must not be
+     *            {@code null}.
+     * @return The source file or {@code null} if not found.
+     */
+    File find( String path )
+    {
+        Integer root = files.get( path );
+        return ( root != null ) ? new File( roots[root.intValue()], path ) : null;
+    }
+
+    /**
+     * Gets the source roots which provide at least one of the specified files. This spares a consumer that is limited
+     * to a list of roots, like emma's own report processor, from probing the remaining roots.
+     *
+     * @param paths The paths of the source files relative to the source roots, may be {@code null} to select all roots
+     *            that contain any file.
+     * @return The selected source roots in the order of their precedence, never {@code null}.
+     */
+    String[] getRoots( Collection<String> paths )
+    {
+        boolean[] used = new boolean[roots.length];
+        if ( paths != null )
+        {
+            for ( String path : paths )
+            {
+                Integer root = files.get( path );
+                if ( root != null )
+                {
+                    used[root.intValue()] = true;
+                }
+            }
+        }
+        else
+        {
+            for ( Integer root : files.values() )
+            {
+                used[root.intValue()] = true;
+            }
+        }
+        List<String> result = new ArrayList<String>();
+        for ( int i = 0; i < roots.length; i++ )
+        {
+            if ( used[i] )
+            {
+                result.add( roots[i] );
+            }
+        }
+        return result.toArray( new String[result.size()] );
+    }
+
+}
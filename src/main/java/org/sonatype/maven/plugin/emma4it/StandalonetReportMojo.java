@@ -1,6 +1,7 @@
 package org.sonatype.maven.plugin.emma4it;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Locale;
@@ -19,10 +20,6 @@ import org.codehaus.plexus.archiver.UnArchiver;
 import org.codehaus.plexus.archiver.manager.ArchiverManager;
 import org.codehaus.plexus.archiver.manager.NoSuchArchiverException;
 
-import com.vladium.emma.IAppConstants;
-import com.vladium.emma.report.ReportProcessor;
-import com.vladium.util.XProperties;
-
 /**
  * @author marvin
  * @goal emma4it-report
@@ -102,23 +99,28 @@ public class StandalonetReportMojo
     {
         validate();
 
-        String[] dataPath = getDataPath();
-        String[] sourcePath = getSourcePath();
-
         File emmaDir = new File( project.getBuild().getDirectory(), "/emma" );
 
-        ReportProcessor reporter = ReportProcessor.create();
-        reporter.setAppName( IAppConstants.APP_NAME );
-        reporter.setDataPath( dataPath );
-        reporter.setSourcePath( sourcePath );
-        reporter.setReportTypes( formats );
-        XProperties properties = new XProperties();
-        properties.setProperty( "report.html.out.file", new File( outputDirectory, "index.html" ).getAbsolutePath() );
-        properties.setProperty( "report.xml.out.file", new File( emmaDir, "coverage.xml" ).getAbsolutePath() );
-        properties.setProperty( "report.txt.out.file", new File( emmaDir, "coverage.txt" ).getAbsolutePath() );
-        reporter.setPropertyOverrides( properties );
-
-        reporter.run();
+        // the files just merged by the forked lifecycle are usually still cached, others are read from disk
+        CoverageModel model;
+        try
+        {
+            model = CoverageModel.load( getDataFiles() );
+        }
+        catch ( IOException e )
+        {
+            throw new MavenReportException( "Unable to read coverage data", e );
+        }
+        if ( model.getMetaData() == null )
+        {
+            getLog().warn( "No coverage metadata found, skipping report" );
+            return;
+        }
+
+        String[] sourcePath =
+            SourceIndex.load( new File( emmaDir, "source-index.properties" ), getSourcePath() ).getRoots( null );
+
+        new EmmaReport( formats, outputDirectory, emmaDir ).write( model, sourcePath );
     }
 
     private String[] getSourcePath()
@@ -195,19 +197,19 @@ public class StandalonetReportMojo
         return artifacts;
     }
 
-    private String[] getDataPath()
+    private List<File> getDataFiles()
     {
-        List<String> dataPath = new ArrayList<String>();
+        List<File> dataFiles = new ArrayList<File>();
         for ( File instrumentation : this.instrumentations )
         {
-            dataPath.add( instrumentation.getAbsolutePath() );
+            dataFiles.add( instrumentation );
         }
         for ( File metadata : this.metadatas )
         {
-            dataPath.add( metadata.getAbsolutePath() );
+            dataFiles.add( metadata );
         }
 
-        return dataPath.toArray( new String[0] );
+        return dataFiles;
     }
 
     private void validate()
@@ -0,0 +1,66 @@
+package org.sonatype.maven.plugin.emma4it;
+
+/*
+ * PUT YOUR LICENSE HEADER HERE.
+ */
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.maven.plugin.AbstractMojo;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.project.MavenProject;
+
+/**
+ * Starts a local coverage collector that agents of running JVMs push coverage snapshots to, see the
+ * <code>collector</code> parameter of the <code>prepare-agent</code> goal. The snapshots are merged into
+ * <code>${project.build.directory}/emma/collector.ec</code> and the metadata sent by the agents into
+ * <code>collector.em</code> as they arrive, so application servers do not need to be shut down to obtain their
+ * coverage. These files are separate from the output of the <code>merge</code> goal, which would replace them, and
+ * are picked up by the default data sets of the reporting goals. The collector runs until the
+ * <code>stop-collector</code> goal is executed or the build ends.
+ *
+ * @goal start-collector
+ * @phase pre-integration-test
+ * @since 1.4
+ */
+public class StartCollectorMojo
+    extends AbstractMojo
+{
+
+    /**
+     * @parameter expression="${project}"
+     * @required
+     */
+    private MavenProject project;
+
+    /**
+     * The local port the collector listens on.
+     *
+     * @parameter expression="${emma4it.collector.port}" default-value="6300"
+     */
+    private int port;
+
+    public void execute()
+        throws MojoExecutionException
+    {
+        File emmaFolder = new File( project.getBuild().getDirectory(), "emma" );
+        if ( !emmaFolder.exists() )
+        {
+            emmaFolder.mkdirs();
+        }
+
+        try
+        {
+            CoverageCollector.start( port, new File( emmaFolder, "collector.em" ), new File( emmaFolder, "collector.ec" ),
+                                     getLog() );
+        }
+        catch ( IOException e )
+        {
+            throw new MojoExecutionException( "Unable to start coverage collector on port " + port, e );
+        }
+
+        getLog().info( "Coverage collector listening on localhost:" + port );
+    }
+
+}
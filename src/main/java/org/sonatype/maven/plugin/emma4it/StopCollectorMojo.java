@@ -0,0 +1,93 @@
+package org.sonatype.maven.plugin.emma4it;
+
+/*
+ * PUT YOUR LICENSE HEADER HERE.
+ */
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.maven.plugin.AbstractMojo;
+import org.apache.maven.plugin.MojoExecutionException;
+
+/**
+ * Requests a final coverage snapshot from all agents connected to the local coverage collector and stops the
+ * collector. The agents keep running and reconnect once a collector is started again.
+ *
+ * @goal stop-collector
+ * @phase post-integration-test
+ * @since 1.4
+ */
+public class StopCollectorMojo
+    extends AbstractMojo
+{
+
+    /**
+     * The local port the collector listens on.
+     *
+     * @parameter expression="${emma4it.collector.port}" default-value="6300"
+     */
+    private int port;
+
+    /**
+     * The maximum time in seconds to wait for the agents to send their final snapshots.
+     *
+     * @parameter expression="${emma4it.collector.timeout}" default-value="30"
+     */
+    private int timeout;
+
+    /**
+     * The project's build directory.
+     *
+     * @parameter default-value="${project.build.directory}"
+     * @readonly
+     */
+    private File buildDirectory;
+
+    /**
+     * Whether to store the collected metadata and coverage files gzip-compressed. Compressed files keep their names
+     * and are read transparently by the goals of this plugin.
+     *
+     * @parameter expression="${emma4it.compress}" default-value="false"
+     * @since 1.4
+     */
+    private boolean compress;
+
+    public void execute()
+        throws MojoExecutionException
+    {
+        CoverageCollector collector = CoverageCollector.get( port );
+        if ( collector == null )
+        {
+            getLog().warn( "No coverage collector running on port " + port );
+            return;
+        }
+
+        try
+        {
+            int replies = collector.requestDumps( timeout * 1000L );
+            getLog().info( "Collected final coverage snapshots of " + replies + " JVMs" );
+        }
+        finally
+        {
+            collector.stop();
+        }
+
+        if ( compress )
+        {
+            for ( String name : new String[] { "collector.em", "collector.ec" } )
+            {
+                File file = new File( buildDirectory, "emma/" + name );
+                try
+                {
+                    MetadataStore.compress( file );
+                }
+                catch ( IOException e )
+                {
+                    throw new MojoExecutionException( "Unable to compress " + file, e );
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,301 @@
+package org.sonatype.maven.plugin.emma4it;
+
+/*
+ * PUT YOUR LICENSE HEADER HERE.
+ */
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.List;
+import java.util.Map;
+
+import org.codehaus.plexus.util.IOUtil;
+
+import com.vladium.emma.data.ClassDescriptor;
+
+/**
+ * Writes the counters of all packages and classes as a compact, machine-readable summary, meant for build servers that
+ * only need the numbers and not the full XML report. Each package is written right after its counters were computed,
+ * followed by the totals:
+ *
+ * <pre>
+ * coverage.json:
+ *   {"counters":[...],"packages":[{"name":...,"counts":...,"classes":[{"name":...,"counts":...},...]},...],
+ *    "totals":...}
+ * coverage.csv:
+ *   scope,package,class,class_covered,class_total,method_covered,method_total,block_covered,block_total
+ *   package,org.foo,,...
+ *   class,org.foo,Bar,...
+ *   all,,,...
+ * </pre>
+ *
+ * JSON counts are pairs of covered and total values in the order of {@link CoverageCounts#NAMES}.
+ */
+final class SummaryReport
+{
+
+    /**
+     * The name of the JSON summary format.
+     */
+    static final String JSON = "json";
+
+    /**
+     * The name of the CSV summary format.
+     */
+    static final String CSV = "csv";
+
+    private final String format;
+
+    /**
+     * Creates a new report writer.
+     *
+     * @param format The report format, either {@link #JSON} or {@link #CSV}.
+     */
+    SummaryReport( String format )
+    {
+        this.format = format;
+    }
+
+    /**
+     * Writes the summary of the specified model.
+     *
+     * @param model The coverage model to report, must not be {@code null}.
+     * @param outputFile The file to write the summary to, must not be {@code null}.
+     * @return The number of reported packages.
+     * @throws IOException If the summary could not be written.
+     */
+    int write( CoverageModel model, File outputFile )
+        throws IOException
+    {
+        Map<String, List<ClassDescriptor>> packages = model.packages();
+
+        outputFile.getParentFile().mkdirs();
+        Writer writer = null;
+        try
+        {
+            writer = new BufferedWriter( new OutputStreamWriter( new FileOutputStream( outputFile ), "UTF-8" ) );
+
+            SummaryWriter summary =
+                JSON.equals( format ) ? new JsonSummaryWriter( writer ) : new CsvSummaryWriter( writer );
+            summary.start();
+
+            CoverageCounts totals = new CoverageCounts();
+            CoverageCounts[] counts = null;
+            for ( Map.Entry<String, List<ClassDescriptor>> entry : packages.entrySet() )
+            {
+                List<ClassDescriptor> classes = entry.getValue();
+                if ( counts == null || counts.length < classes.size() )
+                {
+                    counts = new CoverageCounts[classes.size()];
+                }
+                CoverageCounts packageCounts = new CoverageCounts();
+                for ( int i = 0; i < classes.size(); i++ )
+                {
+                    counts[i] = model.getCounts( classes.get( i ) );
+                    packageCounts.add( counts[i] );
+                }
+                totals.add( packageCounts );
+
+                summary.startPackage( entry.getKey(), packageCounts );
+                for ( int i = 0; i < classes.size(); i++ )
+                {
+                    summary.writeClass( entry.getKey(), classes.get( i ).getName(), counts[i] );
+                }
+                summary.endPackage();
+            }
+
+            summary.end( totals );
+        }
+        finally
+        {
+            IOUtil.close( writer );
+        }
+
+        return packages.size();
+    }
+
+    /**
+     * Writes the summary in some output format.
+     */
+    abstract static class SummaryWriter
+    {
+
+        final Writer writer;
+
+        SummaryWriter( Writer writer )
+        {
+            this.writer = writer;
+        }
+
+        abstract void start()
+            throws IOException;
+
+        abstract void startPackage( String name, CoverageCounts counts )
+            throws IOException;
+
+        abstract void writeClass( String packageName, String name, CoverageCounts counts )
+            throws IOException;
+
+        abstract void endPackage()
+            throws IOException;
+
+        abstract void end( CoverageCounts totals )
+            throws IOException;
+
+    }
+
+    static final class JsonSummaryWriter
+        extends SummaryWriter
+    {
+
+        private boolean firstPackage = true;
+
+        private boolean firstClass;
+
+        JsonSummaryWriter( Writer writer )
+        {
+            super( writer );
+        }
+
+        @Override
+        void start()
+            throws IOException
+        {
+            writer.write( "{\"counters\":[" );
+            for ( int i = 0; i < CoverageCounts.NAMES.length; i++ )
+            {
+                writer.write( ( i > 0 ) ? ",\"" : "\"" );
+                writer.write( CoverageCounts.NAMES[i] );
+                writer.write( '"' );
+            }
+            writer.write( "],\"packages\":[" );
+        }
+
+        @Override
+        void startPackage( String name, CoverageCounts counts )
+            throws IOException
+        {
+            writer.write( firstPackage ? "\n" : ",\n" );
+            firstPackage = false;
+            firstClass = true;
+            writer.write( "{\"name\":\"" );
+            writer.write( Escaping.json( name ) );
+            writer.write( "\",\"counts\":" );
+            writeCounts( counts );
+            writer.write( ",\"classes\":[" );
+        }
+
+        @Override
+        void writeClass( String packageName, String name, CoverageCounts counts )
+            throws IOException
+        {
+            writer.write( firstClass ? "" : "," );
+            firstClass = false;
+            writer.write( "{\"name\":\"" );
+            writer.write( Escaping.json( name ) );
+            writer.write( "\",\"counts\":" );
+            writeCounts( counts );
+            writer.write( '}' );
+        }
+
+        @Override
+        void endPackage()
+            throws IOException
+        {
+            writer.write( "]}" );
+        }
+
+        @Override
+        void end( CoverageCounts totals )
+            throws IOException
+        {
+            writer.write( "\n],\"totals\":" );
+            writeCounts( totals );
+            writer.write( "}\n" );
+        }
+
+        private void writeCounts( CoverageCounts counts )
+            throws IOException
+        {
+            writer.write( '[' );
+            for ( int i = 0; i < CoverageCounts.NAMES.length; i++ )
+            {
+                writer.write( ( i > 0 ) ? ",[" : "[" );
+                writer.write( counts.getCovered( i ) + "," + counts.getTotal( i ) );
+                writer.write( ']' );
+            }
+            writer.write( ']' );
+        }
+
+    }
+
+    static final class CsvSummaryWriter
+        extends SummaryWriter
+    {
+
+        CsvSummaryWriter( Writer writer )
+        {
+            super( writer );
+        }
+
+        @Override
+        void start()
+            throws IOException
+        {
+            writer.write( "scope,package,class" );
+            for ( int i = 0; i < CoverageCounts.NAMES.length; i++ )
+            {
+                writer.write( ',' + CoverageCounts.NAMES[i] + "_covered," + CoverageCounts.NAMES[i] + "_total" );
+            }
+            writer.write( '\n' );
+        }
+
+        @Override
+        void startPackage( String name, CoverageCounts counts )
+            throws IOException
+        {
+            writeRow( "package", name, "", counts );
+        }
+
+        @Override
+        void writeClass( String packageName, String name, CoverageCounts counts )
+            throws IOException
+        {
+            writeRow( "class", packageName, name, counts );
+        }
+
+        @Override
+        void endPackage()
+        {
+            // rows are self-contained
+        }
+
+        @Override
+        void end( CoverageCounts totals )
+            throws IOException
+        {
+            writeRow( "all", "", "", totals );
+        }
+
+        private void writeRow( String scope, String packageName, String className, CoverageCounts counts )
+            throws IOException
+        {
+            writer.write( scope );
+            writer.write( ',' );
+            writer.write( Escaping.csv( packageName ) );
+            writer.write( ',' );
+            writer.write( Escaping.csv( className ) );
+            for ( int i = 0; i < CoverageCounts.NAMES.length; i++ )
+            {
+                writer.write( "," + counts.getCovered( i ) + ',' + counts.getTotal( i ) );
+            }
+            writer.write( '\n' );
+        }
+
+    }
+
+}
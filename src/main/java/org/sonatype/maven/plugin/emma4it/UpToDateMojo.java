@@ -0,0 +1,231 @@
+package org.sonatype.maven.plugin.emma4it;
+
+/*
+ * PUT YOUR LICENSE HEADER HERE.
+ */
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+
+import org.apache.maven.artifact.Artifact;
+import org.apache.maven.artifact.factory.ArtifactFactory;
+import org.apache.maven.artifact.repository.ArtifactRepository;
+import org.apache.maven.artifact.resolver.AbstractArtifactResolutionException;
+import org.apache.maven.artifact.resolver.ArtifactResolver;
+import org.apache.maven.execution.MavenSession;
+import org.apache.maven.plugin.AbstractMojo;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.project.MavenProject;
+
+/**
+ * Determines whether the merged coverage data in <code>${project.build.directory}/emma</code> is newer than the
+ * compiled classes, test classes and POM of the project, its dependencies and the artifacts and JARs instrumented by
+ * the <code>instrument</code> goal, which are configured by the same parameters as for that goal. This goal runs
+ * first in the <code>emma4it</code> lifecycle forked by the <code>emma4it</code> report. If {@link #reuse} is enabled
+ * and the data is up to date, it tells the remaining goals of the forked lifecycle to skip instrumentation, tests and
+ * merging so that the report is generated from the existing data. The outcome is published to the goals of the
+ * forked lifecycle via the execution properties <code>emma4it.upToDate</code> and <code>emma4it.skipTests</code>.
+ *
+ * @goal up-to-date
+ * @requiresDependencyResolution test
+ * @since 1.4
+ */
+public class UpToDateMojo
+    extends AbstractMojo
+{
+
+    /**
+     * @parameter expression="${project}"
+     * @required
+     * @readonly
+     */
+    private MavenProject project;
+
+    /**
+     * @parameter expression="${session}"
+     * @required
+     * @readonly
+     */
+    private MavenSession session;
+
+    /** @component */
+    private ArtifactFactory artifactFactory;
+
+    /** @component */
+    private ArtifactResolver resolver;
+
+    /** @parameter expression="${localRepository}" */
+    private ArtifactRepository localRepository;
+
+    /** @parameter expression="${project.remoteArtifactRepositories}" */
+    private List<? extends ArtifactRepository> remoteRepositories;
+
+    /**
+     * The artifacts instrumented by the <code>instrument</code> goal.
+     *
+     * @parameter
+     */
+    private ArtifactItem[] artifactItems;
+
+    /**
+     * The JAR files instrumented by the <code>instrument</code> goal.
+     *
+     * @parameter
+     */
+    private File[] jarFiles;
+
+    /**
+     * The collection of JAR files instrumented by the <code>instrument</code> goal.
+     *
+     * @parameter
+     */
+    private FileSet[] jarSets;
+
+    /**
+     * Whether to reuse up-to-date coverage data from a previous build instead of re-running the tests.
+     *
+     * @parameter expression="${emma4it.reuse}" default-value="false"
+     */
+    private boolean reuse;
+
+    public void execute()
+        throws MojoExecutionException
+    {
+        boolean upToDate = reuse && isUpToDate();
+
+        Properties properties = session.getExecutionProperties();
+        boolean skipTests = upToDate || Boolean.valueOf( properties.getProperty( "maven.test.skip" ) ).booleanValue();
+        properties.setProperty( "emma4it.upToDate", String.valueOf( upToDate ) );
+        properties.setProperty( "emma4it.skipTests", String.valueOf( skipTests ) );
+    }
+
+    private boolean isUpToDate()
+        throws MojoExecutionException
+    {
+        File emmaFolder = new File( project.getBuild().getDirectory(), "emma" );
+        File metadataFile = new File( emmaFolder, "coverage.em" );
+        File coverageFile = new File( emmaFolder, "coverage.ec" );
+        if ( !metadataFile.isFile() || !coverageFile.isFile() )
+        {
+            getLog().info( "No merged coverage data found, running tests" );
+            return false;
+        }
+
+        long dataStamp = Math.min( metadataFile.lastModified(), coverageFile.lastModified() );
+
+        long inputStamp = project.getFile() != null ? project.getFile().lastModified() : 0;
+        inputStamp = Math.max( inputStamp, getLastModified( new File( project.getBuild().getOutputDirectory() ) ) );
+        inputStamp = Math.max( inputStamp, getLastModified( new File( project.getBuild().getTestOutputDirectory() ) ) );
+
+        if ( inputStamp > dataStamp )
+        {
+            getLog().info( "Coverage data in " + emmaFolder + " is older than the project's classes, running tests" );
+            return false;
+        }
+
+        for ( File file : getInstrumentedFiles() )
+        {
+            if ( file.lastModified() > dataStamp )
+            {
+                getLog().info( "Coverage data in " + emmaFolder + " is older than " + file + ", running tests" );
+                return false;
+            }
+        }
+
+        getLog().info( "Coverage data in " + emmaFolder + " is up to date, skipping instrumentation and tests" );
+        return true;
+    }
+
+    /**
+     * Collects the dependencies of the project and the files the <code>instrument</code> goal instruments. An updated
+     * snapshot is resolved to a newer file, and the <code>instrument</code> goal rewrites its files when it runs, so
+     * files that are newer than the coverage data have not been tested yet.
+     */
+    @SuppressWarnings( "unchecked" )
+    private List<File> getInstrumentedFiles()
+        throws MojoExecutionException
+    {
+        List<File> files = new ArrayList<File>();
+
+        Set<Artifact> dependencies = project.getArtifacts();
+        if ( dependencies != null )
+        {
+            for ( Artifact dependency : dependencies )
+            {
+                if ( dependency.getFile() != null )
+                {
+                    files.add( dependency.getFile() );
+                }
+            }
+        }
+
+        if ( artifactItems != null )
+        {
+            for ( ArtifactItem artifactItem : artifactItems )
+            {
+                Artifact artifact =
+                    artifactFactory.createArtifactWithClassifier( artifactItem.getGroupId(),
+                                                                  artifactItem.getArtifactId(),
+                                                                  artifactItem.getVersion(), artifactItem.getType(),
+                                                                  artifactItem.getClassifier() );
+                try
+                {
+                    resolver.resolve( artifact, remoteRepositories, localRepository );
+                }
+                catch ( AbstractArtifactResolutionException e )
+                {
+                    throw new MojoExecutionException( e.getMessage(), e );
+                }
+                files.add( artifact.getFile() );
+            }
+        }
+
+        if ( jarFiles != null )
+        {
+            for ( File jarFile : jarFiles )
+            {
+                files.add( jarFile );
+            }
+        }
+
+        if ( jarSets != null )
+        {
+            List<FileSet> existingSets = new ArrayList<FileSet>();
+            for ( FileSet fileSet : jarSets )
+            {
+                if ( fileSet.getDirectory() != null && fileSet.getDirectory().isDirectory() )
+                {
+                    existingSets.add( fileSet );
+                }
+            }
+            for ( Collection<String> paths : FileSet.scan( existingSets, true, false ) )
+            {
+                for ( String path : paths )
+                {
+                    files.add( new File( path ) );
+                }
+            }
+        }
+
+        return files;
+    }
+
+    private static long getLastModified( File file )
+    {
+        long lastModified = file.lastModified();
+        File[] children = file.listFiles();
+        if ( children != null )
+        {
+            for ( File child : children )
+            {
+                lastModified = Math.max( lastModified, getLastModified( child ) );
+            }
+        }
+        return lastModified;
+    }
+
+}
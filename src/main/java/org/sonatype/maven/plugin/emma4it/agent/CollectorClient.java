@@ -0,0 +1,252 @@
+package org.sonatype.maven.plugin.emma4it.agent;
+
+/*
+ * PUT YOUR LICENSE HEADER HERE.
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+
+import com.vladium.emma.data.DataFactory;
+import com.vladium.emma.data.ICoverageData;
+import com.vladium.emma.data.IMetaData;
+import com.vladium.emma.rt.RT;
+
+/**
+ * Pushes coverage snapshots of the running JVM to the coverage collector, periodically, on request of the collector and
+ * when the JVM exits. The client keeps reconnecting while the collector is not reachable.
+ */
+final class CollectorClient
+    extends Thread
+{
+
+    private static final long RECONNECT_DELAY = 5000;
+
+    private final String host;
+
+    private final int port;
+
+    private final long interval;
+
+    private final IMetaData metadata;
+
+    private final File metadataFile;
+
+    private IMetaData fileMetadata;
+
+    private long fileMetadataStamp;
+
+    private Socket socket;
+
+    private DataOutputStream out;
+
+    private volatile boolean closed;
+
+    /**
+     * Creates a new client.
+     *
+     * @param host The host of the collector, must not be {@code null}.
+     * @param port The port of the collector.
+     * @param interval The interval in milliseconds between periodic snapshots, zero to only send snapshots on request
+     *            and on exit.
+     * @param metadata The metadata collected by the agent, may be {@code null} if the classes were instrumented offline.
+     * @param metadataFile The metadata file of offline instrumented classes, may be {@code null} if the agent
+     *            instruments the classes itself.
+     */
+    CollectorClient( String host, int port, long interval, IMetaData metadata, File metadataFile )
+    {
+        super( "emma4it-collector-client" );
+        setDaemon( true );
+        this.host = host;
+        this.port = port;
+        this.interval = interval;
+        this.metadata = metadata;
+        this.metadataFile = metadataFile;
+    }
+
+    @Override
+    public void run()
+    {
+        while ( !closed )
+        {
+            try
+            {
+                Socket socket = new Socket( host, port );
+                try
+                {
+                    socket.setSoTimeout( (int) interval );
+                    DataInputStream in = new DataInputStream( new BufferedInputStream( socket.getInputStream() ) );
+                    synchronized ( this )
+                    {
+                        this.socket = socket;
+                        out = new DataOutputStream( new BufferedOutputStream( socket.getOutputStream() ) );
+                        out.writeInt( CollectorProtocol.MAGIC );
+                        out.writeInt( CollectorProtocol.VERSION );
+                        out.flush();
+                    }
+
+                    while ( !closed )
+                    {
+                        try
+                        {
+                            int request = in.read();
+                            if ( request < 0 )
+                            {
+                                break;
+                            }
+                            if ( request == CollectorProtocol.REQUEST_DUMP )
+                            {
+                                dump();
+                            }
+                        }
+                        catch ( SocketTimeoutException e )
+                        {
+                            dump();
+                        }
+                    }
+                }
+                finally
+                {
+                    synchronized ( this )
+                    {
+                        this.socket = null;
+                        out = null;
+                    }
+                    socket.close();
+                }
+            }
+            catch ( IOException e )
+            {
+                // collector not (yet) running or gone, try again later
+            }
+
+            try
+            {
+                Thread.sleep( RECONNECT_DELAY );
+            }
+            catch ( InterruptedException e )
+            {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Sends a final snapshot and disconnects from the collector.
+     */
+    void close()
+    {
+        closed = true;
+        try
+        {
+            dump();
+        }
+        catch ( IOException e )
+        {
+            System.err.println( "[emma4it] Unable to send coverage to collector at " + host + ":" + port + ": " + e );
+        }
+        synchronized ( this )
+        {
+            if ( socket != null )
+            {
+                try
+                {
+                    socket.close();
+                }
+                catch ( IOException e )
+                {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    private synchronized void dump()
+        throws IOException
+    {
+        if ( out == null )
+        {
+            return;
+        }
+
+        ICoverageData coverage = RT.getCoverageData();
+        IMetaData snapshot = getMetaData();
+        if ( coverage == null || snapshot == null || snapshot.isEmpty() )
+        {
+            return;
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream( 64 * 1024 );
+        CompactCoverage.write( coverage, snapshot.iterator(), bytes );
+
+        out.writeByte( CollectorProtocol.DUMP );
+        if ( metadata != null )
+        {
+            byte[] meta = toBytes( snapshot );
+            out.writeInt( meta.length );
+            out.write( meta );
+        }
+        else
+        {
+            out.writeInt( 0 );
+        }
+        out.writeInt( bytes.size() );
+        bytes.writeTo( out );
+        out.flush();
+    }
+
+    private IMetaData getMetaData()
+        throws IOException
+    {
+        if ( metadata != null )
+        {
+            synchronized ( metadata.lock() )
+            {
+                return metadata.shallowCopy();
+            }
+        }
+        if ( fileMetadata == null || fileMetadataStamp != metadataFile.lastModified() )
+        {
+            fileMetadataStamp = metadataFile.lastModified();
+            fileMetadata = metadataFile.isFile() ? CompressedData.loadMetaData( metadataFile ) : null;
+        }
+        return fileMetadata;
+    }
+
+    private static byte[] toBytes( IMetaData metadata )
+        throws IOException
+    {
+        File file = File.createTempFile( "emma4it-", ".em" );
+        try
+        {
+            file.delete();
+            DataFactory.persist( metadata, file, false );
+
+            byte[] bytes = new byte[(int) file.length()];
+            InputStream is = new FileInputStream( file );
+            try
+            {
+                new DataInputStream( is ).readFully( bytes );
+            }
+            finally
+            {
+                is.close();
+            }
+            return bytes;
+        }
+        finally
+        {
+            file.delete();
+        }
+    }
+
+}
@@ -0,0 +1,42 @@
+package org.sonatype.maven.plugin.emma4it.agent;
+
+/*
+ * PUT YOUR LICENSE HEADER HERE.
+ */
+
+/**
+ * The constants of the protocol between the agent and the coverage collector of the plugin. After connecting, the agent
+ * sends {@link #MAGIC} and {@link #VERSION} as integers. The collector may then send {@link #REQUEST_DUMP} at any time,
+ * upon which the agent replies with a dump. The agent may also send dumps on its own, e.g. periodically or on exit. A
+ * dump is the byte {@link #DUMP} followed by the length and bytes of an emma metadata file (length zero if the
+ * collector already has the metadata) and the length and bytes of the coverage in the {@link CompactCoverage} format.
+ */
+public final class CollectorProtocol
+{
+
+    /**
+     * The magic number identifying the protocol.
+     */
+    public static final int MAGIC = 0x454D3443;
+
+    /**
+     * The version of the protocol.
+     */
+    public static final int VERSION = 1;
+
+    /**
+     * The message from the collector requesting a dump.
+     */
+    public static final int REQUEST_DUMP = 1;
+
+    /**
+     * The message from the agent carrying a dump.
+     */
+    public static final int DUMP = 2;
+
+    private CollectorProtocol()
+    {
+        // hide constructor
+    }
+
+}
@@ -0,0 +1,259 @@
+package org.sonatype.maven.plugin.emma4it.agent;
+
+/*
+ * PUT YOUR LICENSE HEADER HERE.
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import com.vladium.emma.data.ClassDescriptor;
+import com.vladium.emma.data.DataFactory;
+import com.vladium.emma.data.ICoverageData;
+
+/**
+ * A compact file format for runtime coverage. Unlike emma's <code>*.ec</code> files, only classes with at least one
+ * covered block are written, the block flags of each method are packed into bits and the whole file is compressed.
+ * Files in this format use the extension {@link #EXTENSION}.
+ */
+public final class CompactCoverage
+{
+
+    /**
+     * The file extension of compact coverage files.
+     */
+    public static final String EXTENSION = ".ecz";
+
+    private static final int MAGIC = 0x454D3443;
+
+    private static final int VERSION = 1;
+
+    private CompactCoverage()
+    {
+        // hide constructor
+    }
+
+    /**
+     * Determines whether the specified file is a compact coverage file.
+     *
+     * @param file The file to check, must not be {@code null}.
+     * @return {@code true} if the file uses the extension of compact coverage files, {@code false} otherwise.
+     */
+    public static boolean isCompact( File file )
+    {
+        return file.getName().endsWith( EXTENSION );
+    }
+
+    /**
+     * Writes the coverage of the specified classes, skipping classes without any covered block.
+     *
+     * @param coverage The runtime coverage, must not be {@code null}.
+     * @param classes The descriptors of the classes whose coverage should be written, must not be {@code null}.
+     * @param file The file to write to, must not be {@code null}.
+     * @return The number of written classes.
+     * @throws IOException If the file could not be written.
+     */
+    public static int write( ICoverageData coverage, Iterator<?> classes, File file )
+        throws IOException
+    {
+        OutputStream os = new BufferedOutputStream( new FileOutputStream( file ) );
+        try
+        {
+            return write( coverage, classes, os );
+        }
+        finally
+        {
+            os.close();
+        }
+    }
+
+    /**
+     * Writes the coverage of the specified classes to a stream, skipping classes without any covered block.
+     *
+     * @param coverage The runtime coverage, must not be {@code null}.
+     * @param classes The descriptors of the classes whose coverage should be written, must not be {@code null}.
+     * @param os The stream to write to, must not be {@code null}. The stream is not closed.
+     * @return The number of written classes.
+     * @throws IOException If the stream could not be written.
+     */
+    public static int write( ICoverageData coverage, Iterator<?> classes, OutputStream os )
+        throws IOException
+    {
+        int count = 0;
+        GZIPOutputStream gzip = new GZIPOutputStream( os );
+        DataOutputStream out = new DataOutputStream( gzip );
+
+        out.writeInt( MAGIC );
+        out.writeInt( VERSION );
+
+        while ( classes.hasNext() )
+        {
+            ClassDescriptor cls = (ClassDescriptor) classes.next();
+            ICoverageData.DataHolder data = coverage.getCoverage( cls );
+            if ( data == null || !isHit( data.m_coverage ) )
+            {
+                continue;
+            }
+
+            out.writeBoolean( true );
+            out.writeUTF( cls.getClassVMName() );
+            out.writeLong( data.m_stamp );
+            out.writeInt( data.m_coverage.length );
+            for ( boolean[] blocks : data.m_coverage )
+            {
+                writeBits( out, blocks );
+            }
+            count++;
+        }
+
+        out.writeBoolean( false );
+        out.flush();
+        gzip.finish();
+        return count;
+    }
+
+    /**
+     * Reads a compact coverage file.
+     *
+     * @param file The file to read, must not be {@code null}.
+     * @return The runtime coverage, never {@code null}.
+     * @throws IOException If the file could not be read or is not a compact coverage file.
+     */
+    public static ICoverageData read( File file )
+        throws IOException
+    {
+        InputStream is = new BufferedInputStream( new FileInputStream( file ) );
+        try
+        {
+            ICoverageData coverage = DataFactory.newCoverageData();
+            for ( Map.Entry<String, ICoverageData.DataHolder> entry : readClasses( is ).entrySet() )
+            {
+                ICoverageData.DataHolder data = entry.getValue();
+                coverage.addClass( data.m_coverage, entry.getKey(), data.m_stamp );
+            }
+            return coverage;
+        }
+        catch ( IOException e )
+        {
+            throw (IOException) new IOException( "Unable to read compact coverage file " + file ).initCause( e );
+        }
+        finally
+        {
+            is.close();
+        }
+    }
+
+    /**
+     * Reads compact coverage from a stream.
+     *
+     * @param is The stream to read from, must not be {@code null}. The stream is not closed.
+     * @return The coverage by class VM name, in the order of the classes in the stream, never {@code null}.
+     * @throws IOException If the stream could not be read or does not hold compact coverage.
+     */
+    public static Map<String, ICoverageData.DataHolder> readClasses( InputStream is )
+        throws IOException
+    {
+        DataInputStream in = new DataInputStream( new GZIPInputStream( is ) );
+        if ( in.readInt() != MAGIC )
+        {
+            throw new IOException( "Not compact coverage" );
+        }
+        int version = in.readInt();
+        if ( version != VERSION )
+        {
+            throw new IOException( "Unsupported version " + version + " of compact coverage" );
+        }
+
+        Map<String, ICoverageData.DataHolder> classes = new LinkedHashMap<String, ICoverageData.DataHolder>();
+        while ( in.readBoolean() )
+        {
+            String classVMName = in.readUTF();
+            long stamp = in.readLong();
+            boolean[][] blocks = new boolean[in.readInt()][];
+            for ( int i = 0; i < blocks.length; i++ )
+            {
+                blocks[i] = readBits( in );
+            }
+            classes.put( classVMName, new ICoverageData.DataHolder( blocks, stamp ) );
+        }
+        return classes;
+    }
+
+    private static boolean isHit( boolean[][] coverage )
+    {
+        if ( coverage != null )
+        {
+            for ( boolean[] blocks : coverage )
+            {
+                if ( blocks != null )
+                {
+                    for ( boolean block : blocks )
+                    {
+                        if ( block )
+                        {
+                            return true;
+                        }
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    private static void writeBits( DataOutputStream out, boolean[] bits )
+        throws IOException
+    {
+        if ( bits == null )
+        {
+            out.writeInt( -1 );
+            return;
+        }
+        out.writeInt( bits.length );
+        for ( int i = 0; i < bits.length; i += 8 )
+        {
+            int b = 0;
+            for ( int j = 0; j < 8 && i + j < bits.length; j++ )
+            {
+                if ( bits[i + j] )
+                {
+                    b |= 1 << j;
+                }
+            }
+            out.writeByte( b );
+        }
+    }
+
+    private static boolean[] readBits( DataInputStream in )
+        throws IOException
+    {
+        int length = in.readInt();
+        if ( length < 0 )
+        {
+            return null;
+        }
+        boolean[] bits = new boolean[length];
+        for ( int i = 0; i < length; i += 8 )
+        {
+            int b = in.readUnsignedByte();
+            for ( int j = 0; j < 8 && i + j < length; j++ )
+            {
+                bits[i + j] = ( b & ( 1 << j ) ) != 0;
+            }
+        }
+        return bits;
+    }
+
+}
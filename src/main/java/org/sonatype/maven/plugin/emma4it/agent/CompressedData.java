@@ -0,0 +1,230 @@
+package org.sonatype.maven.plugin.emma4it.agent;
+
+/*
+ * PUT YOUR LICENSE HEADER HERE.
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import com.vladium.emma.data.DataFactory;
+import com.vladium.emma.data.IMergeable;
+import com.vladium.emma.data.IMetaData;
+
+/**
+ * Supports emma data files that are stored gzip-compressed under their usual names. emma itself only reads and appends
+ * to uncompressed files, so compressed files are detected by their content and expanded into a temporary file before
+ * they are handed to emma.
+ */
+public final class CompressedData
+{
+
+    private static final int GZIP_MAGIC = 0x8b1f;
+
+    private CompressedData()
+    {
+        // hide constructor
+    }
+
+    /**
+     * Determines whether the specified file is gzip-compressed.
+     *
+     * @param file The file to check, must not be {@code null}.
+     * @return {@code true} if the file exists and starts with the gzip header, {@code false} otherwise.
+     * @throws IOException If the file could not be read.
+     */
+    public static boolean isCompressed( File file )
+        throws IOException
+    {
+        if ( !file.isFile() )
+        {
+            return false;
+        }
+        InputStream is = new FileInputStream( file );
+        try
+        {
+            int b0 = is.read();
+            int b1 = is.read();
+            return b0 >= 0 && b1 >= 0 && ( ( b1 << 8 ) | b0 ) == GZIP_MAGIC;
+        }
+        finally
+        {
+            is.close();
+        }
+    }
+
+    /**
+     * Compresses the specified file in place unless it is already compressed. The file is replaced only after its
+     * compressed copy was completely written.
+     *
+     * @param file The file to compress, must not be {@code null}.
+     * @throws IOException If the file could not be compressed.
+     */
+    public static void compress( File file )
+        throws IOException
+    {
+        if ( !file.isFile() || isCompressed( file ) )
+        {
+            return;
+        }
+        File tmp = new File( file.getPath() + ".gz.tmp" );
+        OutputStream os = new GZIPOutputStream( new BufferedOutputStream( new FileOutputStream( tmp ) ) );
+        try
+        {
+            copy( new FileInputStream( file ), os );
+        }
+        finally
+        {
+            os.close();
+        }
+        replace( tmp, file );
+    }
+
+    /**
+     * Writes the uncompressed content of the specified file to another file.
+     *
+     * @param source The file to read, must not be {@code null}. It may or may not be compressed.
+     * @param target The file to write, must not be {@code null}.
+     * @throws IOException If the file could not be expanded.
+     */
+    public static void decompress( File source, File target )
+        throws IOException
+    {
+        OutputStream os = new BufferedOutputStream( new FileOutputStream( target ) );
+        try
+        {
+            copy( open( source ), os );
+        }
+        finally
+        {
+            os.close();
+        }
+    }
+
+    /**
+     * Loads the metadata and coverage from the specified emma data file.
+     *
+     * @param file The file to load, must not be {@code null}. It may or may not be compressed.
+     * @return The loaded data indexed by {@link DataFactory#TYPE_METADATA} and {@link DataFactory#TYPE_COVERAGEDATA},
+     *         never {@code null}.
+     * @throws IOException If the file could not be read.
+     */
+    public static IMergeable[] load( File file )
+        throws IOException
+    {
+        if ( !isCompressed( file ) )
+        {
+            return DataFactory.load( file );
+        }
+        File tmp = expand( file );
+        try
+        {
+            return DataFactory.load( tmp );
+        }
+        finally
+        {
+            tmp.delete();
+        }
+    }
+
+    /**
+     * Loads the metadata from the specified emma data file.
+     *
+     * @param file The file to load, must not be {@code null}. It may or may not be compressed.
+     * @return The loaded metadata or {@code null} if the file holds none.
+     * @throws IOException If the file could not be read.
+     */
+    public static IMetaData loadMetaData( File file )
+        throws IOException
+    {
+        if ( !isCompressed( file ) )
+        {
+            return DataFactory.loadMetaData( file );
+        }
+        File tmp = expand( file );
+        try
+        {
+            return DataFactory.loadMetaData( tmp );
+        }
+        finally
+        {
+            tmp.delete();
+        }
+    }
+
+    private static File expand( File file )
+        throws IOException
+    {
+        File tmp = File.createTempFile( "emma4it-", ".tmp" );
+        try
+        {
+            decompress( file, tmp );
+        }
+        catch ( IOException e )
+        {
+            tmp.delete();
+            throw e;
+        }
+        return tmp;
+    }
+
+    private static InputStream open( File file )
+        throws IOException
+    {
+        InputStream is = new BufferedInputStream( new FileInputStream( file ) );
+        if ( isCompressed( file ) )
+        {
+            is = new GZIPInputStream( is );
+        }
+        return is;
+    }
+
+    private static void copy( InputStream is, OutputStream os )
+        throws IOException
+    {
+        try
+        {
+            byte[] buffer = new byte[8192];
+            for ( int n; ( n = is.read( buffer ) ) >= 0; )
+            {
+                os.write( buffer, 0, n );
+            }
+        }
+        finally
+        {
+            is.close();
+        }
+    }
+
+    /**
+     * Moves the specified file over the target. The target is renamed over directly, which is atomic on POSIX file
+     * systems, so that concurrent readers never see a missing target. Only if that fails, e.g. on Windows, the target
+     * is deleted first.
+     *
+     * @param source The file to move, must not be {@code null}.
+     * @param target The file to replace, must not be {@code null}.
+     * @throws IOException If the target could not be replaced.
+     */
+    public static void replace( File source, File target )
+        throws IOException
+    {
+        if ( !source.renameTo( target ) )
+        {
+            target.delete();
+            if ( !source.renameTo( target ) )
+            {
+                source.delete();
+                throw new IOException( "Unable to replace " + target );
+            }
+        }
+    }
+
+}
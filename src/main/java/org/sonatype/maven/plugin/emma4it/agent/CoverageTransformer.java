@@ -0,0 +1,91 @@
+package org.sonatype.maven.plugin.emma4it.agent;
+
+/*
+ * PUT YOUR LICENSE HEADER HERE.
+ */
+
+import java.lang.instrument.ClassFileTransformer;
+import java.security.ProtectionDomain;
+
+import com.vladium.emma.data.CoverageOptions;
+import com.vladium.emma.data.IMetaData;
+import com.vladium.emma.filter.IInclExclFilter;
+import com.vladium.emma.instr.InstrVisitor;
+import com.vladium.jcd.cls.ClassDef;
+import com.vladium.jcd.compiler.ClassWriter;
+import com.vladium.jcd.parser.ClassDefParser;
+import com.vladium.util.ByteArrayOStream;
+
+/**
+ * Instruments the classes matching the coverage filters while they are loaded and records their metadata. Classes of
+ * the bootstrap class loader, of emma and of the agent itself are never instrumented, neither are classes that were
+ * already instrumented offline.
+ */
+final class CoverageTransformer
+    implements ClassFileTransformer
+{
+
+    private final InstrVisitor visitor;
+
+    private final IMetaData metadata;
+
+    private final IInclExclFilter filter;
+
+    CoverageTransformer( CoverageOptions options, IMetaData metadata, String[] filters )
+    {
+        this.visitor = new InstrVisitor( options );
+        this.metadata = metadata;
+        this.filter = ( filters.length > 0 ) ? IInclExclFilter.Factory.create( filters ) : null;
+    }
+
+    public byte[] transform( ClassLoader loader, String className, Class<?> classBeingRedefined,
+                             ProtectionDomain protectionDomain, byte[] classfileBuffer )
+    {
+        if ( loader == null || className == null || classBeingRedefined != null || !isIncluded( className ) )
+        {
+            return null;
+        }
+
+        try
+        {
+            ClassDef cls = ClassDefParser.parseClass( classfileBuffer, classfileBuffer.length );
+
+            InstrVisitor.InstrResult result = new InstrVisitor.InstrResult();
+            synchronized ( visitor )
+            {
+                visitor.process( cls, true, true, true, result );
+            }
+            if ( !result.m_instrumented )
+            {
+                return null;
+            }
+
+            if ( result.m_descriptor != null )
+            {
+                synchronized ( metadata.lock() )
+                {
+                    metadata.add( result.m_descriptor, true );
+                }
+            }
+
+            ByteArrayOStream out = new ByteArrayOStream( classfileBuffer.length + ( classfileBuffer.length >> 2 ) );
+            ClassWriter.writeClassTable( cls, out );
+            return out.copyByteArray();
+        }
+        catch ( Throwable e )
+        {
+            // never break class loading, the class simply remains uninstrumented
+            return null;
+        }
+    }
+
+    private boolean isIncluded( String className )
+    {
+        if ( className.startsWith( "com/vladium/" ) || className.startsWith( "org/sonatype/maven/plugin/emma4it/" ) )
+        {
+            return false;
+        }
+        return filter == null || filter.included( className.replace( '/', '.' ) );
+    }
+
+}
@@ -0,0 +1,279 @@
+package org.sonatype.maven.plugin.emma4it.agent;
+
+/*
+ * PUT YOUR LICENSE HEADER HERE.
+ */
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.lang.instrument.Instrumentation;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.vladium.emma.data.CoverageOptions;
+import com.vladium.emma.data.CoverageOptionsFactory;
+import com.vladium.emma.data.DataFactory;
+import com.vladium.emma.data.ICoverageData;
+import com.vladium.emma.data.IMetaData;
+import com.vladium.emma.data.SessionData;
+import com.vladium.emma.rt.RT;
+
+/**
+ * A Java agent that instruments the classes matching the coverage filters when they are loaded. The metadata of the
+ * instrumented classes and their runtime coverage is written as an emma session file when the JVM exits. Alternatively,
+ * for classes that were instrumented offline, the agent only replaces emma's coverage dump with a compact dump of the
+ * classes that were hit. The agent is configured by a comma-separated list of options:
+ * <ul>
+ * <li><code>file=&lt;path&gt;</code> - the session file to merge the coverage into, defaults to
+ * <code>coverage.es</code>. For compact dumps, each JVM writes a new file named after this file with the extension
+ * {@link CompactCoverage#EXTENSION}.</li>
+ * <li><code>filter=&lt;spec&gt;:&lt;spec&gt;...</code> - the emma inclusion/exclusion filters, separated by colons</li>
+ * <li><code>metadata=&lt;path&gt;</code> - the metadata of offline instrumented classes, enables compact dumps instead
+ * of instrumentation</li>
+ * <li><code>collector=&lt;host&gt;:&lt;port&gt;</code> - the address of a coverage collector to push snapshots to
+ * while the JVM is running</li>
+ * <li><code>interval=&lt;seconds&gt;</code> - the interval between periodic snapshots pushed to the collector, by
+ * default snapshots are only pushed on request of the collector and on exit</li>
+ * </ul>
+ */
+public final class EmmaAgent
+{
+
+    /**
+     * The name of the option specifying the session file.
+     */
+    public static final String OPTION_FILE = "file";
+
+    /**
+     * The name of the option specifying the coverage filters.
+     */
+    public static final String OPTION_FILTER = "filter";
+
+    /**
+     * The name of the option specifying the metadata of offline instrumented classes.
+     */
+    public static final String OPTION_METADATA = "metadata";
+
+    /**
+     * The name of the option specifying the address of the coverage collector.
+     */
+    public static final String OPTION_COLLECTOR = "collector";
+
+    /**
+     * The name of the option specifying the interval between snapshots pushed to the collector.
+     */
+    public static final String OPTION_INTERVAL = "interval";
+
+    private EmmaAgent()
+    {
+        // hide constructor
+    }
+
+    /**
+     * Installs the agent.
+     *
+     * @param args The agent options, may be {@code null}.
+     * @param inst The instrumentation facility of the JVM, must not be {@code null}.
+     */
+    public static void premain( String args, Instrumentation inst )
+    {
+        File sessionFile = new File( "coverage.es" );
+        File metadataFile = null;
+        String collector = null;
+        long interval = 0;
+        List<String> filters = new ArrayList<String>();
+
+        if ( args != null )
+        {
+            for ( String option : args.split( "," ) )
+            {
+                int eq = option.indexOf( '=' );
+                String key = ( eq < 0 ) ? option.trim() : option.substring( 0, eq ).trim();
+                String value = ( eq < 0 ) ? "" : option.substring( eq + 1 ).trim();
+                if ( OPTION_FILE.equals( key ) )
+                {
+                    sessionFile = new File( value );
+                }
+                else if ( OPTION_METADATA.equals( key ) )
+                {
+                    metadataFile = new File( value );
+                }
+                else if ( OPTION_COLLECTOR.equals( key ) )
+                {
+                    collector = value;
+                }
+                else if ( OPTION_INTERVAL.equals( key ) )
+                {
+                    interval = Long.parseLong( value ) * 1000;
+                }
+                else if ( OPTION_FILTER.equals( key ) )
+                {
+                    for ( String filter : value.split( ":" ) )
+                    {
+                        if ( filter.length() > 0 )
+                        {
+                            filters.add( filter );
+                        }
+                    }
+                }
+            }
+        }
+
+        // collect the coverage ourselves rather than letting emma dump a coverage file without metadata
+        RT.reset( true, false );
+
+        IMetaData metadata = null;
+        if ( metadataFile != null )
+        {
+            Runtime.getRuntime().addShutdownHook( new CompactWriter( metadataFile, sessionFile ) );
+        }
+        else
+        {
+            CoverageOptions options = CoverageOptionsFactory.create( System.getProperties() );
+            metadata = DataFactory.newMetaData( options );
+
+            String[] specs = filters.toArray( new String[filters.size()] );
+            inst.addTransformer( new CoverageTransformer( options, metadata, specs ) );
+
+            Runtime.getRuntime().addShutdownHook( new SessionWriter( metadata, sessionFile ) );
+        }
+
+        if ( collector != null && collector.length() > 0 )
+        {
+            int colon = collector.lastIndexOf( ':' );
+            String host = ( colon > 0 ) ? collector.substring( 0, colon ) : "localhost";
+            int port = Integer.parseInt( collector.substring( colon + 1 ) );
+
+            final CollectorClient client = new CollectorClient( host, port, interval, metadata, metadataFile );
+            client.start();
+            Runtime.getRuntime().addShutdownHook( new Thread( "emma4it-agent" )
+            {
+                @Override
+                public void run()
+                {
+                    client.close();
+                }
+            } );
+        }
+    }
+
+    /**
+     * Writes the coverage of the hit offline instrumented classes to a new compact file when the JVM exits.
+     */
+    static final class CompactWriter
+        extends Thread
+    {
+
+        private final File metadataFile;
+
+        private final File baseFile;
+
+        CompactWriter( File metadataFile, File baseFile )
+        {
+            super( "emma4it-agent" );
+            this.metadataFile = metadataFile;
+            this.baseFile = baseFile;
+        }
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                ICoverageData coverage = RT.getCoverageData();
+                if ( coverage == null || coverage.isEmpty() )
+                {
+                    return;
+                }
+
+                IMetaData metadata = CompressedData.loadMetaData( metadataFile );
+                if ( metadata == null )
+                {
+                    return;
+                }
+
+                File dir = baseFile.getAbsoluteFile().getParentFile();
+                dir.mkdirs();
+                String name = baseFile.getName();
+                int dot = name.lastIndexOf( '.' );
+                String prefix = ( ( dot > 0 ) ? name.substring( 0, dot ) : name ) + '-';
+
+                File file = File.createTempFile( prefix, CompactCoverage.EXTENSION, dir );
+                CompactCoverage.write( coverage, metadata.iterator(), file );
+            }
+            catch ( Exception e )
+            {
+                System.err.println( "[emma4it] Unable to write compact coverage next to " + baseFile + ": " + e );
+            }
+        }
+
+    }
+
+    /**
+     * Writes the collected session when the JVM exits.
+     */
+    static final class SessionWriter
+        extends Thread
+    {
+
+        private final IMetaData metadata;
+
+        private final File sessionFile;
+
+        SessionWriter( IMetaData metadata, File sessionFile )
+        {
+            super( "emma4it-agent" );
+            this.metadata = metadata;
+            this.sessionFile = sessionFile;
+        }
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                ICoverageData coverage = RT.getCoverageData();
+                IMetaData snapshot;
+                synchronized ( metadata.lock() )
+                {
+                    if ( metadata.isEmpty() )
+                    {
+                        return;
+                    }
+                    snapshot = metadata.shallowCopy();
+                }
+
+                File parent = sessionFile.getAbsoluteFile().getParentFile();
+                if ( parent != null )
+                {
+                    parent.mkdirs();
+                }
+                // several JVMs of the same build may exit at the same time
+                RandomAccessFile lockFile = new RandomAccessFile( sessionFile.getPath() + ".lock", "rw" );
+                try
+                {
+                    FileLock lock = lockFile.getChannel().lock();
+                    try
+                    {
+                        DataFactory.persist( new SessionData( snapshot, coverage ), sessionFile, true );
+                    }
+                    finally
+                    {
+                        lock.release();
+                    }
+                }
+                finally
+                {
+                    lockFile.close();
+                }
+            }
+            catch ( Exception e )
+            {
+                System.err.println( "[emma4it] Unable to write coverage session to " + sessionFile + ": " + e );
+            }
+        }
+
+    }
+
+}
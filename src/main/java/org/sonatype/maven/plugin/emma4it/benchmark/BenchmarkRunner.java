@@ -0,0 +1,125 @@
+package org.sonatype.maven.plugin.emma4it.benchmark;
+
+/*
+ * PUT YOUR LICENSE HEADER HERE.
+ */
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+
+/**
+ * Runs a workload in a forked JVM and prints its measurements as a single line starting with {@link #RESULT_PREFIX}.
+ * The workload is a class that either implements {@link Runnable} or has a static <code>main</code> method, each
+ * invocation counts as one operation. The first invocation includes loading and initializing the classes of the
+ * workload and is reported separately as the cold start time.
+ * <p>
+ * Usage: <code>BenchmarkRunner &lt;workload class&gt; &lt;warmup iterations&gt; &lt;iterations&gt; [args...]</code>
+ */
+public final class BenchmarkRunner
+{
+
+    /**
+     * The prefix of the output line holding the measurements.
+     */
+    public static final String RESULT_PREFIX = "EMMA4IT-BENCHMARK ";
+
+    private BenchmarkRunner()
+    {
+        // hide constructor
+    }
+
+    public static void main( String[] args )
+        throws Exception
+    {
+        if ( args.length < 3 )
+        {
+            throw new IllegalArgumentException( "usage: BenchmarkRunner <workload> <warmup> <iterations> [args]" );
+        }
+
+        int warmup = Integer.parseInt( args[1] );
+        int iterations = Math.max( 1, Integer.parseInt( args[2] ) );
+        String[] workloadArgs = new String[args.length - 3];
+        System.arraycopy( args, 3, workloadArgs, 0, workloadArgs.length );
+
+        long coldStart = System.nanoTime();
+        Class<?> workloadClass = Class.forName( args[0] );
+        Runnable workload = createWorkload( workloadClass, workloadArgs );
+        workload.run();
+        long coldNanos = System.nanoTime() - coldStart;
+
+        int loadedClasses = ManagementFactory.getClassLoadingMXBean().getLoadedClassCount();
+
+        for ( int i = 0; i < warmup; i++ )
+        {
+            workload.run();
+        }
+
+        long[] latencies = new long[iterations];
+        long start = System.nanoTime();
+        for ( int i = 0; i < iterations; i++ )
+        {
+            long t = System.nanoTime();
+            workload.run();
+            latencies[i] = System.nanoTime() - t;
+        }
+        long totalNanos = System.nanoTime() - start;
+
+        for ( int i = 0; i < 3; i++ )
+        {
+            System.gc();
+        }
+        long heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+
+        Arrays.sort( latencies );
+
+        StringBuilder result = new StringBuilder( RESULT_PREFIX );
+        result.append( "coldMillis=" ).append( coldNanos / 1000000.0 );
+        result.append( " loadedClasses=" ).append( loadedClasses );
+        result.append( " throughput=" ).append( iterations * 1000000000.0 / Math.max( 1, totalNanos ) );
+        result.append( " p50=" ).append( percentile( latencies, 50 ) / 1000.0 );
+        result.append( " p90=" ).append( percentile( latencies, 90 ) / 1000.0 );
+        result.append( " p99=" ).append( percentile( latencies, 99 ) / 1000.0 );
+        result.append( " max=" ).append( latencies[latencies.length - 1] / 1000.0 );
+        result.append( " heapBytes=" ).append( heap );
+        System.out.println( result );
+        System.out.flush();
+    }
+
+    private static long percentile( long[] sorted, int percent )
+    {
+        int index = (int) Math.ceil( percent / 100.0 * sorted.length ) - 1;
+        return sorted[Math.max( 0, Math.min( sorted.length - 1, index ) )];
+    }
+
+    private static Runnable createWorkload( Class<?> workloadClass, final String[] args )
+        throws Exception
+    {
+        if ( Runnable.class.isAssignableFrom( workloadClass ) )
+        {
+            return (Runnable) workloadClass.newInstance();
+        }
+
+        final Method main = workloadClass.getMethod( "main", String[].class );
+        if ( !Modifier.isStatic( main.getModifiers() ) )
+        {
+            throw new IllegalArgumentException( workloadClass + " has no static main method" );
+        }
+        return new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    main.invoke( null, new Object[] { args.clone() } );
+                }
+                catch ( Exception e )
+                {
+                    throw new IllegalStateException( "Workload failed", e );
+                }
+            }
+        };
+    }
+
+}
@@ -0,0 +1,75 @@
+package org.sonatype.maven.plugin.emma4it;
+
+/*
+ * PUT YOUR LICENSE HEADER HERE.
+ */
+
+import java.io.File;
+import java.util.Properties;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+
+import com.vladium.emma.data.ClassDescriptor;
+import com.vladium.emma.data.CoverageOptionsFactory;
+import com.vladium.emma.data.DataFactory;
+import com.vladium.emma.data.IMetaData;
+import com.vladium.emma.data.MethodDescriptor;
+
+public class BundleReportTest
+    extends TestCase
+{
+
+    private File basedir;
+
+    @Override
+    protected void setUp()
+        throws Exception
+    {
+        super.setUp();
+
+        basedir = new File( "target/test-bundle/" + getName() ).getAbsoluteFile();
+        FileUtils.deleteDirectory( basedir );
+    }
+
+    private static CoverageModel newModel( String... packageVMNames )
+    {
+        IMetaData metadata = DataFactory.newMetaData( CoverageOptionsFactory.create( new Properties() ) );
+        for ( String packageVMName : packageVMNames )
+        {
+            metadata.add( new ClassDescriptor( packageVMName, "Bar", 1, "Bar.java", new MethodDescriptor[0] ), false );
+        }
+        return new CoverageModel( metadata, null );
+    }
+
+    public void testPackageNamedIndex()
+        throws Exception
+    {
+        assertEquals( 2, new BundleReport( basedir ).write( newModel( "index", "com/foo" ) ) );
+
+        String index = FileUtils.readFileToString( new File( basedir, "data/index.js" ), "UTF-8" );
+        assertTrue( index, index.startsWith( "emma4it.index(" ) );
+        assertTrue( index, index.contains( "\"chunk\":\"data/p/index.js\"" ) );
+        assertTrue( index, index.contains( "\"chunk\":\"data/p/com.foo.js\"" ) );
+
+        String chunk = FileUtils.readFileToString( new File( basedir, "data/p/index.js" ), "UTF-8" );
+        assertTrue( chunk, chunk.startsWith( "emma4it.chunk(\"index\"," ) );
+        assertTrue( new File( basedir, "index.html" ).isFile() );
+    }
+
+    public void testStaleChunksAreDeleted()
+        throws Exception
+    {
+        File oldChunk = new File( basedir, "data/com.foo.js" );
+        FileUtils.writeStringToFile( oldChunk, "", "UTF-8" );
+        new BundleReport( basedir ).write( newModel( "com/foo", "com/bar" ) );
+        assertFalse( oldChunk.exists() );
+
+        new BundleReport( basedir ).write( newModel( "com/foo" ) );
+        assertTrue( new File( basedir, "data/p/com.foo.js" ).isFile() );
+        assertFalse( new File( basedir, "data/p/com.bar.js" ).exists() );
+        assertTrue( new File( basedir, "data/index.js" ).isFile() );
+    }
+
+}
@@ -0,0 +1,81 @@
+package org.sonatype.maven.plugin.emma4it;
+
+/*
+ * PUT YOUR LICENSE HEADER HERE.
+ */
+
+import junit.framework.TestCase;
+
+public class ClassFilterTest
+    extends TestCase
+{
+
+    public void testNoFiltersIncludeAll()
+    {
+        assertTrue( new ClassFilter( null ).isIncluded( "com.foo.Bar" ) );
+        assertTrue( new ClassFilter( new String[0] ).isIncluded( "Bar" ) );
+    }
+
+    public void testPrefixPattern()
+    {
+        ClassFilter filter = new ClassFilter( new String[] { "com.foo.*" } );
+        assertTrue( filter.isIncluded( "com.foo.Bar" ) );
+        assertTrue( filter.isIncluded( "com.foo.sub.Baz" ) );
+        assertFalse( filter.isIncluded( "com.fooBar" ) );
+        assertFalse( filter.isIncluded( "com.bar.Foo" ) );
+        assertFalse( filter.isIncluded( "com.foo" ) );
+    }
+
+    public void testExactPattern()
+    {
+        ClassFilter filter = new ClassFilter( new String[] { "com.foo.Bar" } );
+        assertTrue( filter.isIncluded( "com.foo.Bar" ) );
+        assertFalse( filter.isIncluded( "com.foo.BarBaz" ) );
+        assertFalse( filter.isIncluded( "com.foo.Ba" ) );
+    }
+
+    public void testExclusionWins()
+    {
+        ClassFilter filter = new ClassFilter( new String[] { "com.foo.*", "-com.foo.test.*" } );
+        assertTrue( filter.isIncluded( "com.foo.Bar" ) );
+        assertFalse( filter.isIncluded( "com.foo.test.BarTest" ) );
+    }
+
+    public void testExclusionsOnlyIncludeTheRest()
+    {
+        ClassFilter filter = new ClassFilter( new String[] { "-*Test", "-*$*" } );
+        assertTrue( filter.isIncluded( "com.foo.Bar" ) );
+        assertFalse( filter.isIncluded( "com.foo.BarTest" ) );
+        assertFalse( filter.isIncluded( "com.foo.Bar$1" ) );
+    }
+
+    public void testWildcardsAfterPrefix()
+    {
+        ClassFilter filter = new ClassFilter( new String[] { "com.?oo.*Impl", "com.bar.Q?" } );
+        assertTrue( filter.isIncluded( "com.foo.BarImpl" ) );
+        assertTrue( filter.isIncluded( "com.zoo.sub.BazImpl" ) );
+        assertFalse( filter.isIncluded( "com.foo.Bar" ) );
+        assertTrue( filter.isIncluded( "com.bar.Qx" ) );
+        assertFalse( filter.isIncluded( "com.bar.Q" ) );
+        assertFalse( filter.isIncluded( "com.bar.Qxy" ) );
+    }
+
+    public void testPatternsSharingPrefix()
+    {
+        ClassFilter filter = new ClassFilter( new String[] { "com.foo.Bar", "com.foo.B*", "com.f*.X" } );
+        assertTrue( filter.isIncluded( "com.foo.Bar" ) );
+        assertTrue( filter.isIncluded( "com.foo.Baz" ) );
+        assertTrue( filter.isIncluded( "com.fx.X" ) );
+        assertFalse( filter.isIncluded( "com.foo.Car" ) );
+    }
+
+    public void testSeparatedLists()
+    {
+        ClassFilter filter = new ClassFilter( new String[] { "com.a.*, -com.a.B\n  +com.b.*" } );
+        assertTrue( filter.isIncluded( "com.a.A" ) );
+        assertFalse( filter.isIncluded( "com.a.B" ) );
+        assertTrue( filter.isIncluded( "com.b.C" ) );
+        assertFalse( filter.isIncluded( "com.c.C" ) );
+    }
+
+}
@@ -0,0 +1,95 @@
+package org.sonatype.maven.plugin.emma4it;
+
+/*
+ * PUT YOUR LICENSE HEADER HERE.
+ */
+
+import junit.framework.TestCase;
+
+import org.apache.maven.plugin.MojoExecutionException;
+
+public class CoverageCheckMojoTest
+    extends TestCase
+{
+
+    private static CoverageCounts newCounts( int coveredBlocks, int totalBlocks )
+    {
+        CoverageCounts counts = new CoverageCounts();
+        counts.set( CoverageCounts.CLASS, 1, 1 );
+        counts.set( CoverageCounts.METHOD, 1, 2 );
+        counts.set( CoverageCounts.BLOCK, coveredBlocks, totalBlocks );
+        return counts;
+    }
+
+    private static int check( CoverageCounts counts, String metrics )
+        throws MojoExecutionException
+    {
+        return new CoverageCheckMojo().check( "test", counts, CoverageCheckMojo.parseMetrics( metrics ) );
+    }
+
+    public void testParseMetrics()
+        throws Exception
+    {
+        long[] limits = CoverageCheckMojo.parseMetrics( " class:100 , BLOCK:70.5,," );
+        assertEquals( 10000, limits[CoverageCounts.CLASS] );
+        assertEquals( -1, limits[CoverageCounts.METHOD] );
+        assertEquals( 7050, limits[CoverageCounts.BLOCK] );
+
+        long[] none = CoverageCheckMojo.parseMetrics( null );
+        for ( long limit : none )
+        {
+            assertEquals( -1, limit );
+        }
+    }
+
+    public void testParseMetricsRejectsUnknownMetric()
+    {
+        try
+        {
+            CoverageCheckMojo.parseMetrics( "class:100,branch:50" );
+            fail( "unknown metric not detected" );
+        }
+        catch ( MojoExecutionException e )
+        {
+            // expected
+        }
+    }
+
+    public void testParseMetricsRejectsInvalidPercentage()
+    {
+        try
+        {
+            CoverageCheckMojo.parseMetrics( "block:high" );
+            fail( "invalid percentage not detected" );
+        }
+        catch ( MojoExecutionException e )
+        {
+            // expected
+        }
+    }
+
+    public void testLimitsAreComparedExactly()
+        throws Exception
+    {
+        assertEquals( 0, check( newCounts( 7, 100 ), "block:7" ) );
+        assertEquals( 1, check( newCounts( 6, 100 ), "block:7" ) );
+        assertEquals( 0, check( newCounts( 1, 3 ), "block:33.33" ) );
+        assertEquals( 1, check( newCounts( 1, 3 ), "block:33.34" ) );
+        assertEquals( 0, check( newCounts( 10, 10 ), "block:100" ) );
+    }
+
+    public void testEveryUnmetLimitCounts()
+        throws Exception
+    {
+        assertEquals( 0, check( newCounts( 0, 10 ), null ) );
+        assertEquals( 1, check( newCounts( 0, 10 ), "class:100,block:1" ) );
+        assertEquals( 2, check( newCounts( 0, 10 ), "class:100,method:60,block:1" ) );
+    }
+
+    public void testNothingToCoverMeetsAnyLimit()
+        throws Exception
+    {
+        assertEquals( 0, check( newCounts( 0, 0 ), "block:100" ) );
+    }
+
+}
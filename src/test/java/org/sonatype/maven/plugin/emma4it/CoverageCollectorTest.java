@@ -0,0 +1,268 @@
+package org.sonatype.maven.plugin.emma4it;
+
+/*
+ * PUT YOUR LICENSE HEADER HERE.
+ */
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Properties;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.maven.plugin.logging.SystemStreamLog;
+import org.sonatype.maven.plugin.emma4it.agent.CollectorProtocol;
+import org.sonatype.maven.plugin.emma4it.agent.CompactCoverage;
+
+import com.vladium.emma.data.ClassDescriptor;
+import com.vladium.emma.data.CoverageOptionsFactory;
+import com.vladium.emma.data.DataFactory;
+import com.vladium.emma.data.ICoverageData;
+import com.vladium.emma.data.IMetaData;
+import com.vladium.emma.data.MethodDescriptor;
+
+public class CoverageCollectorTest
+    extends TestCase
+{
+
+    private File basedir;
+
+    private File metadataFile;
+
+    private File coverageFile;
+
+    private int port;
+
+    private CoverageCollector collector;
+
+    @Override
+    protected void setUp()
+        throws Exception
+    {
+        super.setUp();
+
+        basedir = new File( "target/test-collector/" + getName() ).getAbsoluteFile();
+        FileUtils.deleteDirectory( basedir );
+        basedir.mkdirs();
+        metadataFile = new File( basedir, "collector.em" );
+        coverageFile = new File( basedir, "collector.ec" );
+
+        ServerSocket socket = new ServerSocket( 0 );
+        port = socket.getLocalPort();
+        socket.close();
+
+        collector = CoverageCollector.start( port, metadataFile, coverageFile, new SystemStreamLog() );
+    }
+
+    @Override
+    protected void tearDown()
+        throws Exception
+    {
+        collector.stop();
+
+        super.tearDown();
+    }
+
+    private static ClassDescriptor newClass( long stamp )
+    {
+        MethodDescriptor method =
+            new MethodDescriptor( "run", "()V", 0, new int[] { 2, 3, 1 }, new int[][] { { 10 }, { 11, 12 }, { 13 } },
+                                  10 );
+        return new ClassDescriptor( "com/foo", "Bar", stamp, "Bar.java", new MethodDescriptor[] { method } );
+    }
+
+    private byte[] newMetaData( long stamp )
+        throws Exception
+    {
+        IMetaData metadata = DataFactory.newMetaData( CoverageOptionsFactory.create( new Properties() ) );
+        metadata.add( newClass( stamp ), false );
+        File file = new File( basedir, "snapshot.em" );
+        DataFactory.persist( metadata, file, false );
+        try
+        {
+            return FileUtils.readFileToByteArray( file );
+        }
+        finally
+        {
+            file.delete();
+        }
+    }
+
+    private static byte[] newSnapshot( long stamp, boolean... blocks )
+        throws Exception
+    {
+        ICoverageData coverage = DataFactory.newCoverageData();
+        coverage.addClass( new boolean[][] { blocks }, "com/foo/Bar", stamp );
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        CompactCoverage.write( coverage, Collections.singleton( newClass( stamp ) ).iterator(), os );
+        return os.toByteArray();
+    }
+
+    /**
+     * Gets the blocks of <code>com/foo/Bar</code> written to the coverage file, deleting the file so that the next
+     * check only sees what was written since.
+     */
+    private String takeCoverage( long stamp )
+        throws Exception
+    {
+        if ( !coverageFile.exists() )
+        {
+            return null;
+        }
+        ICoverageData coverage = (ICoverageData) DataFactory.load( coverageFile )[DataFactory.TYPE_COVERAGEDATA];
+        coverageFile.delete();
+        ICoverageData.DataHolder holder = coverage.getCoverage( newClass( stamp ) );
+        return ( holder != null ) ? holder.m_stamp + " " + Arrays.toString( holder.m_coverage[0] ) : null;
+    }
+
+    public void testMergeWritesOnlyNewCoverage()
+        throws Exception
+    {
+        collector.merge( new byte[0], newSnapshot( 1, true, false, false ) );
+        assertEquals( "1 [true, false, false]", takeCoverage( 1 ) );
+
+        collector.merge( new byte[0], newSnapshot( 1, true, false, false ) );
+        assertNull( takeCoverage( 1 ) );
+
+        collector.merge( new byte[0], newSnapshot( 1, false, true, false ) );
+        assertEquals( "1 [true, true, false]", takeCoverage( 1 ) );
+
+        // a recompiled class replaces the coverage collected so far
+        collector.merge( new byte[0], newSnapshot( 2, false, false, true ) );
+        assertEquals( "2 [false, false, true]", takeCoverage( 2 ) );
+
+        collector.merge( new byte[0], newSnapshot( 2, false, false, true ) );
+        assertNull( takeCoverage( 2 ) );
+    }
+
+    public void testMergeWritesOnlyNewMetaData()
+        throws Exception
+    {
+        collector.merge( newMetaData( 1 ), newSnapshot( 1, true, false, false ) );
+        assertTrue( metadataFile.delete() );
+
+        collector.merge( newMetaData( 1 ), newSnapshot( 1, true, false, false ) );
+        assertFalse( metadataFile.exists() );
+
+        collector.merge( newMetaData( 2 ), newSnapshot( 2, true, false, false ) );
+        IMetaData metadata = DataFactory.loadMetaData( metadataFile );
+        assertEquals( 1, metadata.size() );
+        assertEquals( 2, metadata.get( "com/foo/Bar" ).getStamp() );
+    }
+
+    public void testRequestedDump()
+        throws Exception
+    {
+        final Socket socket = new Socket( "127.0.0.1", port );
+        try
+        {
+            socket.setSoTimeout( 10000 );
+            final DataOutputStream out = new DataOutputStream( socket.getOutputStream() );
+            out.writeInt( CollectorProtocol.MAGIC );
+            out.writeInt( CollectorProtocol.VERSION );
+            out.flush();
+
+            final byte[] meta = newMetaData( 1 );
+            final byte[] coverage = newSnapshot( 1, false, true, true );
+            final IOException[] failure = new IOException[1];
+            Thread agent = new Thread( "agent" )
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        DataInputStream in = new DataInputStream( new BufferedInputStream( socket.getInputStream() ) );
+                        for ( int message = in.read(); message == CollectorProtocol.REQUEST_DUMP; message = in.read() )
+                        {
+                            out.writeByte( CollectorProtocol.DUMP );
+                            out.writeInt( meta.length );
+                            out.write( meta );
+                            out.writeInt( coverage.length );
+                            out.write( coverage );
+                            out.flush();
+                        }
+                    }
+                    catch ( IOException e )
+                    {
+                        if ( !socket.isClosed() )
+                        {
+                            failure[0] = e;
+                        }
+                    }
+                }
+            };
+            agent.setDaemon( true );
+            agent.start();
+
+            // the collector accepts the connection in the background
+            int replies = 0;
+            for ( long deadline = System.currentTimeMillis() + 10000; replies <= 0
+                && System.currentTimeMillis() < deadline; )
+            {
+                replies = collector.requestDumps( 10000 );
+                if ( replies <= 0 )
+                {
+                    Thread.sleep( 50 );
+                }
+            }
+            assertEquals( 1, replies );
+            assertNull( failure[0] );
+
+            assertEquals( 1, DataFactory.loadMetaData( metadataFile ).get( "com/foo/Bar" ).getStamp() );
+            assertEquals( "1 [false, true, true]", takeCoverage( 1 ) );
+        }
+        finally
+        {
+            socket.close();
+        }
+    }
+
+    public void testRejectsIncompatibleClient()
+        throws Exception
+    {
+        Socket socket = new Socket( "127.0.0.1", port );
+        try
+        {
+            socket.setSoTimeout( 10000 );
+            DataOutputStream out = new DataOutputStream( socket.getOutputStream() );
+            out.writeInt( 0xCAFEBABE );
+            out.writeInt( CollectorProtocol.VERSION );
+            out.flush();
+
+            assertEquals( -1, socket.getInputStream().read() );
+        }
+        finally
+        {
+            socket.close();
+        }
+    }
+
+    public void testStop()
+        throws Exception
+    {
+        assertSame( collector, CoverageCollector.get( port ) );
+        collector.stop();
+        assertNull( CoverageCollector.get( port ) );
+
+        try
+        {
+            new Socket( "127.0.0.1", port ).close();
+            fail( "collector still listening" );
+        }
+        catch ( IOException e )
+        {
+            // expected
+        }
+    }
+
+}
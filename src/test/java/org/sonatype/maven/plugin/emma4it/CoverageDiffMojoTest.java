@@ -0,0 +1,145 @@
+package org.sonatype.maven.plugin.emma4it;
+
+/*
+ * PUT YOUR LICENSE HEADER HERE.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.apache.maven.plugin.MojoExecutionException;
+
+import org.sonatype.maven.plugin.emma4it.CoverageDiffMojo.ClassState;
+
+public class CoverageDiffMojoTest
+    extends TestCase
+{
+
+    private static ClassState newState( int coveredBlocks, boolean[][] coverage )
+    {
+        CoverageCounts counts = new CoverageCounts();
+        counts.set( CoverageCounts.CLASS, 1, 1 );
+        counts.set( CoverageCounts.BLOCK, coveredBlocks, 10 );
+        return new ClassState( counts, CoverageDiffMojo.fingerprint( coverage ) );
+    }
+
+    private static List<String> diff( Map<String, ClassState> baseline, Map<String, ClassState> current )
+        throws IOException
+    {
+        final List<String> changes = new ArrayList<String>();
+        int count = CoverageDiffMojo.diff( baseline, current, new CoverageDiffMojo.DiffWriter( new StringWriter() )
+        {
+            @Override
+            void start()
+            {
+                changes.add( "start" );
+            }
+
+            @Override
+            void write( String classVMName, ClassState baseline, ClassState current )
+            {
+                changes.add( getStatus( baseline, current ) + ' ' + classVMName );
+            }
+
+            @Override
+            void end()
+            {
+                changes.add( "end" );
+            }
+        } );
+        assertEquals( changes.size() - 2, count );
+        return changes;
+    }
+
+    public void testClassification()
+        throws Exception
+    {
+        boolean[][] coverage = { { true, false } };
+
+        Map<String, ClassState> baseline = new LinkedHashMap<String, ClassState>();
+        baseline.put( "com/foo/Same", newState( 5, coverage ) );
+        baseline.put( "com/foo/Removed", newState( 5, coverage ) );
+        baseline.put( "com/foo/Changed", newState( 5, coverage ) );
+
+        Map<String, ClassState> current = new LinkedHashMap<String, ClassState>();
+        current.put( "com/foo/Added", newState( 0, null ) );
+        current.put( "com/foo/Changed", newState( 6, coverage ) );
+        current.put( "com/foo/Same", newState( 5, coverage ) );
+
+        assertEquals( Arrays.asList( "start", "added com/foo/Added", "changed com/foo/Changed",
+                                     "removed com/foo/Removed", "end" ), diff( baseline, current ) );
+    }
+
+    public void testSameCountsButOtherBlocksChanged()
+        throws Exception
+    {
+        Map<String, ClassState> baseline = new LinkedHashMap<String, ClassState>();
+        baseline.put( "com/foo/Bar", newState( 1, new boolean[][] { { true, false } } ) );
+
+        Map<String, ClassState> current = new LinkedHashMap<String, ClassState>();
+        current.put( "com/foo/Bar", newState( 1, new boolean[][] { { false, true } } ) );
+
+        assertEquals( Arrays.asList( "start", "changed com/foo/Bar", "end" ), diff( baseline, current ) );
+    }
+
+    public void testNoChanges()
+        throws Exception
+    {
+        Map<String, ClassState> baseline = new LinkedHashMap<String, ClassState>();
+        baseline.put( "com/foo/Bar", newState( 1, new boolean[][] { { true }, null } ) );
+
+        Map<String, ClassState> current = new LinkedHashMap<String, ClassState>();
+        current.put( "com/foo/Bar", newState( 1, new boolean[][] { { true }, null } ) );
+
+        assertEquals( Arrays.asList( "start", "end" ), diff( baseline, current ) );
+    }
+
+    public void testFingerprint()
+    {
+        assertEquals( -1, CoverageDiffMojo.fingerprint( null ) );
+        assertEquals( CoverageDiffMojo.fingerprint( new boolean[][] { { true, false } } ),
+                      CoverageDiffMojo.fingerprint( new boolean[][] { { true, false } } ) );
+        assertFalse( CoverageDiffMojo.fingerprint( new boolean[][] { { true }, { false } } )
+            == CoverageDiffMojo.fingerprint( new boolean[][] { { true, false } } ) );
+        assertFalse( CoverageDiffMojo.fingerprint( new boolean[][] { null } )
+            == CoverageDiffMojo.fingerprint( new boolean[][] { {} } ) );
+    }
+
+    public void testJsonStatus()
+        throws Exception
+    {
+        Map<String, ClassState> baseline = new LinkedHashMap<String, ClassState>();
+        baseline.put( "com/foo/Old", newState( 1, null ) );
+
+        StringWriter writer = new StringWriter();
+        CoverageDiffMojo.diff( baseline, new LinkedHashMap<String, ClassState>(),
+                               new CoverageDiffMojo.JsonDiffWriter( writer ) );
+
+        String json = writer.toString();
+        assertTrue( json, json.startsWith( "{\"classes\":[\n{\"name\":\"com.foo.Old\",\"status\":\"removed\"" ) );
+        assertTrue( json, json.endsWith( "}}\n]}\n" ) );
+    }
+
+    public void testMissingBaselineFails()
+    {
+        File missing = new File( "target/test-diff/missing.ec" );
+        try
+        {
+            new CoverageDiffMojo().loadModel( Arrays.asList( missing ), true );
+            fail( "missing baseline not detected" );
+        }
+        catch ( MojoExecutionException e )
+        {
+            // expected
+        }
+    }
+
+}
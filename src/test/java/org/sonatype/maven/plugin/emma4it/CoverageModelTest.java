@@ -0,0 +1,147 @@
+package org.sonatype.maven.plugin.emma4it;
+
+/*
+ * PUT YOUR LICENSE HEADER HERE.
+ */
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Properties;
+import java.util.TreeMap;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+
+import com.vladium.emma.IAppConstants;
+import com.vladium.emma.data.ClassDescriptor;
+import com.vladium.emma.data.CoverageOptionsFactory;
+import com.vladium.emma.data.DataFactory;
+import com.vladium.emma.data.ICoverageData;
+import com.vladium.emma.data.IMergeable;
+import com.vladium.emma.data.IMetaData;
+import com.vladium.emma.data.MergeProcessor;
+import com.vladium.emma.data.MethodDescriptor;
+import com.vladium.util.XProperties;
+
+public class CoverageModelTest
+    extends TestCase
+{
+
+    private File basedir;
+
+    @Override
+    protected void setUp()
+        throws Exception
+    {
+        super.setUp();
+
+        basedir = new File( "target/test-model/" + getName() ).getAbsoluteFile();
+        FileUtils.deleteDirectory( basedir );
+        basedir.mkdirs();
+    }
+
+    private static ClassDescriptor newClass( String name, long stamp )
+    {
+        MethodDescriptor method =
+            new MethodDescriptor( "run", "()V", 0, new int[] { 2, 3, 1 }, new int[][] { { 10 }, { 11, 12 }, { 13 } },
+                                  10 );
+        return new ClassDescriptor( "com/foo", name, stamp, name + ".java", new MethodDescriptor[] { method } );
+    }
+
+    private File writeMetaData( String fileName, ClassDescriptor... classes )
+        throws Exception
+    {
+        IMetaData metadata = DataFactory.newMetaData( CoverageOptionsFactory.create( new Properties() ) );
+        for ( ClassDescriptor cls : classes )
+        {
+            metadata.add( cls, false );
+        }
+        File file = new File( basedir, fileName );
+        DataFactory.persist( metadata, file, false );
+        return file;
+    }
+
+    private File writeCoverage( String fileName, String classVMName, long stamp, boolean... blocks )
+        throws Exception
+    {
+        ICoverageData coverage = DataFactory.newCoverageData();
+        coverage.addClass( new boolean[][] { blocks }, classVMName, stamp );
+        File file = new File( basedir, fileName );
+        DataFactory.persist( coverage, file, false );
+        return file;
+    }
+
+    /**
+     * Renders the data of a merged file as text, listing the classes of the metadata and their coverage.
+     */
+    private static String describe( File file )
+        throws Exception
+    {
+        IMergeable[] data = DataFactory.load( file );
+        IMetaData metadata = (IMetaData) data[DataFactory.TYPE_METADATA];
+        ICoverageData coverage = (ICoverageData) data[DataFactory.TYPE_COVERAGEDATA];
+
+        TreeMap<String, String> classes = new TreeMap<String, String>();
+        for ( Iterator<?> it = metadata.iterator(); it.hasNext(); )
+        {
+            ClassDescriptor cls = (ClassDescriptor) it.next();
+            ICoverageData.DataHolder holder = ( coverage != null ) ? coverage.getCoverage( cls ) : null;
+            String blocks = "not loaded";
+            if ( holder != null )
+            {
+                List<String> methods = new ArrayList<String>();
+                for ( boolean[] method : holder.m_coverage )
+                {
+                    methods.add( ( method != null ) ? Arrays.toString( method ) : "null" );
+                }
+                blocks = holder.m_stamp + " " + methods;
+            }
+            classes.put( cls.getClassVMName(), cls.getStamp() + ": " + blocks );
+        }
+        return classes.toString();
+    }
+
+    public void testMergeMatchesMergeProcessor()
+        throws Exception
+    {
+        // the data files of three JVMs, one of which saw a recompiled Bar
+        List<File> files = new ArrayList<File>();
+        files.add( writeMetaData( "jvm1.em", newClass( "Foo", 1 ), newClass( "Bar", 1 ) ) );
+        files.add( writeCoverage( "jvm1.ec", "com/foo/Foo", 1, true, false, false ) );
+        files.add( writeMetaData( "jvm2.em", newClass( "Foo", 1 ), newClass( "Baz", 1 ) ) );
+        files.add( writeCoverage( "jvm2.ec", "com/foo/Foo", 1, false, true, false ) );
+        files.add( writeCoverage( "jvm2b.ec", "com/foo/Baz", 1, true, true, true ) );
+        files.add( writeMetaData( "jvm3.em", newClass( "Bar", 2 ) ) );
+        files.add( writeCoverage( "jvm3.ec", "com/foo/Bar", 2, false, false, true ) );
+
+        String[] dataPath = new String[files.size()];
+        for ( int i = 0; i < dataPath.length; i++ )
+        {
+            dataPath[i] = files.get( i ).getAbsolutePath();
+        }
+        File expected = new File( basedir, "merge-processor.es" );
+        MergeProcessor processor = MergeProcessor.create();
+        processor.setAppName( IAppConstants.APP_NAME );
+        processor.setDataPath( dataPath );
+        processor.setSessionOutFile( expected.getAbsolutePath() );
+        processor.setPropertyOverrides( new XProperties() );
+        processor.run();
+
+        // merged one file after the other like the merge goal does
+        CoverageModel model = new CoverageModel( null, null );
+        for ( File file : files )
+        {
+            model = model.merge( CoverageModel.load( Collections.singleton( file ) ) );
+        }
+        File actual = new File( basedir, "coverage-model.es" );
+        model.persist( actual );
+
+        assertEquals( describe( expected ), describe( actual ) );
+    }
+
+}
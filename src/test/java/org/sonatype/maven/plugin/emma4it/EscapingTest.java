@@ -0,0 +1,34 @@
+package org.sonatype.maven.plugin.emma4it;
+
+/*
+ * PUT YOUR LICENSE HEADER HERE.
+ */
+
+import junit.framework.TestCase;
+
+public class EscapingTest
+    extends TestCase
+{
+
+    public void testJson()
+    {
+        assertEquals( "", Escaping.json( null ) );
+        assertEquals( "com.foo.Bar$1", Escaping.json( "com.foo.Bar$1" ) );
+        assertEquals( "a\\\"b\\\\c", Escaping.json( "a\"b\\c" ) );
+        assertEquals( "\\n\\r\\t", Escaping.json( "\n\r\t" ) );
+        assertEquals( "\\u0000\\u001f", Escaping.json( "\u0000\u001f" ) );
+        assertEquals( "<\u00e4>/", Escaping.json( "<\u00e4>/" ) );
+    }
+
+    public void testCsv()
+    {
+        assertEquals( "", Escaping.csv( null ) );
+        assertEquals( "", Escaping.csv( "" ) );
+        assertEquals( "com.foo", Escaping.csv( "com.foo" ) );
+        assertEquals( "\"a,b\"", Escaping.csv( "a,b" ) );
+        assertEquals( "\"say \"\"hi\"\"\"", Escaping.csv( "say \"hi\"" ) );
+        assertEquals( "\"a\nb\"", Escaping.csv( "a\nb" ) );
+        assertEquals( "\"a\rb\"", Escaping.csv( "a\rb" ) );
+    }
+
+}
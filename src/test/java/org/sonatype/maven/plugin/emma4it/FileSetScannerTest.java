@@ -0,0 +1,119 @@
+package org.sonatype.maven.plugin.emma4it;
+
+/*
+ * PUT YOUR LICENSE HEADER HERE.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+
+public class FileSetScannerTest
+    extends TestCase
+{
+
+    private File basedir;
+
+    @Override
+    protected void setUp()
+        throws Exception
+    {
+        super.setUp();
+
+        basedir = new File( "target/test-scanner/" + getName() ).getAbsoluteFile();
+        FileUtils.deleteDirectory( basedir );
+
+        touch( "a/x.ec" );
+        touch( "a/x.txt" );
+        touch( "a/skip/y.ec" );
+        touch( "a/b/skip/z.ec" );
+        touch( "a/.svn/w.ec" );
+        touch( "b/v.ec" );
+    }
+
+    private void touch( String path )
+        throws IOException
+    {
+        FileUtils.writeStringToFile( new File( basedir, path ), "", "UTF-8" );
+    }
+
+    private static String[] tokens( String path )
+    {
+        return path.split( "/" );
+    }
+
+    private Set<String> paths( String... paths )
+    {
+        Set<String> result = new HashSet<String>();
+        for ( String path : paths )
+        {
+            result.add( ( ( path.length() > 0 ) ? new File( basedir, path ) : basedir ).getAbsolutePath() );
+        }
+        return result;
+    }
+
+    public void testMatchPath()
+    {
+        assertTrue( FileSetScanner.matchPath( tokens( "**/*.ec" ), tokens( "a/b/c.ec" ) ) );
+        assertTrue( FileSetScanner.matchPath( tokens( "**/*.ec" ), tokens( "c.ec" ) ) );
+        assertTrue( FileSetScanner.matchPath( tokens( "a/**/c/*.em" ), tokens( "a/b/x/c/d.em" ) ) );
+        assertTrue( FileSetScanner.matchPath( tokens( "**/skip/**" ), tokens( "a/skip" ) ) );
+        assertFalse( FileSetScanner.matchPath( tokens( "a/**/c/*.em" ), tokens( "a/b/c/d.ec" ) ) );
+        assertFalse( FileSetScanner.matchPath( tokens( "*.ec" ), tokens( "a/c.ec" ) ) );
+    }
+
+    public void testMatchPatternStart()
+    {
+        assertTrue( FileSetScanner.matchPatternStart( tokens( "a/b/*.ec" ), tokens( "a" ) ) );
+        assertTrue( FileSetScanner.matchPatternStart( tokens( "a/b/*.ec" ), tokens( "a/b" ) ) );
+        assertTrue( FileSetScanner.matchPatternStart( tokens( "a/**/*.ec" ), tokens( "a/b/c" ) ) );
+        assertFalse( FileSetScanner.matchPatternStart( tokens( "a/b/*.ec" ), tokens( "x" ) ) );
+        assertFalse( FileSetScanner.matchPatternStart( tokens( "a/b/*.ec" ), tokens( "a/b/c" ) ) );
+    }
+
+    public void testScanFiles()
+    {
+        Set<String> paths = new HashSet<String>();
+        new FileSetScanner( new String[] { "**/*.ec" }, null ).scan( basedir, true, false, paths );
+        assertEquals( paths( "a/x.ec", "a/skip/y.ec", "a/b/skip/z.ec", "b/v.ec" ), paths );
+    }
+
+    public void testScanPrunesExcludedAndUnrelatedDirectories()
+    {
+        Set<String> paths = new HashSet<String>();
+        FileSetScanner scanner = new FileSetScanner( new String[] { "a/**/*.ec" }, new String[] { "**/skip/**" } );
+        scanner.scan( basedir, true, false, paths );
+        assertEquals( paths( "a/x.ec" ), paths );
+    }
+
+    public void testScanDirectories()
+    {
+        Set<String> paths = new HashSet<String>();
+        new FileSetScanner( null, new String[] { "**/skip", "**/skip/**" } ).scan( basedir, false, true, paths );
+        assertEquals( paths( "", "a", "a/b", "b" ), paths );
+    }
+
+    public void testScanSeesFilesAddedAfterPreviousScan()
+        throws Exception
+    {
+        FileSetScanner scanner = new FileSetScanner( new String[] { "b/*.ec" }, null );
+
+        Set<String> paths = new HashSet<String>();
+        scanner.scan( basedir, true, false, paths );
+        assertEquals( paths( "b/v.ec" ), paths );
+
+        touch( "b/u.ec" );
+        File dir = new File( basedir, "b" );
+        dir.setLastModified( dir.lastModified() + 10000 );
+
+        paths.clear();
+        scanner.scan( basedir, true, false, paths );
+        assertEquals( paths( "b/u.ec", "b/v.ec" ), paths );
+    }
+
+}
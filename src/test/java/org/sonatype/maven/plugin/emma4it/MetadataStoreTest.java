@@ -0,0 +1,66 @@
+package org.sonatype.maven.plugin.emma4it;
+
+/*
+ * PUT YOUR LICENSE HEADER HERE.
+ */
+
+import java.io.File;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+import org.sonatype.maven.plugin.emma4it.agent.CompressedData;
+
+public class MetadataStoreTest
+    extends TestCase
+{
+
+    private File basedir;
+
+    @Override
+    protected void setUp()
+        throws Exception
+    {
+        super.setUp();
+
+        basedir = new File( "target/test-store/" + getName() ).getAbsoluteFile();
+        FileUtils.deleteDirectory( basedir );
+    }
+
+    public void testLockFileIsDeleted()
+        throws Exception
+    {
+        File file = new File( basedir, "coverage.em" );
+        FileUtils.writeStringToFile( file, "metadata", "UTF-8" );
+
+        MetadataStore.compress( file );
+
+        assertTrue( CompressedData.isCompressed( file ) );
+        assertFalse( new File( basedir, "coverage.em.lock" ).exists() );
+    }
+
+    public void testLockFileOfEarlierRunIsReused()
+        throws Exception
+    {
+        File file = new File( basedir, "coverage.em" );
+        FileUtils.writeStringToFile( file, "metadata", "UTF-8" );
+        File lockFile = new File( basedir, "coverage.em.lock" );
+        FileUtils.writeStringToFile( lockFile, "", "UTF-8" );
+
+        MetadataStore.compress( file );
+
+        assertTrue( CompressedData.isCompressed( file ) );
+        assertFalse( lockFile.exists() );
+    }
+
+    public void testNewShardIsNoDataFile()
+        throws Exception
+    {
+        File shard = MetadataStore.newShard( new File( basedir, "coverage.em" ) );
+
+        assertEquals( basedir, shard.getParentFile() );
+        assertTrue( shard.getName().endsWith( ".shard" ) );
+        assertFalse( shard.exists() );
+    }
+
+}
@@ -0,0 +1,108 @@
+package org.sonatype.maven.plugin.emma4it;
+
+/*
+ * PUT YOUR LICENSE HEADER HERE.
+ */
+
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+
+import com.vladium.emma.data.ClassDescriptor;
+import com.vladium.emma.data.DataFactory;
+import com.vladium.emma.data.ICoverageData;
+import com.vladium.emma.data.MethodDescriptor;
+
+public class PackageDigestsTest
+    extends TestCase
+{
+
+    private File file;
+
+    private final ClassDescriptor cls =
+        new ClassDescriptor( "com/foo", "Bar", 1, "Bar.java", new MethodDescriptor[0] );
+
+    private final List<ClassDescriptor> classes = Collections.singletonList( cls );
+
+    @Override
+    protected void setUp()
+        throws Exception
+    {
+        super.setUp();
+
+        File basedir = new File( "target/test-digests/" + getName() ).getAbsoluteFile();
+        FileUtils.deleteDirectory( basedir );
+        file = new File( basedir, "digests.properties" );
+    }
+
+    private static CoverageModel newModel( boolean covered )
+    {
+        ICoverageData coverage = DataFactory.newCoverageData();
+        coverage.addClass( new boolean[][] { { true, covered } }, "com/foo/Bar", 1 );
+        return new CoverageModel( null, coverage );
+    }
+
+    private boolean update( String layout, CoverageModel model, Map<ClassDescriptor, File> sources )
+        throws Exception
+    {
+        PackageDigests digests = new PackageDigests( file, layout );
+        boolean unchanged = digests.update( "com.foo", classes, model, sources );
+        digests.save();
+        return unchanged;
+    }
+
+    public void testUnchangedPackage()
+        throws Exception
+    {
+        assertFalse( update( "test-1", newModel( false ), null ) );
+        assertTrue( update( "test-1", newModel( false ), null ) );
+    }
+
+    public void testChangedCoverage()
+        throws Exception
+    {
+        assertFalse( update( "test-1", newModel( false ), null ) );
+        assertFalse( update( "test-1", newModel( true ), null ) );
+        assertTrue( update( "test-1", newModel( true ), null ) );
+    }
+
+    public void testChangedLayout()
+        throws Exception
+    {
+        assertFalse( update( "test-1", newModel( false ), null ) );
+        assertFalse( update( "test-2", newModel( false ), null ) );
+    }
+
+    public void testChangedSource()
+        throws Exception
+    {
+        File source = new File( file.getParentFile(), "com/foo/Bar.java" );
+        FileUtils.writeStringToFile( source, "class Bar {}", "UTF-8" );
+        Map<ClassDescriptor, File> sources = Collections.singletonMap( cls, source );
+
+        assertFalse( update( "test-1", newModel( false ), sources ) );
+        assertTrue( update( "test-1", newModel( false ), sources ) );
+
+        FileUtils.writeStringToFile( source, "class Bar { }", "UTF-8" );
+        assertFalse( update( "test-1", newModel( false ), sources ) );
+    }
+
+    public void testRemovedPackages()
+        throws Exception
+    {
+        PackageDigests digests = new PackageDigests( file, "test-1" );
+        digests.update( "com.foo", classes, newModel( false ), null );
+        digests.update( "com.bar", classes, newModel( false ), null );
+        digests.save();
+
+        digests = new PackageDigests( file, "test-1" );
+        digests.update( "com.foo", classes, newModel( false ), null );
+        assertEquals( Collections.singleton( "com.bar" ), digests.getRemoved() );
+    }
+
+}
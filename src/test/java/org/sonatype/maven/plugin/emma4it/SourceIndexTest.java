@@ -0,0 +1,124 @@
+package org.sonatype.maven.plugin.emma4it;
+
+/*
+ * PUT YOUR LICENSE HEADER HERE.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+
+public class SourceIndexTest
+    extends TestCase
+{
+
+    private File basedir;
+
+    private File indexFile;
+
+    private File root0;
+
+    private File root1;
+
+    @Override
+    protected void setUp()
+        throws Exception
+    {
+        super.setUp();
+
+        basedir = new File( "target/test-sources/" + getName() ).getAbsoluteFile();
+        FileUtils.deleteDirectory( basedir );
+
+        indexFile = new File( basedir, "index.properties" );
+        root0 = new File( basedir, "root0" );
+        root1 = new File( basedir, "root1" );
+
+        touch( root0, "com/foo/A.java" );
+        touch( root1, "com/foo/A.java" );
+        touch( root1, "com/foo/B.java" );
+    }
+
+    private static void touch( File root, String path )
+        throws IOException
+    {
+        FileUtils.writeStringToFile( new File( root, path ), "", "UTF-8" );
+    }
+
+    private String[] roots( File... roots )
+    {
+        String[] paths = new String[roots.length];
+        for ( int i = 0; i < roots.length; i++ )
+        {
+            paths[i] = roots[i].getAbsolutePath();
+        }
+        return paths;
+    }
+
+    private static long setBack( File directory )
+    {
+        long stamp = ( directory.lastModified() / 1000 - 60 ) * 1000;
+        directory.setLastModified( stamp );
+        return stamp;
+    }
+
+    public void testFirstRootWins()
+    {
+        SourceIndex index = SourceIndex.load( indexFile, roots( root0, root1 ) );
+
+        assertEquals( new File( root0, "com/foo/A.java" ), index.find( "com/foo/A.java" ) );
+        assertEquals( new File( root1, "com/foo/B.java" ), index.find( "com/foo/B.java" ) );
+        assertNull( index.find( "com/foo/C.java" ) );
+        assertTrue( indexFile.isFile() );
+    }
+
+    public void testGetRoots()
+    {
+        SourceIndex index = SourceIndex.load( indexFile, roots( root0, root1 ) );
+
+        assertTrue( Arrays.equals( roots( root1 ), index.getRoots( Arrays.asList( "com/foo/B.java" ) ) ) );
+        assertTrue( Arrays.equals( roots( root0 ), index.getRoots( Arrays.asList( "com/foo/A.java" ) ) ) );
+        assertTrue( Arrays.equals( roots( root0, root1 ), index.getRoots( null ) ) );
+        assertEquals( 0, index.getRoots( Arrays.asList( "com/foo/C.java" ) ).length );
+    }
+
+    public void testReusedUntilDirectoryChanges()
+    {
+        File dir = new File( root0, "com/foo" );
+        long stamp = setBack( dir );
+        SourceIndex.load( indexFile, roots( root0, root1 ) );
+
+        // a change that preserves the modification time of the directory goes unnoticed, proving the index is reused
+        new File( dir, "A.java" ).delete();
+        dir.setLastModified( stamp );
+        assertNotNull( SourceIndex.load( indexFile, roots( root0, root1 ) ).find( "com/foo/A.java" ) );
+
+        dir.setLastModified( stamp + 10000 );
+        assertEquals( new File( root1, "com/foo/A.java" ),
+                      SourceIndex.load( indexFile, roots( root0, root1 ) ).find( "com/foo/A.java" ) );
+    }
+
+    public void testRebuiltWhenRootsChange()
+    {
+        SourceIndex.load( indexFile, roots( root0, root1 ) );
+
+        assertEquals( new File( root1, "com/foo/A.java" ),
+                      SourceIndex.load( indexFile, roots( root1, root0 ) ).find( "com/foo/A.java" ) );
+        assertNull( SourceIndex.load( indexFile, roots( root0 ) ).find( "com/foo/B.java" ) );
+    }
+
+    public void testRebuiltWhenMissingRootIsCreated()
+        throws Exception
+    {
+        File missing = new File( basedir, "missing" );
+        assertNull( SourceIndex.load( indexFile, roots( root0, missing ) ).find( "com/foo/D.java" ) );
+
+        touch( missing, "com/foo/D.java" );
+        assertEquals( new File( missing, "com/foo/D.java" ),
+                      SourceIndex.load( indexFile, roots( root0, missing ) ).find( "com/foo/D.java" ) );
+    }
+
+}
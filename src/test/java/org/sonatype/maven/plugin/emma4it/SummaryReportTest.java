@@ -0,0 +1,64 @@
+package org.sonatype.maven.plugin.emma4it;
+
+/*
+ * PUT YOUR LICENSE HEADER HERE.
+ */
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+import junit.framework.TestCase;
+
+public class SummaryReportTest
+    extends TestCase
+{
+
+    private static CoverageCounts newCounts( int offset )
+    {
+        CoverageCounts counts = new CoverageCounts();
+        counts.set( CoverageCounts.CLASS, 1, 1 );
+        counts.set( CoverageCounts.METHOD, 2 + offset, 3 + offset );
+        counts.set( CoverageCounts.BLOCK, 10 + offset, 20 + offset );
+        return counts;
+    }
+
+    private static String write( SummaryReport.SummaryWriter summary )
+        throws IOException
+    {
+        CoverageCounts bar = newCounts( 0 );
+        CoverageCounts baz = newCounts( 1 );
+        CoverageCounts totals = new CoverageCounts();
+        totals.add( bar );
+        totals.add( baz );
+
+        summary.start();
+        summary.startPackage( "com.foo", totals );
+        summary.writeClass( "com.foo", "Bar", bar );
+        summary.writeClass( "com.foo", "Baz,Qux", baz );
+        summary.endPackage();
+        summary.end( totals );
+        return summary.writer.toString();
+    }
+
+    public void testJson()
+        throws Exception
+    {
+        String json = write( new SummaryReport.JsonSummaryWriter( new StringWriter() ) );
+        assertEquals( "{\"counters\":[\"class\",\"method\",\"block\"],\"packages\":[\n"
+            + "{\"name\":\"com.foo\",\"counts\":[[2,2],[5,7],[21,41]],\"classes\":["
+            + "{\"name\":\"Bar\",\"counts\":[[1,1],[2,3],[10,20]]},"
+            + "{\"name\":\"Baz,Qux\",\"counts\":[[1,1],[3,4],[11,21]]}]}\n"
+            + "],\"totals\":[[2,2],[5,7],[21,41]]}\n", json );
+    }
+
+    public void testCsv()
+        throws Exception
+    {
+        String csv = write( new SummaryReport.CsvSummaryWriter( new StringWriter() ) );
+        assertEquals( "scope,package,class,class_covered,class_total,method_covered,method_total,"
+            + "block_covered,block_total\n" + "package,com.foo,,2,2,5,7,21,41\n"
+            + "class,com.foo,Bar,1,1,2,3,10,20\n" + "class,com.foo,\"Baz,Qux\",1,1,3,4,11,21\n"
+            + "all,,,2,2,5,7,21,41\n", csv );
+    }
+
+}
@@ -0,0 +1,89 @@
+package org.sonatype.maven.plugin.emma4it.agent;
+
+/*
+ * PUT YOUR LICENSE HEADER HERE.
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+import junit.framework.TestCase;
+
+import com.vladium.emma.data.ClassDescriptor;
+import com.vladium.emma.data.DataFactory;
+import com.vladium.emma.data.ICoverageData;
+import com.vladium.emma.data.MethodDescriptor;
+
+public class CompactCoverageTest
+    extends TestCase
+{
+
+    private static ClassDescriptor newClass( String name, long stamp )
+    {
+        return new ClassDescriptor( "com/foo", name, stamp, name + ".java", new MethodDescriptor[0] );
+    }
+
+    public void testRoundTripWritesOnlyHitClasses()
+        throws Exception
+    {
+        boolean[] wide = new boolean[11];
+        wide[0] = true;
+        wide[8] = true;
+        wide[10] = true;
+
+        ICoverageData coverage = DataFactory.newCoverageData();
+        coverage.addClass( new boolean[][] { { true, false, true }, null, wide, {} }, "com/foo/Hit", 42 );
+        coverage.addClass( new boolean[][] { { false, false } }, "com/foo/Miss", 7 );
+
+        List<ClassDescriptor> classes =
+            Arrays.asList( newClass( "Hit", 42 ), newClass( "Miss", 7 ), newClass( "Unloaded", 1 ) );
+
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        assertEquals( 1, CompactCoverage.write( coverage, classes.iterator(), os ) );
+
+        Map<String, ICoverageData.DataHolder> read =
+            CompactCoverage.readClasses( new ByteArrayInputStream( os.toByteArray() ) );
+        assertEquals( Collections.singleton( "com/foo/Hit" ), read.keySet() );
+
+        ICoverageData.DataHolder data = read.get( "com/foo/Hit" );
+        assertEquals( 42, data.m_stamp );
+        assertEquals( 4, data.m_coverage.length );
+        assertTrue( Arrays.equals( new boolean[] { true, false, true }, data.m_coverage[0] ) );
+        assertNull( data.m_coverage[1] );
+        assertTrue( Arrays.equals( wide, data.m_coverage[2] ) );
+        assertEquals( 0, data.m_coverage[3].length );
+    }
+
+    public void testRejectsOtherStreams()
+        throws Exception
+    {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        GZIPOutputStream gzip = new GZIPOutputStream( os );
+        gzip.write( new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 0 } );
+        gzip.close();
+
+        try
+        {
+            CompactCoverage.readClasses( new ByteArrayInputStream( os.toByteArray() ) );
+            fail( "not compact coverage" );
+        }
+        catch ( IOException e )
+        {
+            // expected
+        }
+    }
+
+    public void testIsCompact()
+    {
+        assertTrue( CompactCoverage.isCompact( new File( "target/coverage.ecz" ) ) );
+        assertFalse( CompactCoverage.isCompact( new File( "target/coverage.ec" ) ) );
+    }
+
+}